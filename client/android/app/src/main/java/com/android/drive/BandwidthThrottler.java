@@ -0,0 +1,145 @@
+package com.android.drive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Token-bucket bandwidth limits for the transfer copy loops. Every transfer takes a {@link Ticket}
+ * and calls {@link Ticket#acquire} before moving each buffer. The bytes are charged to the
+ * transfer's own bucket, then, for background transfers, to the shared background bucket, and
+ * finally to the global one. At the global bucket, foreground transfers are served before any
+ * waiting background transfer. A limit of 0 means unlimited, and limits can change at any time.
+ */
+final class BandwidthThrottler {
+    private static final long MIN_BURST = 64 * 1024;
+    /** Longest single wait, so cancellation and limit changes are noticed promptly. */
+    private static final long MAX_WAIT_MS = 100;
+
+    /** Handle for one transfer; closing it detaches the transfer from the default per-transfer limit. */
+    final class Ticket implements Closeable {
+        private final boolean background;
+        private final boolean followsDefault;
+        private final TokenBucket own;
+        private final BooleanSupplier cancelled;
+
+        private Ticket(boolean background, long ownLimit, BooleanSupplier cancelled) {
+            this.background = background;
+            this.followsDefault = ownLimit <= 0;
+            this.own = new TokenBucket(followsDefault ? perTransfer : ownLimit);
+            this.cancelled = cancelled;
+        }
+
+        /** Blocks until {@code bytes} may be moved. */
+        void acquire(long bytes) throws IOException {
+            own.acquire(bytes, true, cancelled);
+            if (background) backgroundBucket.acquire(bytes, true, cancelled);
+            global.acquire(bytes, !background, cancelled);
+        }
+
+        @Override
+        public void close() {
+            open.remove(this);
+        }
+    }
+
+    private final TokenBucket global = new TokenBucket(0);
+    private final TokenBucket backgroundBucket = new TokenBucket(0);
+    private volatile long perTransfer;
+    private final Set<Ticket> open = ConcurrentHashMap.newKeySet();
+
+    /** All in bytes per second, 0 for unlimited. */
+    void setLimits(long globalLimit, long backgroundLimit, long perTransferLimit) {
+        global.setRate(globalLimit);
+        backgroundBucket.setRate(backgroundLimit);
+        perTransfer = Math.max(0, perTransferLimit);
+        for (Ticket t : open) {
+            if (t.followsDefault) t.own.setRate(perTransfer);
+        }
+    }
+
+    long getGlobalLimit() {
+        return global.getRate();
+    }
+
+    long getBackgroundLimit() {
+        return backgroundBucket.getRate();
+    }
+
+    long getPerTransferLimit() {
+        return perTransfer;
+    }
+
+    /**
+     * @param ownLimit this transfer's cap in bytes per second, or 0 to use the per-transfer default
+     * @param cancelled polled while waiting, so a throttled transfer still cancels promptly
+     */
+    Ticket open(boolean background, long ownLimit, BooleanSupplier cancelled) {
+        Ticket ticket = new Ticket(background, ownLimit, cancelled);
+        open.add(ticket);
+        return ticket;
+    }
+
+    private static final class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private int foregroundWaiting;
+
+        TokenBucket(long rate) {
+            this.rate = Math.max(0, rate);
+            this.tokens = capacity();
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = Math.max(0, rate);
+            tokens = Math.min(tokens, capacity());
+            notifyAll();
+        }
+
+        /** Up to a quarter second of traffic may go out in one burst. */
+        private double capacity() {
+            return Math.max(MIN_BURST, rate / 4.0);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+
+        synchronized void acquire(long bytes, boolean foreground, BooleanSupplier cancelled) throws IOException {
+            if (rate <= 0) return;
+            if (foreground) foregroundWaiting++;
+            try {
+                while (rate > 0) {
+                    refill();
+                    // A buffer larger than the burst is let through once the bucket is full and
+                    // paid off as debt, rather than never fitting
+                    double needed = Math.min(bytes, capacity());
+                    boolean yielding = !foreground && foregroundWaiting > 0;
+                    if (!yielding && tokens >= needed) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    if (cancelled != null && cancelled.getAsBoolean()) throw new IOException("Cancelled");
+                    long waitMs = yielding ? MAX_WAIT_MS : (long) Math.ceil((needed - tokens) * 1000 / rate);
+                    wait(Math.max(1, Math.min(MAX_WAIT_MS, waitMs)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            } finally {
+                if (foreground && --foregroundWaiting == 0) notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.android.drive;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * On-device micro benchmarks for the native transfer paths. They run against the real
+ * components (local server, parsers, copy loops) so numbers reflect the device's storage
+ * and CPU, and are triggered from JS via {@code WebDavNative.runBenchmark({ name })}.
+ */
+class Benchmarks {
+    private static final int ROUNDS = 3;
+
+    private Benchmarks() {}
+
+    /**
+     * Downloads a scratch file from the local server with sendfile and with the stream-copy
+     * fallback, and reports MB/s for each.
+     */
+    static JSObject localServerGet(LocalFileServer server, File cacheDir, int sizeMb) throws IOException {
+        File file = new File(cacheDir, "bench-get.bin");
+        long size = sizeMb * 1024L * 1024L;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            new java.util.Random(42).nextBytes(block);
+            raf.setLength(0);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block);
+            }
+        }
+
+        boolean previous = server.isZeroCopyEnabled();
+        JSArray results = new JSArray();
+        try {
+            for (boolean zeroCopy : new boolean[]{true, false}) {
+                server.setZeroCopyEnabled(zeroCopy);
+                fetch(server.getPort(), "/cache/" + file.getName()); // warm page cache
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    long read = fetch(server.getPort(), "/cache/" + file.getName());
+                    long elapsed = System.nanoTime() - start;
+                    if (read != size) throw new IOException("Short read: " + read + " of " + size);
+                    best = Math.min(best, elapsed);
+                }
+                JSObject item = new JSObject();
+                item.put("mode", zeroCopy ? "transferTo" : "streamCopy");
+                item.put("bestMs", best / 1_000_000);
+                item.put("mbPerSec", mbPerSec(size, best));
+                results.put(item);
+            }
+        } finally {
+            server.setZeroCopyEnabled(previous);
+            file.delete();
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("name", "localServerGet");
+        ret.put("sizeMb", sizeMb);
+        ret.put("results", results);
+        return ret;
+    }
+
+    private static final byte[] SAMPLE_REQUEST = ("GET /DCIM/Camera/VID_20240101_120000.mp4 HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:41234\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/126.0 Mobile Safari/537.36\r\n"
+            + "Accept: */*\r\n"
+            + "Accept-Encoding: identity;q=1, *;q=0\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Referer: http://localhost/\r\n"
+            + "Range: bytes=1048576-\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Parses a typical WebView media request with {@link HttpRequestParser} and with the
+     * line-by-line String parsing the server used before, and reports requests/sec for each.
+     */
+    static JSObject httpParser(int iterations) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SAMPLE_REQUEST.length);
+        buf.put(SAMPLE_REQUEST);
+        HttpRequestParser.Request req = new HttpRequestParser.Request();
+
+        long sink = 0;
+        for (int i = 0; i < iterations / 10; i++) { // warm-up
+            req.reset();
+            HttpRequestParser.parse(buf, req);
+            sink += legacyParse(SAMPLE_REQUEST);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            req.reset();
+            if (HttpRequestParser.parse(buf, req) != HttpRequestParser.DONE) throw new IOException("Parse failed");
+            sink += req.rangeFirst[0];
+        }
+        long parserNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += legacyParse(SAMPLE_REQUEST);
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        JSObject ret = new JSObject();
+        ret.put("name", "httpParser");
+        ret.put("iterations", iterations);
+        ret.put("parserRequestsPerSec", perSec(iterations, parserNanos));
+        ret.put("legacyRequestsPerSec", perSec(iterations, legacyNanos));
+        ret.put("checksum", sink);
+        return ret;
+    }
+
+    private static long legacyParse(byte[] raw) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(raw));
+        String requestLine = legacyReadLine(in);
+        String[] parts = requestLine.split(" ");
+        String path = java.net.URLDecoder.decode(parts[1], "UTF-8");
+        long rangeStart = path.length();
+        String line;
+        while ((line = legacyReadLine(in)) != null && !line.isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                rangeStart += Long.parseLong(line.substring(15).trim());
+            } else if (lower.startsWith("range:")) {
+                Pattern p = Pattern.compile("bytes=(\\d+)-(\\d*)");
+                Matcher m = p.matcher(lower);
+                if (m.find()) rangeStart += Long.parseLong(m.group(1));
+            }
+        }
+        return rangeStart;
+    }
+
+    private static String legacyReadLine(BufferedInputStream in) throws IOException {
+        ByteArrayOutputStream lineBuf = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') lineBuf.write(b);
+        }
+        if (lineBuf.size() == 0 && b == -1) return null;
+        return lineBuf.toString("UTF-8");
+    }
+
+    /**
+     * Issues {@code requests} GETs to {@code url}, {@code parallelism} at a time, once pinned to
+     * HTTP/1.1 and once offering h2, each with a cold connection pool. Reports requests/sec, the
+     * protocol the server negotiated and how many connections were opened. Needs a TLS server;
+     * over plain http both runs use HTTP/1.1.
+     */
+    static JSObject http2(OkHttpClient base, String url, Map<String, String> headers, int requests, int parallelism) throws Exception {
+        JSArray results = new JSArray();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (boolean h2 : new boolean[]{false, true}) {
+                AtomicInteger connections = new AtomicInteger();
+                OkHttpClient client = base.newBuilder()
+                        .connectionPool(new ConnectionPool(parallelism, 5, TimeUnit.MINUTES))
+                        .protocols(h2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1))
+                        .eventListener(new EventListener() {
+                            @Override
+                            public void connectStart(Call call, java.net.InetSocketAddress address, java.net.Proxy proxy) {
+                                connections.incrementAndGet();
+                            }
+                        })
+                        .build();
+                Request.Builder builder = new Request.Builder().url(url);
+                for (Map.Entry<String, String> e : headers.entrySet()) builder.header(e.getKey(), e.getValue());
+                Request request = builder.build();
+
+                Protocol[] negotiated = new Protocol[1];
+                AtomicInteger remaining = new AtomicInteger(requests);
+                long[] bytes = new long[parallelism];
+                Future<?>[] futures = new Future<?>[parallelism];
+                long start = System.nanoTime();
+                for (int w = 0; w < parallelism; w++) {
+                    int slot = w;
+                    futures[w] = pool.submit(() -> {
+                        while (remaining.getAndDecrement() > 0) {
+                            try (Response response = client.newCall(request).execute()) {
+                                if (!response.isSuccessful()) throw new IOException("HTTP " + response.code());
+                                negotiated[0] = response.protocol();
+                                ResponseBody body = response.body();
+                                if (body != null) bytes[slot] += body.source().readAll(okio.Okio.blackhole());
+                            }
+                        }
+                        return null;
+                    });
+                }
+                for (Future<?> f : futures) f.get();
+                long elapsed = System.nanoTime() - start;
+                client.connectionPool().evictAll();
+
+                long total = 0;
+                for (long b : bytes) total += b;
+                JSObject item = new JSObject();
+                item.put("mode", h2 ? "h2" : "http/1.1");
+                item.put("protocol", negotiated[0] != null ? negotiated[0].toString() : null);
+                item.put("connections", connections.get());
+                item.put("elapsedMs", elapsed / 1_000_000);
+                item.put("requestsPerSec", perSec(requests, elapsed));
+                item.put("mbPerSec", mbPerSec(total, elapsed));
+                results.put(item);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("name", "http2");
+        ret.put("requests", requests);
+        ret.put("parallelism", parallelism);
+        ret.put("results", results);
+        return ret;
+    }
+
+    /**
+     * Streams a scratch file from the local server through the same 64 KB loop the transfers use,
+     * once plain and once per checksum type hashed inline, and reports each type's overhead over
+     * the plain copy. Each is measured twice: over raw loopback, which shows the bare CPU cost,
+     * and paced to {@code linkMbPerSec} by a {@link BandwidthThrottler}, like a real link that
+     * leaves the loop idle between buffers.
+     */
+    static JSObject checksum(LocalFileServer server, File cacheDir, int sizeMb, int linkMbPerSec) throws IOException {
+        File file = new File(cacheDir, "bench-checksum.bin");
+        long size = sizeMb * 1024L * 1024L;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            new java.util.Random(42).nextBytes(block);
+            raf.setLength(0);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block);
+            }
+        }
+
+        OkHttpClient client = new OkHttpClient();
+        Request request = new Request.Builder().url("http://127.0.0.1:" + server.getPort() + "/cache/" + file.getName()).build();
+        BandwidthThrottler link = new BandwidthThrottler();
+        link.setLimits(linkMbPerSec * 1024L * 1024L, 0, 0);
+        JSArray results = new JSArray();
+        try {
+            long plain = 0;
+            long plainLink = 0;
+            for (String type : new String[]{null, "MD5", "SHA1", "SHA256"}) {
+                long best = Long.MAX_VALUE;
+                String hex = null;
+                for (int i = 0; i < ROUNDS; i++) {
+                    StreamingDigest digest = type != null ? new StreamingDigest(type) : null;
+                    long start = System.nanoTime();
+                    streamOnce(client, request, size, digest, null);
+                    best = Math.min(best, System.nanoTime() - start);
+                    if (digest != null) hex = digest.hex();
+                }
+                // One round at link speed; the run is long enough to be stable
+                long atLink = 0;
+                if (linkMbPerSec > 0) {
+                    try (BandwidthThrottler.Ticket ticket = link.open(false, 0, null)) {
+                        long start = System.nanoTime();
+                        streamOnce(client, request, size, type != null ? new StreamingDigest(type) : null, ticket);
+                        atLink = System.nanoTime() - start;
+                    }
+                }
+                if (type == null) {
+                    plain = best;
+                    plainLink = atLink;
+                }
+                JSObject item = new JSObject();
+                item.put("checksum", type != null ? type : "none");
+                item.put("bestMs", best / 1_000_000);
+                item.put("mbPerSec", mbPerSec(size, best));
+                item.put("overheadPercent", Math.round((best - plain) * 1000.0 / plain) / 10.0);
+                if (linkMbPerSec > 0) {
+                    item.put("linkMs", atLink / 1_000_000);
+                    item.put("linkOverheadPercent", Math.round((atLink - plainLink) * 1000.0 / plainLink) / 10.0);
+                }
+                if (hex != null) item.put("value", hex);
+                results.put(item);
+            }
+        } finally {
+            client.connectionPool().evictAll();
+            file.delete();
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("name", "checksum");
+        ret.put("sizeMb", sizeMb);
+        ret.put("linkMbPerSec", linkMbPerSec);
+        ret.put("results", results);
+        return ret;
+    }
+
+    private static void streamOnce(OkHttpClient client, Request request, long size, StreamingDigest digest,
+                                   BandwidthThrottler.Ticket throttle) throws IOException {
+        long read = 0;
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) throw new IOException("HTTP " + response.code());
+            byte[] buffer = new byte[65536];
+            try (InputStream in = body.byteStream()) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (throttle != null) throttle.acquire(n);
+                    if (digest != null) digest.update(read, buffer, 0, n);
+                    read += n;
+                }
+            }
+        }
+        if (read != size) throw new IOException("Short read: " + read + " of " + size);
+    }
+
+    static long perSec(long count, long nanos) {
+        if (nanos <= 0) return 0;
+        return (long) (count / (nanos / 1e9));
+    }
+
+    static double mbPerSec(long bytes, long nanos) {
+        if (nanos <= 0) return 0;
+        return Math.round(bytes / (1024.0 * 1024.0) / (nanos / 1e9) * 10) / 10.0;
+    }
+
+    /** Issues one GET over a fresh socket and drains the body. Returns body bytes read. */
+    private static long fetch(int port, String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[256 * 1024];
+            long total = 0;
+            int matched = 0;
+            boolean inBody = false;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (inBody) {
+                    total += read;
+                    continue;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : (b == '\r' ? 1 : 0);
+                    if (matched == 4) {
+                        inBody = true;
+                        total += read - i - 1;
+                        break;
+                    }
+                }
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.android.drive;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size heap buffers shared by all connections. Idle keep-alive sockets hand theirs back,
+ * so memory follows the number of in-flight requests rather than open connections.
+ */
+final class BufferPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+    private final int bufferSize;
+    private final int maxPooled;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) return ByteBuffer.allocate(bufferSize);
+        pooled.decrementAndGet();
+        LocalFileServer.clear(buf);
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buf);
+    }
+}
@@ -0,0 +1,389 @@
+package com.android.drive;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Uploads a large file as a sequence of fixed-size chunks and records every chunk the server
+ * confirmed in a small journal, so a retry after a dropped connection or app restart continues from
+ * the last confirmed byte instead of from zero.
+ *
+ * Two protocols are supported:
+ * <ul>
+ *   <li>Nextcloud chunking v2, for URLs under {@code /remote.php/dav/files/<user>/}: chunks are
+ *   PUT into an upload session collection and assembled with a final MOVE.</li>
+ *   <li>{@code Content-Range} PUT, for servers that implement partial PUT. Chunks go to a hidden
+ *   sibling of the target that is moved into place once complete, so the target is never left
+ *   truncated. Each chunk is confirmed with a HEAD, so a server that ignores the header is
+ *   detected before the next chunk and reported as {@link UnsupportedException}.</li>
+ * </ul>
+ *
+ * Chunks are at least {@link #MIN_CHUNK_SIZE}, the smallest part Nextcloud accepts with S3
+ * primary storage.
+ */
+final class ChunkedUploader {
+    static final String PROTOCOL_NEXTCLOUD = "nextcloud";
+    static final String PROTOCOL_CONTENT_RANGE = "contentRange";
+    static final long MIN_CHUNK_SIZE = 5L * 1024 * 1024;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final Pattern NEXTCLOUD_FILES = Pattern.compile("^(.*/remote\\.php/dav)/files/([^/]+)/.+");
+
+    interface Listener {
+        void onProgress(long uploaded, long total);
+    }
+
+    /** The server cannot do resumable uploads; the caller should fall back to a single PUT. */
+    static final class UnsupportedException extends IOException {
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class SessionExpiredException extends IOException {
+        SessionExpiredException() {
+            super("Upload session expired");
+        }
+    }
+
+    private final OkHttpClient client;
+    private final String url;
+    /** Where Content-Range chunks go until the final MOVE; null for Nextcloud. */
+    private final String partUrl;
+    private final Map<String, String> headers;
+    private final File source;
+    private final long chunkSize;
+    private final String protocol;
+    private final File journalFile;
+    private final MediaType mediaType;
+
+    /** Bytes the server has confirmed, always a multiple of {@link #chunkSize} until the end. */
+    private long confirmed;
+    /** Nextcloud upload session collection, or null. */
+    private String sessionUrl;
+    private BandwidthThrottler.Ticket throttle;
+    private StreamingDigest digest;
+
+    ChunkedUploader(OkHttpClient client, File journalDir, String url, Map<String, String> headers, File source,
+                    long chunkSize, String protocol) {
+        this.client = client;
+        this.url = url;
+        this.headers = headers;
+        this.source = source;
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        this.protocol = protocol != null ? protocol : detectProtocol(url);
+        String id = DiskLruCache.hashKey(url + "\n" + source.getAbsolutePath());
+        this.journalFile = new File(journalDir, id + ".json");
+        this.partUrl = PROTOCOL_CONTENT_RANGE.equals(this.protocol) ? partUrl(url, id) : null;
+        String contentType = headers.get("Content-Type");
+        this.mediaType = MediaType.parse(contentType != null ? contentType : "application/octet-stream");
+    }
+
+    /** Paces chunk bodies through {@code throttle}; null for no limit. */
+    void setThrottle(BandwidthThrottler.Ticket throttle) {
+        this.throttle = throttle;
+    }
+
+    /** Hashes the file as its chunks are sent; null for no checksum. */
+    void setDigest(StreamingDigest digest) {
+        this.digest = digest;
+    }
+
+    static String detectProtocol(String url) {
+        return NEXTCLOUD_FILES.matcher(url).matches() ? PROTOCOL_NEXTCLOUD : PROTOCOL_CONTENT_RANGE;
+    }
+
+    /** {@code /dir/name} becomes {@code /dir/.name.<id>.part}, stable across retries of one upload. */
+    private static String partUrl(String url, String id) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        if (parsed == null) return url + "." + id.substring(0, 12) + ".part";
+        List<String> segments = parsed.pathSegments();
+        int last = segments.size() - 1;
+        return parsed.newBuilder()
+                .setPathSegment(last, "." + segments.get(last) + "." + id.substring(0, 12) + ".part")
+                .build().toString();
+    }
+
+    /** Blocks until the whole file is stored at {@link #url}, resuming from the journal if it matches. */
+    void upload(BooleanSupplier cancelled, Listener listener) throws IOException {
+        long total = source.length();
+        loadJournal();
+        if (PROTOCOL_NEXTCLOUD.equals(protocol)) {
+            if (sessionUrl == null) startNextcloudSession();
+        } else {
+            verifyRemoteOffset();
+        }
+        if (confirmed > 0) android.util.Log.d("WebDavNative", "Resuming upload of " + source.getName() + " at " + confirmed);
+        // Chunks confirmed by an earlier run are not sent again, so hash them from disk
+        if (digest != null) digest.catchUp(source, confirmed);
+
+        boolean restarted = false;
+        while (confirmed < total) {
+            if (cancelled.getAsBoolean()) throw new IOException("Cancelled");
+            long length = Math.min(chunkSize, total - confirmed);
+            try {
+                sendChunkWithRetry(confirmed, length, total, cancelled, listener);
+            } catch (SessionExpiredException e) {
+                // Nextcloud drops idle sessions; start over once rather than fail forever
+                if (restarted) throw e;
+                restarted = true;
+                startNextcloudSession();
+                continue;
+            }
+            confirmed += length;
+            saveJournal();
+            listener.onProgress(confirmed, total);
+        }
+
+        if (PROTOCOL_NEXTCLOUD.equals(protocol)) finishNextcloudSession(total);
+        else movePartIntoPlace();
+        journalFile.delete();
+    }
+
+    /**
+     * Drops the journal and, best effort, the server-side session or part file; used on explicit
+     * cancel and before falling back to a single PUT.
+     */
+    void abandon() {
+        journalFile.delete();
+        String leftover = sessionUrl != null ? sessionUrl : partUrl;
+        if (leftover != null) {
+            try (Response ignored = client.newCall(request(leftover).delete().build()).execute()) {
+                // Nextcloud also expires stale sessions on its own
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void sendChunkWithRetry(long offset, long length, long total, BooleanSupplier cancelled, Listener listener) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                sendChunk(offset, length, total, cancelled, listener);
+                return;
+            } catch (UnsupportedException | SessionExpiredException e) {
+                throw e;
+            } catch (IOException e) {
+                if (cancelled.getAsBoolean() || attempt >= MAX_ATTEMPTS) throw e;
+                android.util.Log.w("WebDavNative", "Chunk at " + offset + " failed (attempt " + attempt + "): " + e.getMessage());
+                try {
+                    Thread.sleep(1000L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+        }
+    }
+
+    private void sendChunk(long offset, long length, long total, BooleanSupplier cancelled, Listener listener) throws IOException {
+        RequestBody body = new ChunkBody(offset, length, total, cancelled, listener);
+        Request.Builder builder;
+        if (PROTOCOL_NEXTCLOUD.equals(protocol)) {
+            // v2 chunk names are 1-based numbers; the server orders them numerically
+            builder = request(sessionUrl + "/" + (offset / chunkSize + 1))
+                    .header("Destination", url)
+                    .header("OC-Total-Length", String.valueOf(total));
+        } else {
+            builder = request(partUrl);
+            if (offset > 0) builder.header("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+        }
+
+        try (Response response = client.newCall(builder.put(body).build()).execute()) {
+            int code = response.code();
+            if (PROTOCOL_NEXTCLOUD.equals(protocol) && (code == 404 || code == 409)) {
+                throw new SessionExpiredException();
+            }
+            if (PROTOCOL_CONTENT_RANGE.equals(protocol) && offset > 0 && (code == 400 || code == 416 || code == 501)) {
+                throw new UnsupportedException("Server rejected Content-Range PUT: " + code);
+            }
+            if (!response.isSuccessful()) throw new IOException("Chunk upload failed: " + code + " " + response.message());
+        }
+
+        if (PROTOCOL_CONTENT_RANGE.equals(protocol)) {
+            long remote = remoteLength();
+            if (remote != offset + length) {
+                throw new UnsupportedException("Server ignored Content-Range (length " + remote + ", expected " + (offset + length) + ")");
+            }
+        }
+    }
+
+    private void startNextcloudSession() throws IOException {
+        Matcher m = NEXTCLOUD_FILES.matcher(url);
+        if (!m.matches()) throw new UnsupportedException("Not a Nextcloud files URL");
+        sessionUrl = m.group(1) + "/uploads/" + m.group(2) + "/webdav-client-" + Long.toHexString(System.nanoTime())
+                + Integer.toHexString(source.getAbsolutePath().hashCode());
+        confirmed = 0;
+        try (Response response = client.newCall(request(sessionUrl).method("MKCOL", null).header("Destination", url).build()).execute()) {
+            if (response.code() == 404 || response.code() == 405) throw new UnsupportedException("Chunked upload not available: " + response.code());
+            if (!response.isSuccessful()) throw new IOException("MKCOL failed: " + response.code());
+        }
+        saveJournal();
+    }
+
+    private void finishNextcloudSession(long total) throws IOException {
+        Request move = request(sessionUrl + "/.file").method("MOVE", null)
+                .header("Destination", url)
+                .header("OC-Total-Length", String.valueOf(total))
+                .header("X-OC-Mtime", String.valueOf(source.lastModified() / 1000))
+                .build();
+        try (Response response = client.newCall(move).execute()) {
+            if (!response.isSuccessful()) throw new IOException("Assembling chunks failed: " + response.code() + " " + response.message());
+        }
+    }
+
+    private void movePartIntoPlace() throws IOException {
+        Request move = request(partUrl).method("MOVE", null)
+                .header("Destination", url)
+                .header("Overwrite", "T")
+                .build();
+        try (Response response = client.newCall(move).execute()) {
+            if (!response.isSuccessful()) throw new IOException("Moving upload into place failed: " + response.code() + " " + response.message());
+        }
+    }
+
+    /** Trusts the journal only as far as the server actually has bytes. */
+    private void verifyRemoteOffset() throws IOException {
+        if (confirmed == 0) return;
+        long remote = remoteLength();
+        if (remote < confirmed) {
+            confirmed = remote < 0 ? 0 : remote / chunkSize * chunkSize;
+        }
+    }
+
+    /** @return the part file's Content-Length from a HEAD, or -1 if it does not exist. */
+    private long remoteLength() throws IOException {
+        try (Response response = client.newCall(request(partUrl).head().build()).execute()) {
+            if (response.code() == 404) return -1;
+            if (!response.isSuccessful()) throw new IOException("HEAD failed: " + response.code());
+            String length = response.header("Content-Length");
+            return length != null ? Long.parseLong(length) : -1;
+        }
+    }
+
+    private Request.Builder request(String target) {
+        Request.Builder builder = new Request.Builder().url(target);
+        for (Map.Entry<String, String> h : headers.entrySet()) {
+            // The body type is set per request; a stray header would confuse MKCOL and MOVE
+            if (!"Content-Type".equalsIgnoreCase(h.getKey())) builder.header(h.getKey(), h.getValue());
+        }
+        return builder;
+    }
+
+    private void loadJournal() {
+        confirmed = 0;
+        sessionUrl = null;
+        if (!journalFile.exists()) return;
+        try (InputStream in = new FileInputStream(journalFile)) {
+            byte[] data = new byte[(int) journalFile.length()];
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read == -1) break;
+                n += read;
+            }
+            JSONObject json = new JSONObject(new String(data, 0, n, StandardCharsets.UTF_8));
+            // A journal for another version of the file, or another chunking, is useless
+            if (json.getLong("size") != source.length() || json.getLong("mtime") != source.lastModified()
+                    || json.getLong("chunkSize") != chunkSize || !protocol.equals(json.getString("protocol"))) {
+                journalFile.delete();
+                return;
+            }
+            confirmed = json.getLong("confirmed");
+            sessionUrl = json.has("session") ? json.getString("session") : null;
+        } catch (IOException | JSONException e) {
+            journalFile.delete();
+        }
+    }
+
+    private void saveJournal() throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("url", url);
+            json.put("source", source.getAbsolutePath());
+            json.put("size", source.length());
+            json.put("mtime", source.lastModified());
+            json.put("protocol", protocol);
+            json.put("chunkSize", chunkSize);
+            json.put("confirmed", confirmed);
+            if (sessionUrl != null) json.put("session", sessionUrl);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        File dir = journalFile.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(journalFile)) throw new IOException("Failed to save upload journal");
+    }
+
+    /** Streams {@code [offset, offset + length)} of the source, reporting progress across the whole file. */
+    private final class ChunkBody extends RequestBody {
+        private final long offset;
+        private final long length;
+        private final long total;
+        private final BooleanSupplier cancelled;
+        private final Listener listener;
+
+        ChunkBody(long offset, long length, long total, BooleanSupplier cancelled, Listener listener) {
+            this.offset = offset;
+            this.length = length;
+            this.total = total;
+            this.cancelled = cancelled;
+            this.listener = listener;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mediaType;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            byte[] buffer = new byte[65536];
+            try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+                raf.seek(offset);
+                long sent = 0;
+                while (sent < length) {
+                    if (cancelled.getAsBoolean()) throw new IOException("Cancelled");
+                    int read = raf.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+                    if (read == -1) throw new IOException("Source file shrank during upload");
+                    if (throttle != null) throttle.acquire(read);
+                    sink.write(buffer, 0, read);
+                    if (digest != null) digest.update(offset + sent, buffer, 0, read);
+                    sent += read;
+                    listener.onProgress(offset + sent, total);
+                }
+            }
+        }
+    }
+}
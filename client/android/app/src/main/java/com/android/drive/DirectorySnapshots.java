@@ -0,0 +1,219 @@
+package com.android.drive;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Listings of local directories for listDirectory, kept so that paging through a folder of tens
+ * of thousands of files lists and stats it once. A snapshot stays valid while the directory's
+ * mtime is unchanged, which covers entries being added, removed or renamed. Each sorted and
+ * filtered order is computed once per snapshot, so every further page is an array slice.
+ */
+final class DirectorySnapshots {
+    /** File systems with coarse timestamps can change a directory twice within one mtime tick. */
+    private static final long MTIME_GRANULARITY_MS = 2000;
+    private static final int MAX_VIEWS = 4;
+
+    static final String SORT_NAME = "name";
+    static final String SORT_SIZE = "size";
+    static final String SORT_MTIME = "mtime";
+
+    static final String TYPE_ALL = "all";
+    static final String TYPE_FILES = "files";
+    static final String TYPE_DIRECTORIES = "directories";
+
+    /** How to order and filter a snapshot. */
+    static final class Query {
+        /** {@link #SORT_NAME}, {@link #SORT_SIZE}, {@link #SORT_MTIME}, or null for listing order */
+        final String sort;
+        final boolean descending;
+        final boolean directoriesFirst;
+        final String type;
+        /** Lowercase extensions without the dot that files must have; null for any. Directories are not affected. */
+        final Set<String> extensions;
+        /** Case-insensitive name prefix; null for any. */
+        final String prefix;
+
+        Query(String sort, boolean descending, boolean directoriesFirst, String type, Set<String> extensions, String prefix) {
+            this.sort = sort;
+            this.descending = descending;
+            this.directoriesFirst = directoriesFirst;
+            this.type = type;
+            this.extensions = extensions;
+            this.prefix = prefix != null && !prefix.isEmpty() ? prefix.toLowerCase(Locale.ROOT) : null;
+        }
+
+        String key() {
+            List<String> sorted = extensions != null ? new ArrayList<>(extensions) : null;
+            if (sorted != null) java.util.Collections.sort(sorted);
+            return sort + '\0' + descending + '\0' + directoriesFirst + '\0' + type + '\0' + sorted + '\0' + prefix;
+        }
+
+        boolean accepts(ParallelFileWalker.Entry e) {
+            if (TYPE_FILES.equals(type) && e.isDirectory) return false;
+            if (TYPE_DIRECTORIES.equals(type) && !e.isDirectory) return false;
+            if (prefix != null && !e.name.toLowerCase(Locale.ROOT).startsWith(prefix)) return false;
+            if (extensions != null && !e.isDirectory) {
+                int dot = e.name.lastIndexOf('.');
+                return dot > 0 && extensions.contains(e.name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            }
+            return true;
+        }
+    }
+
+    static final class Snapshot {
+        final long mtime;
+        /** When the listing was taken; lets callers tell whether pages came from the same listing. */
+        final long version;
+        private final List<ParallelFileWalker.Entry> entries;
+        private final LinkedHashMap<String, ParallelFileWalker.Entry[]> views = new LinkedHashMap<String, ParallelFileWalker.Entry[]>(8, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParallelFileWalker.Entry[]> eldest) {
+                return size() > MAX_VIEWS;
+            }
+        };
+
+        Snapshot(long mtime, long version, List<ParallelFileWalker.Entry> entries) {
+            this.mtime = mtime;
+            this.version = version;
+            this.entries = entries;
+        }
+
+        /** @return the entries matching {@code query}, in its order; do not modify */
+        synchronized ParallelFileWalker.Entry[] view(Query query) {
+            String key = query.key();
+            ParallelFileWalker.Entry[] view = views.get(key);
+            if (view != null) return view;
+            List<ParallelFileWalker.Entry> kept = new ArrayList<>();
+            for (ParallelFileWalker.Entry e : entries) {
+                if (query.accepts(e)) kept.add(e);
+            }
+            view = kept.toArray(new ParallelFileWalker.Entry[0]);
+            Comparator<ParallelFileWalker.Entry> order = comparator(query);
+            if (order != null) Arrays.sort(view, order);
+            views.put(key, view);
+            return view;
+        }
+    }
+
+    private final int maxSnapshots;
+    // Guarded by this
+    private final LinkedHashMap<String, Snapshot> snapshots;
+
+    DirectorySnapshots(int maxSnapshots) {
+        this.maxSnapshots = maxSnapshots;
+        this.snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+                return size() > maxSnapshots;
+            }
+        };
+    }
+
+    /**
+     * @param refresh list again even if the cached snapshot looks current
+     * @return the snapshot of {@code dir}, or null if it cannot be listed
+     */
+    Snapshot get(File dir, boolean refresh) {
+        String key = dir.getAbsolutePath();
+        ParallelFileWalker.Entry self = ParallelFileWalker.stat(dir);
+        if (self == null || !self.isDirectory) {
+            synchronized (this) {
+                snapshots.remove(key);
+            }
+            return null;
+        }
+        synchronized (this) {
+            Snapshot cached = snapshots.get(key);
+            // A snapshot taken in the same tick as the last change may have missed a second one
+            if (!refresh && cached != null && cached.mtime == self.mtime && cached.version - cached.mtime >= MTIME_GRANULARITY_MS) {
+                return cached;
+            }
+        }
+        long version = System.currentTimeMillis();
+        List<ParallelFileWalker.Entry> entries = ParallelFileWalker.list(dir, true);
+        if (entries == null) return null;
+        Snapshot snapshot = new Snapshot(self.mtime, version, entries);
+        synchronized (this) {
+            snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /** Drops the snapshot of {@code dir}, e.g. after the app changed something in it. */
+    synchronized void invalidate(File dir) {
+        if (dir != null) snapshots.remove(dir.getAbsolutePath());
+    }
+
+    private static Comparator<ParallelFileWalker.Entry> comparator(Query query) {
+        Comparator<ParallelFileWalker.Entry> byName = (a, b) -> compareNatural(a.name, b.name);
+        Comparator<ParallelFileWalker.Entry> order;
+        if (SORT_SIZE.equals(query.sort)) {
+            order = Comparator.<ParallelFileWalker.Entry>comparingLong(e -> e.isDirectory ? 0 : e.size).thenComparing(byName);
+        } else if (SORT_MTIME.equals(query.sort)) {
+            order = Comparator.<ParallelFileWalker.Entry>comparingLong(e -> e.mtime).thenComparing(byName);
+        } else if (SORT_NAME.equals(query.sort)) {
+            order = byName;
+        } else {
+            return null;
+        }
+        if (query.descending) order = order.reversed();
+        // Folders stay on top whichever way the rest is sorted
+        if (query.directoriesFirst) order = Comparator.<ParallelFileWalker.Entry, Boolean>comparing(e -> !e.isDirectory).thenComparing(order);
+        return order;
+    }
+
+    /**
+     * Orders names the way people read them: case-insensitively, with digit runs compared by
+     * value, so "IMG_9.jpg" comes before "IMG_10.jpg". Ties fall back to a plain comparison.
+     */
+    static int compareNatural(String a, String b) {
+        int i = 0;
+        int j = 0;
+        int la = a.length();
+        int lb = b.length();
+        while (i < la && j < lb) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+            if (isDigit(ca) && isDigit(cb)) {
+                // Compare the runs by value: skip leading zeros, then the longer run is larger
+                int za = i;
+                while (za < la && a.charAt(za) == '0') za++;
+                int zb = j;
+                while (zb < lb && b.charAt(zb) == '0') zb++;
+                int ea = za;
+                while (ea < la && isDigit(a.charAt(ea))) ea++;
+                int eb = zb;
+                while (eb < lb && isDigit(b.charAt(eb))) eb++;
+                int lengthDiff = (ea - za) - (eb - zb);
+                if (lengthDiff != 0) return lengthDiff;
+                for (int k = 0; k < ea - za; k++) {
+                    int d = a.charAt(za + k) - b.charAt(zb + k);
+                    if (d != 0) return d;
+                }
+                i = ea;
+                j = eb;
+                continue;
+            }
+            if (ca != cb) {
+                int d = Character.toLowerCase(Character.toUpperCase(ca)) - Character.toLowerCase(Character.toUpperCase(cb));
+                if (d != 0) return d;
+            }
+            i++;
+            j++;
+        }
+        if (i < la || j < lb) return (la - i) - (lb - j);
+        return a.compareTo(b);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,177 @@
+package com.android.drive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Size-bounded directory of cache files, evicted least-recently-used first.
+ *
+ * Keys map directly to file names, so callers pass already-hashed keys. The in-memory index is
+ * rebuilt from file mtimes on first use, and hits touch the file so the order survives restarts.
+ * Concurrent {@link #getOrCreate} calls for the same key share one producer run.
+ */
+final class DiskLruCache {
+    /** Writes a new entry into {@code target}; the cache publishes it atomically when this returns. */
+    interface Producer {
+        void write(File target) throws IOException;
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<File>> inFlight = new ConcurrentHashMap<>();
+    private long totalBytes;
+    private boolean loaded;
+
+    DiskLruCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return the cached file, or null if {@code key} is not cached. */
+    File get(String key) {
+        synchronized (this) {
+            ensureLoaded();
+            if (index.get(key) == null) return null;
+        }
+        File file = new File(dir, key);
+        if (!file.exists()) {
+            remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    File getOrCreate(String key, Producer producer) throws IOException {
+        File cached = get(key);
+        if (cached != null) return cached;
+
+        CompletableFuture<File> mine = new CompletableFuture<>();
+        CompletableFuture<File> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) return await(existing);
+
+        try {
+            // Another caller may have finished between our get() and putIfAbsent()
+            cached = get(key);
+            if (cached == null) {
+                File tmp = new File(dir, key + ".tmp");
+                try {
+                    producer.write(tmp);
+                    cached = commit(key, tmp);
+                } finally {
+                    tmp.delete();
+                }
+            }
+            mine.complete(cached);
+            return cached;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /** Writes {@code key} unconditionally, replacing any cached entry. */
+    File put(String key, Producer producer) throws IOException {
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            synchronized (this) {
+                ensureLoaded();
+            }
+            producer.write(tmp);
+            return commit(key, tmp);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    synchronized void remove(String key) {
+        ensureLoaded();
+        Long size = index.remove(key);
+        if (size != null) totalBytes -= size;
+        new File(dir, key).delete();
+    }
+
+    synchronized long size() {
+        ensureLoaded();
+        return totalBytes;
+    }
+
+    private File commit(String key, File tmp) throws IOException {
+        File target = new File(dir, key);
+        if (!tmp.renameTo(target)) throw new IOException("Failed to publish cache entry " + key);
+        synchronized (this) {
+            ensureLoaded();
+            Long previous = index.put(key, target.length());
+            if (previous != null) totalBytes -= previous;
+            totalBytes += target.length();
+            trim();
+        }
+        return target;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (inFlight.containsKey(eldest.getKey())) continue;
+            new File(dir, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        if (!dir.exists()) dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (f.getName().endsWith(".tmp")) {
+                f.delete();
+                continue;
+            }
+            index.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+        trim();
+    }
+
+    private static File await(CompletableFuture<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for cache entry");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    static String hashKey(String text) {
+        try {
+            byte[] digest = java.security.MessageDigest.getInstance("SHA-1").digest(text.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.android.drive;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Per-drive {@link OkHttpClient}s. Each one is derived from the plugin's shared client through
+ * {@link OkHttpClient#newBuilder()}, so it shares the dispatcher, timeouts and thread pools, but
+ * gets its own connection pool sized for that server. Drives that were never configured use the
+ * shared client.
+ *
+ * A drive can also hold its credential headers, in memory only, so journaled transfers can be
+ * resumed without the journal storing them.
+ */
+final class DriveClients {
+    private final OkHttpClient shared;
+    private final ConcurrentHashMap<String, OkHttpClient> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Map<String, String>> credentials = new ConcurrentHashMap<>();
+
+    DriveClients(OkHttpClient shared) {
+        this.shared = shared;
+    }
+
+    /** @return the drive's client, or the shared one for a null or unconfigured drive. */
+    OkHttpClient get(String driveId) {
+        if (driveId == null) return shared;
+        OkHttpClient client = clients.get(driveId);
+        return client != null ? client : shared;
+    }
+
+    /**
+     * (Re)creates the client for {@code driveId}. With {@code http2}, h2 is offered through ALPN
+     * and servers without it keep using HTTP/1.1; without it the drive is pinned to HTTP/1.1.
+     */
+    OkHttpClient configure(String driveId, int maxIdleConnections, long keepAliveSeconds, boolean http2) {
+        OkHttpClient client = shared.newBuilder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+                .protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+        OkHttpClient previous = clients.put(driveId, client);
+        // Calls in flight keep their connections; only idle ones are closed
+        if (previous != null) previous.connectionPool().evictAll();
+        return client;
+    }
+
+    void remove(String driveId) {
+        OkHttpClient previous = clients.remove(driveId);
+        if (previous != null) previous.connectionPool().evictAll();
+        credentials.remove(driveId);
+    }
+
+    void setCredentials(String driveId, Map<String, String> headers) {
+        credentials.put(driveId, Collections.unmodifiableMap(new HashMap<>(headers)));
+    }
+
+    /** @return the drive's credential headers, or null if it has none. */
+    Map<String, String> getCredentials(String driveId) {
+        return driveId != null ? credentials.get(driveId) : null;
+    }
+}
@@ -0,0 +1,118 @@
+package com.android.drive;
+
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * File entries on their way to JS, in one of two shapes. {@link #FORMAT_ITEMS} is the classic array
+ * of {@code {name, path, isDirectory, size, mtime}} objects. {@link #FORMAT_COLUMNS} is one object
+ * of parallel arrays, {@code {count, name, size, mtime, isDirectory}}, where isDirectory is a
+ * bitset (bit i of byte i / 8, lowest bit first) in base64. Paths, when there are any, come as
+ * {@code parents}, each distinct folder once, and {@code parent}, an index into it per entry: the
+ * path of entry i is {@code parents[parent[i]] + "/" + name[i]}. Columns spell out no key per
+ * entry and no folder twice, so big listings stringify and cross the bridge several times faster.
+ */
+final class EntryList {
+    static final String FORMAT_ITEMS = "items";
+    static final String FORMAT_COLUMNS = "columns";
+
+    private final boolean withPath;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> paths;
+    private long[] sizes = new long[16];
+    private long[] mtimes = new long[16];
+    private byte[] directories = new byte[2];
+
+    /** @param withPath whether entries carry a path; listings of one directory leave it out */
+    EntryList(boolean withPath) {
+        this.withPath = withPath;
+        this.paths = withPath ? new ArrayList<>() : null;
+    }
+
+    /** @return whether {@code format} is one of the FORMAT_ constants */
+    static boolean isFormat(String format) {
+        return FORMAT_ITEMS.equals(format) || FORMAT_COLUMNS.equals(format);
+    }
+
+    void add(String name, String path, boolean isDirectory, long size, long mtime) {
+        int i = names.size();
+        if (i == sizes.length) {
+            sizes = Arrays.copyOf(sizes, i * 2);
+            mtimes = Arrays.copyOf(mtimes, i * 2);
+        }
+        if (i / 8 == directories.length) directories = Arrays.copyOf(directories, directories.length * 2);
+        names.add(name);
+        if (withPath) paths.add(path);
+        sizes[i] = size;
+        mtimes[i] = mtime;
+        if (isDirectory) directories[i / 8] |= (byte) (1 << (i % 8));
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    boolean isDirectory(int i) {
+        return (directories[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    com.getcapacitor.JSArray toItems() {
+        com.getcapacitor.JSArray items = new com.getcapacitor.JSArray();
+        for (int i = 0; i < names.size(); i++) {
+            JSObject item = new JSObject();
+            item.put("name", names.get(i));
+            if (withPath) item.put("path", paths.get(i));
+            item.put("isDirectory", isDirectory(i));
+            item.put("size", sizes[i]);
+            item.put("mtime", mtimes[i]);
+            items.put(item);
+        }
+        return items;
+    }
+
+    JSObject toColumns() {
+        int n = names.size();
+        com.getcapacitor.JSArray nameColumn = new com.getcapacitor.JSArray();
+        com.getcapacitor.JSArray parents = withPath ? new com.getcapacitor.JSArray() : null;
+        com.getcapacitor.JSArray parentColumn = withPath ? new com.getcapacitor.JSArray() : null;
+        java.util.HashMap<String, Integer> parentIds = new java.util.HashMap<>();
+        com.getcapacitor.JSArray sizeColumn = new com.getcapacitor.JSArray();
+        com.getcapacitor.JSArray mtimeColumn = new com.getcapacitor.JSArray();
+        for (int i = 0; i < n; i++) {
+            nameColumn.put(names.get(i));
+            if (withPath) {
+                String path = paths.get(i);
+                String parent = path.substring(0, Math.max(0, path.lastIndexOf('/')));
+                Integer id = parentIds.get(parent);
+                if (id == null) {
+                    id = parentIds.size();
+                    parentIds.put(parent, id);
+                    parents.put(parent);
+                }
+                parentColumn.put((int) id);
+            }
+            sizeColumn.put(sizes[i]);
+            mtimeColumn.put(mtimes[i]);
+        }
+        JSObject columns = new JSObject();
+        columns.put("count", n);
+        columns.put("name", nameColumn);
+        if (withPath) {
+            columns.put("parents", parents);
+            columns.put("parent", parentColumn);
+        }
+        columns.put("size", sizeColumn);
+        columns.put("mtime", mtimeColumn);
+        columns.put("isDirectory", android.util.Base64.encodeToString(directories, 0, (n + 7) / 8, android.util.Base64.NO_WRAP));
+        return columns;
+    }
+
+    /** Puts the entries into {@code ret}, as {@code items} or as {@code columns}. */
+    void putInto(JSObject ret, String format) {
+        if (FORMAT_COLUMNS.equals(format)) ret.put("columns", toColumns());
+        else ret.put("items", toItems());
+    }
+}
@@ -0,0 +1,660 @@
+package com.android.drive;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filename index of local storage, so search answers from memory with complete results instead
+ * of walking the tree per keystroke. Entries live in parallel arrays indexed by id, with a parent
+ * id instead of a full path, and every lowercase name trigram maps to a sorted id list; a query
+ * intersects the lists of its trigrams and checks the few candidates left. Hidden entries are
+ * skipped, as the walk did.
+ *
+ * The index is built once in the background and saved to disk. It is kept current by re-listing
+ * directories: right away for {@link FileObserver} events in the top-level folders and for
+ * {@link #refresh} calls, and, on MediaStore change notifications or a start from disk, by a
+ * pass that re-lists every directory whose mtime moved. All mutations start on one worker
+ * thread; only the subtree scans fan out over the {@link ParallelFileWalker}.
+ */
+final class FileIndex {
+    private static final int MAGIC = 0x46494458; // "FIDX"
+    private static final int FORMAT_VERSION = 2;
+    private static final long SAVE_DELAY_MS = 30_000;
+    private static final long REVALIDATE_DELAY_MS = 2_000;
+    /** Stored mtime of a directory whose own listing has not been indexed yet; never matches the disk. */
+    private static final long UNLISTED = -1;
+
+    static final class Hit {
+        final String path;
+        final String name;
+        final boolean isDirectory;
+        final long size;
+        final long mtime;
+
+        Hit(String path, String name, boolean isDirectory, long size, long mtime) {
+            this.path = path;
+            this.name = name;
+            this.isDirectory = isDirectory;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    static final class Result {
+        final List<Hit> hits = new ArrayList<>();
+        int total;
+    }
+
+    /** Ids of all entries matching a query, to be turned into hits a slice at a time by {@link #hits}. */
+    static final class Match {
+        final String query;
+        final int[] ids;
+        final int generation;
+
+        Match(String query, int[] ids, int generation) {
+            this.query = query;
+            this.ids = ids;
+            this.generation = generation;
+        }
+    }
+
+    /** Growable int array; used for children and trigram postings. */
+    private static final class IntList {
+        int[] items = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = value;
+        }
+
+        int last() {
+            return size > 0 ? items[size - 1] : -1;
+        }
+
+        void removeValue(int value) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == value) {
+                    System.arraycopy(items, i + 1, items, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private final Context context;
+    private final File root;
+    private final File store;
+    private final ParallelFileWalker walker;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FileIndex");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+    private final List<FileObserver> observers = new ArrayList<>();
+    private ContentObserver mediaObserver;
+
+    // Guarded by this. Ids never move until compaction; a removed entry keeps its slot with a null name
+    private int count;
+    private int removed;
+    private String[] names = new String[1024];
+    /** Lowercase names; the same String as in {@link #names} when that is lowercase already. */
+    private String[] lowerNames = new String[1024];
+    private int[] parents = new int[1024];
+    private long[] sizes = new long[1024];
+    /** For directories, the mtime the directory had when it was last listed. */
+    private long[] mtimes = new long[1024];
+    private boolean[] dirs = new boolean[1024];
+    private final HashMap<Integer, IntList> children = new HashMap<>();
+    /** Directory path relative to root ("" for root) to id. */
+    private final HashMap<String, Integer> dirIds = new HashMap<>();
+    private final HashMap<Long, IntList> trigrams = new HashMap<>();
+    /** Bumped whenever ids are reassigned, which invalidates every {@link Match}. */
+    private int generation;
+    private volatile boolean ready;
+    private volatile boolean closed;
+    private boolean started;
+    private ScheduledFuture<?> saveTask;
+    private ScheduledFuture<?> revalidateTask;
+
+    FileIndex(Context context, File root, File store, ParallelFileWalker walker) {
+        this.context = context.getApplicationContext();
+        this.root = root;
+        this.store = store;
+        this.walker = walker;
+    }
+
+    /** Loads the saved index or builds a new one in the background; repeated calls retry a failed start. */
+    synchronized void start() {
+        if (started) return;
+        started = true;
+        worker.execute(() -> {
+            long begin = System.currentTimeMillis();
+            boolean loaded = load();
+            if (loaded) {
+                ready = true;
+                android.util.Log.d("WebDavNative", "File index loaded: " + live() + " entries in " + (System.currentTimeMillis() - begin) + "ms");
+                // Catch up with what changed while the app was not running
+                revalidate();
+            } else if (root.listFiles() == null) {
+                // No storage permission yet; the next start() tries again
+                synchronized (this) {
+                    started = false;
+                }
+                return;
+            } else {
+                // Cut short by shutdown; a partial index is not worth saving
+                if (!build()) return;
+                ready = true;
+                android.util.Log.d("WebDavNative", "File index built: " + live() + " entries in " + (System.currentTimeMillis() - begin) + "ms");
+            }
+            save();
+            startWatching();
+        });
+    }
+
+    /** False until the first build or load has finished; results before that are incomplete. */
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Watches for changes: FileObservers on the root and top-level folders, and the MediaStore for
+     * everything deeper. Inotify watches are a scarce per-user resource, so there is no observer
+     * per directory.
+     */
+    private void startWatching() {
+        int mask = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+                | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF;
+        List<File> watched = new ArrayList<>();
+        watched.add(root);
+        File[] top = root.listFiles();
+        if (top != null) {
+            for (File f : top) {
+                if (f.isDirectory() && !f.getName().startsWith(".")) watched.add(f);
+            }
+        }
+        synchronized (observers) {
+            for (File dir : watched) {
+                FileObserver observer = new FileObserver(dir.getAbsolutePath(), mask) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        refresh(dir);
+                    }
+                };
+                observer.startWatching();
+                observers.add(observer);
+            }
+        }
+
+        mediaObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                revalidateSoon();
+            }
+        };
+        context.getContentResolver().registerContentObserver(MediaStore.Files.getContentUri("external"), true, mediaObserver);
+    }
+
+    void shutdown() {
+        closed = true;
+        synchronized (observers) {
+            for (FileObserver observer : observers) observer.stopWatching();
+            observers.clear();
+        }
+        if (mediaObserver != null) context.getContentResolver().unregisterContentObserver(mediaObserver);
+        worker.execute(this::save);
+        worker.shutdown();
+    }
+
+    /** Re-lists {@code dir} soon, e.g. after the app created or changed something in it. */
+    void refresh(File dir) {
+        if (closed || dir == null || !pendingRefresh.add(dir.getAbsolutePath())) return;
+        try {
+            worker.execute(() -> {
+                pendingRefresh.remove(dir.getAbsolutePath());
+                if (!ready) return;
+                refreshDir(dir);
+                scheduleSave();
+            });
+        } catch (RejectedExecutionException e) {
+            // An observer event that raced shutdown()
+        }
+    }
+
+    /** Schedules a pass over all directories, coalescing bursts of notifications. */
+    synchronized void revalidateSoon() {
+        if (closed || !ready || (revalidateTask != null && !revalidateTask.isDone())) return;
+        try {
+            revalidateTask = worker.schedule(() -> {
+                revalidate();
+                scheduleSave();
+            }, REVALIDATE_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // A MediaStore notification that raced shutdown()
+        }
+    }
+
+    /**
+     * Finds entries whose name contains {@code query}, case-insensitively.
+     *
+     * @param limit at most this many hits are returned; {@link Result#total} counts all of them
+     */
+    synchronized Result search(String query, int limit) {
+        Match match = match(query);
+        Result result = new Result();
+        result.total = match.ids.length;
+        result.hits.addAll(hits(match, 0, Math.min(limit, match.ids.length)));
+        return result;
+    }
+
+    /** All entries whose name contains {@code query}, case-insensitively, in id order. */
+    synchronized Match match(String query) {
+        String q = query.toLowerCase(Locale.ROOT);
+        if (q.length() < 3) {
+            IntList found = new IntList();
+            for (int id = 1; id < count; id++) {
+                if (names[id] != null && lowerNames[id].contains(q)) found.add(id);
+            }
+            return new Match(query, Arrays.copyOf(found.items, found.size), generation);
+        }
+
+        // Intersect postings, shortest first, so the work is bounded by the rarest trigram
+        List<IntList> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= q.length(); i++) {
+            IntList postings = trigrams.get(trigram(q, i));
+            if (postings == null) return new Match(query, new int[0], generation);
+            lists.add(postings);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        int[] candidates = Arrays.copyOf(lists.get(0).items, lists.get(0).size);
+        int n = candidates.length;
+        for (int l = 1; l < lists.size() && n > 0; l++) {
+            n = intersect(candidates, n, lists.get(l));
+        }
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            int id = candidates[i];
+            // Trigrams only narrow it down; the name must still contain the query in order
+            if (names[id] != null && lowerNames[id].contains(q)) candidates[kept++] = id;
+        }
+        return new Match(query, Arrays.copyOf(candidates, kept), generation);
+    }
+
+    /**
+     * Hits for {@code match.ids[from..to)}, leaving out entries removed since the match.
+     *
+     * @return null if the index was renumbered since; match again and continue at the same position
+     */
+    synchronized List<Hit> hits(Match match, int from, int to) {
+        if (match.generation != generation) return null;
+        List<Hit> hits = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            int id = match.ids[i];
+            if (names[id] != null) hits.add(new Hit(path(id), names[id], dirs[id], sizes[id], mtimes[id]));
+        }
+        return hits;
+    }
+
+    /** Keeps in {@code a[0..n)} the ids also in {@code b}; both are sorted. @return the new length */
+    private static int intersect(int[] a, int n, IntList b) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < n && j < b.size; i++) {
+            while (j < b.size && b.items[j] < a[i]) j++;
+            if (j < b.size && b.items[j] == a[i]) a[kept++] = a[i];
+        }
+        return kept;
+    }
+
+    private static long trigram(String lower, int i) {
+        return ((long) lower.charAt(i) << 32) | ((long) lower.charAt(i + 1) << 16) | lower.charAt(i + 2);
+    }
+
+    private synchronized int live() {
+        return count - removed;
+    }
+
+    /** Path relative to root with a leading slash, as the plugin reports paths. */
+    private String path(int id) {
+        if (id == 0) return "/";
+        StringBuilder sb = new StringBuilder();
+        for (int i = id; i > 0; i = parents[i]) sb.insert(0, names[i]).insert(0, '/');
+        return sb.toString();
+    }
+
+    private String relativePath(File file) {
+        String rootPath = root.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        if (path.equals(rootPath)) return "";
+        return path.startsWith(rootPath + "/") ? path.substring(rootPath.length() + 1) : null;
+    }
+
+    private int insert(int parent, String name, boolean dir, long size, long mtime) {
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            lowerNames = Arrays.copyOf(lowerNames, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            mtimes = Arrays.copyOf(mtimes, capacity);
+            dirs = Arrays.copyOf(dirs, capacity);
+        }
+        int id = count++;
+        String lower = name.toLowerCase(Locale.ROOT);
+        names[id] = name;
+        lowerNames[id] = lower.equals(name) ? name : lower;
+        parents[id] = parent;
+        sizes[id] = size;
+        mtimes[id] = mtime;
+        dirs[id] = dir;
+        if (parent >= 0) {
+            IntList siblings = children.get(parent);
+            if (siblings == null) children.put(parent, siblings = new IntList());
+            siblings.add(id);
+            for (int i = 0; i + 3 <= lower.length(); i++) {
+                long key = trigram(lower, i);
+                IntList postings = trigrams.get(key);
+                if (postings == null) trigrams.put(key, postings = new IntList());
+                // Ids only grow, so postings stay sorted and a repeated trigram is always the last one
+                if (postings.last() != id) postings.add(id);
+            }
+        }
+        if (dir) dirIds.put(parent < 0 ? "" : relativeOf(id), id);
+        return id;
+    }
+
+    private String relativeOf(int id) {
+        return path(id).substring(1);
+    }
+
+    /** Drops {@code id} and everything below it; postings are cleaned up lazily by compaction. */
+    private void remove(int id) {
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(id);
+        IntList siblings = children.get(parents[id]);
+        if (siblings != null) siblings.removeValue(id);
+        while (!stack.isEmpty()) {
+            int current = stack.pop();
+            if (dirs[current]) {
+                dirIds.remove(relativeOf(current));
+                IntList below = children.remove(current);
+                if (below != null) {
+                    for (int i = 0; i < below.size; i++) stack.push(below.items[i]);
+                }
+            }
+            names[current] = null;
+            lowerNames[current] = null;
+            removed++;
+        }
+    }
+
+    /**
+     * Full rebuild from the file system. Runs on the worker.
+     *
+     * @return false if shutdown interrupted it
+     */
+    private boolean build() {
+        synchronized (this) {
+            clear();
+            insert(-1, "", true, 0, UNLISTED);
+        }
+        return scanSubtree(root);
+    }
+
+    private void clear() {
+        generation++;
+        count = 0;
+        removed = 0;
+        names = new String[1024];
+        lowerNames = new String[1024];
+        parents = new int[1024];
+        sizes = new long[1024];
+        mtimes = new long[1024];
+        dirs = new boolean[1024];
+        children.clear();
+        dirIds.clear();
+        trigrams.clear();
+    }
+
+    /**
+     * Lists {@code dir}, which is already indexed, and everything below it, in parallel. A directory
+     * is inserted with {@link #UNLISTED} as mtime and gets its real one once its own listing is in,
+     * so if the walk is cut short, {@link #revalidate} finishes it later.
+     *
+     * @return false if shutdown interrupted it
+     */
+    private boolean scanSubtree(File dir) {
+        return walker.walk(dir, false, (parent, entries) -> {
+            String rel = relativePath(new File(parent.path));
+            synchronized (this) {
+                // The walk only descends after the parent's listing was inserted
+                Integer parentId = rel != null ? dirIds.get(rel) : null;
+                if (parentId == null) return;
+                mtimes[parentId] = parent.mtime;
+                for (ParallelFileWalker.Entry e : entries) {
+                    insert(parentId, e.name, e.isDirectory, e.isDirectory ? 0 : e.size, e.isDirectory ? UNLISTED : e.mtime);
+                }
+            }
+        }, () -> closed);
+    }
+
+    /** Re-lists one directory and applies the difference. Runs on the worker. */
+    private void refreshDir(File dir) {
+        String rel = relativePath(dir);
+        if (rel == null) return;
+        Integer dirId;
+        synchronized (this) {
+            dirId = dirIds.get(rel);
+        }
+        if (dirId == null) {
+            // Not indexed yet: the change that created it is in the parent
+            File parent = dir.getParentFile();
+            if (parent != null && !rel.isEmpty()) refreshDir(parent);
+            return;
+        }
+
+        ParallelFileWalker.Entry self = ParallelFileWalker.stat(dir);
+        List<ParallelFileWalker.Entry> entries = self != null ? ParallelFileWalker.list(dir, false) : null;
+        if (entries == null) {
+            if (self == null && dirId != 0) {
+                synchronized (this) {
+                    remove(dirId);
+                }
+            }
+            return;
+        }
+        HashMap<String, ParallelFileWalker.Entry> listed = new HashMap<>();
+        for (ParallelFileWalker.Entry e : entries) listed.put(e.name, e);
+
+        boolean newDirs = false;
+        synchronized (this) {
+            mtimes[dirId] = self.mtime;
+            IntList current = children.get(dirId);
+            if (current != null) {
+                for (int i = current.size - 1; i >= 0; i--) {
+                    int id = current.items[i];
+                    ParallelFileWalker.Entry e = listed.remove(names[id]);
+                    if (e == null || e.isDirectory != dirs[id]) {
+                        remove(id);
+                        if (e != null) listed.put(e.name, e);
+                    } else if (!dirs[id]) {
+                        sizes[id] = e.size;
+                        mtimes[id] = e.mtime;
+                    }
+                }
+            }
+            for (ParallelFileWalker.Entry e : listed.values()) {
+                insert(dirId, e.name, e.isDirectory, e.isDirectory ? 0 : e.size, e.isDirectory ? UNLISTED : e.mtime);
+                newDirs |= e.isDirectory;
+            }
+        }
+        // New directories are filled in by the same pass that lists everything below
+        if (newDirs) {
+            for (ParallelFileWalker.Entry e : listed.values()) {
+                if (e.isDirectory && !scanSubtree(new File(e.path))) break;
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /** Re-lists every directory whose mtime changed since it was indexed. Runs on the worker. */
+    private void revalidate() {
+        List<String> paths;
+        synchronized (this) {
+            paths = new ArrayList<>(dirIds.keySet());
+        }
+        // Parents first, so a removed subtree is not visited
+        paths.sort((a, b) -> Integer.compare(a.length(), b.length()));
+        int changed = 0;
+        for (String rel : paths) {
+            Integer id;
+            synchronized (this) {
+                id = dirIds.get(rel);
+                if (id == null) continue;
+            }
+            File dir = rel.isEmpty() ? root : new File(root, rel);
+            long stored;
+            synchronized (this) {
+                stored = mtimes[id];
+            }
+            ParallelFileWalker.Entry now = ParallelFileWalker.stat(dir);
+            if (now == null || now.mtime != stored) {
+                refreshDir(dir);
+                changed++;
+            }
+        }
+        if (changed > 0) android.util.Log.d("WebDavNative", "File index: " + changed + " directories changed");
+    }
+
+    /** Rewrites the arrays without removed entries once they make up a quarter of the index. */
+    private void compactIfNeeded() {
+        synchronized (this) {
+            if (removed < 10_000 || removed * 4 < count) return;
+        }
+        File tmp = new File(store.getPath() + ".compact");
+        try {
+            write(tmp);
+            synchronized (this) {
+                clear();
+                read(tmp);
+            }
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "File index compaction failed: " + e.getMessage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private synchronized void scheduleSave() {
+        // After shutdown() the final save it queued covers this
+        if (closed || (saveTask != null && !saveTask.isDone())) return;
+        saveTask = worker.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void save() {
+        if (!ready) return;
+        File tmp = new File(store.getPath() + ".tmp");
+        try {
+            write(tmp);
+            if (!tmp.renameTo(store)) throw new IOException("Failed to replace " + store.getName());
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "File index save failed: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /** Live entries in id order, so parents always precede their children. */
+    private void write(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) parent.mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536))) {
+            synchronized (this) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(root.getAbsolutePath());
+                out.writeInt(count - removed);
+                int[] renumbered = new int[count];
+                int next = 0;
+                for (int id = 0; id < count; id++) {
+                    if (names[id] == null) continue;
+                    renumbered[id] = next++;
+                    out.writeInt(parents[id] < 0 ? -1 : renumbered[parents[id]]);
+                    out.writeUTF(names[id]);
+                    out.writeBoolean(dirs[id]);
+                    out.writeLong(sizes[id]);
+                    out.writeLong(mtimes[id]);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    private boolean load() {
+        if (!store.exists()) return false;
+        try {
+            synchronized (this) {
+                clear();
+                if (read(store)) return true;
+                clear();
+                return false;
+            }
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Dropping unreadable file index: " + e.getMessage());
+            synchronized (this) {
+                clear();
+            }
+            return false;
+        }
+    }
+
+    /** Caller holds the lock and has cleared the index. @return false if the file is for another format or root. */
+    private boolean read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return false;
+            if (!root.getAbsolutePath().equals(in.readUTF())) return false;
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                int parent = in.readInt();
+                String name = in.readUTF();
+                boolean dir = in.readBoolean();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                insert(parent, name, dir, size, mtime);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.android.drive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * Content hashes of local files, kept on disk so a file is hashed once per version. An entry is
+ * keyed by algorithm and path and only counts while the file still has the size and mtime it was
+ * hashed at. The whole cache is one small text file, loaded on first use and rewritten by
+ * {@link #save()} via a temp file and rename.
+ */
+final class HashCache {
+    /** Algorithm name accepted next to the {@link MessageDigest} ones. */
+    static final String ADLER32 = "ADLER32";
+
+    private static final class Record {
+        final long size;
+        final long mtime;
+        final String hex;
+
+        Record(long size, long mtime, String hex) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hex = hex;
+        }
+    }
+
+    private final File file;
+    private final int maxEntries;
+
+    // Guarded by this
+    private LinkedHashMap<String, Record> records;
+    private boolean dirty;
+
+    HashCache(File file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /** @return the cached hex digest of {@code source}, or null if missing or stale. */
+    synchronized String get(File source, String algorithm) {
+        Record r = records().get(algorithm + '\t' + source.getAbsolutePath());
+        if (r == null || r.size != source.length() || r.mtime != source.lastModified()) return null;
+        return r.hex;
+    }
+
+    /** Remembers a digest computed elsewhere, e.g. while the file was being uploaded. */
+    synchronized void put(File source, String algorithm, long size, long mtime, String hex) {
+        records().put(algorithm + '\t' + source.getAbsolutePath(), new Record(size, mtime, hex));
+        dirty = true;
+    }
+
+    /** @return the hex digest of {@code source}, computing and caching it if needed. */
+    String digest(File source, String algorithm) throws IOException {
+        String cached = get(source, algorithm);
+        if (cached != null) return cached;
+        long size = source.length();
+        long mtime = source.lastModified();
+        String hex = compute(source, algorithm);
+        // A file that changed while it was read gets hashed again next time
+        if (source.length() == size && source.lastModified() == mtime) put(source, algorithm, size, mtime, hex);
+        return hex;
+    }
+
+    synchronized void save() {
+        if (!dirty) return;
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Record> e : records.entrySet()) {
+            int tab = e.getKey().indexOf('\t');
+            Record r = e.getValue();
+            out.append(e.getKey(), 0, tab).append('\t').append(r.size).append('\t').append(r.mtime).append('\t')
+                    .append(r.hex).append(e.getKey(), tab, e.getKey().length()).append('\n');
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            File parent = file.getParentFile();
+            if (parent != null) parent.mkdirs();
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(out.toString().getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) throw new IOException("Failed to replace " + file.getName());
+            dirty = false;
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Hash cache write failed: " + e.getMessage());
+        }
+    }
+
+    /** @return a fresh digest for {@code algorithm}, or null if it is not a MessageDigest algorithm. */
+    static MessageDigest newDigest(String algorithm) {
+        if (ADLER32.equals(algorithm)) return null;
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported hash algorithm: " + algorithm);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static String hex(Adler32 adler) {
+        String s = Long.toHexString(adler.getValue());
+        return "00000000".substring(s.length()) + s;
+    }
+
+    private static String compute(File source, String algorithm) throws IOException {
+        MessageDigest md = newDigest(algorithm);
+        Adler32 adler = md == null ? new Adler32() : null;
+        byte[] buffer = new byte[65536];
+        try (InputStream in = new FileInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (md != null) md.update(buffer, 0, read);
+                else adler.update(buffer, 0, read);
+            }
+        }
+        return md != null ? hex(md.digest()) : hex(adler);
+    }
+
+    private LinkedHashMap<String, Record> records() {
+        if (records != null) return records;
+        records = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (!file.exists()) return records;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // algorithm, size, mtime, hex, path; the path may itself contain tabs
+                String[] f = line.split("\t", 5);
+                if (f.length < 5) continue;
+                try {
+                    records.put(f[0] + '\t' + f[4], new Record(Long.parseLong(f[1]), Long.parseLong(f[2]), f[3]));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Hash cache unreadable: " + e.getMessage());
+        }
+        return records;
+    }
+}
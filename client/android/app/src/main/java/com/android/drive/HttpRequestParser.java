@@ -0,0 +1,314 @@
+package com.android.drive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x request-head parser for {@link LocalFileServer}.
+ *
+ * It works directly on the connection's heap buffer and resumes where the previous call stopped,
+ * so a head that trickles in over several reads is scanned once. Header names are matched
+ * case-insensitively against pre-encoded byte constants and values are decoded in place, so the
+ * only allocation per request is the decoded path string.
+ */
+final class HttpRequestParser {
+    static final int NEED_MORE = 0;
+    static final int DONE = 1;
+    static final int ERROR = 2;
+
+    private static final int MAX_HEADER_LINES = 100;
+    /** Range headers with more specs than this are ignored and answered with the full body. */
+    static final int MAX_RANGES = 16;
+
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] CONNECTION = ascii("connection");
+    private static final byte[] RANGE = ascii("range");
+    private static final byte[] IF_NONE_MATCH = ascii("if-none-match");
+    private static final byte[] IF_MODIFIED_SINCE = ascii("if-modified-since");
+    private static final byte[] IF_RANGE = ascii("if-range");
+    private static final byte[] ACCESS_TOKEN = ascii("x-access-token");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] BYTES_UNIT = ascii("bytes=");
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+
+    private static final String[] METHODS = {"GET", "HEAD", "PUT", "OPTIONS", "POST", "DELETE"};
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+    static {
+        for (int i = 0; i < METHODS.length; i++) METHOD_BYTES[i] = ascii(METHODS[i]);
+    }
+
+    private HttpRequestParser() {}
+
+    /** Parsed request head plus the scan position; one instance per connection, reset between requests. */
+    static final class Request {
+        String method;
+        /** Percent-decoded request target, including any query string. */
+        String path;
+        /** Raw text after the first '?', or null. */
+        String query;
+        /** Decoded target up to the first '?'; the same instance as {@link #path} when there is no query. */
+        String pathOnly;
+        boolean keepAlive;
+        long contentLength;
+        /**
+         * Number of byte-range specs in {@link #rangeFirst}/{@link #rangeLast}, or 0 when there is no
+         * usable Range header. A spec with first == -1 is a suffix of {@code last} bytes; last == -1
+         * means open-ended.
+         */
+        int rangeCount;
+        final long[] rangeFirst = new long[MAX_RANGES];
+        final long[] rangeLast = new long[MAX_RANGES];
+        /** Conditional headers; only materialised as Strings when the client sends them. */
+        String ifNoneMatch;
+        String ifModifiedSince;
+        String ifRange;
+        /** {@code X-Access-Token}, the alternative to a {@code token} query parameter. */
+        String accessToken;
+        /** Offset just past the blank line that ends the head. */
+        int headerEnd;
+
+        private int scanPos;
+        private int lineStart;
+        private int lines;
+        private byte[] decodeBuf = new byte[512];
+
+        void reset() {
+            method = null;
+            path = null;
+            query = null;
+            pathOnly = null;
+            keepAlive = false;
+            contentLength = -1;
+            rangeCount = 0;
+            ifNoneMatch = null;
+            ifModifiedSince = null;
+            ifRange = null;
+            accessToken = null;
+            headerEnd = 0;
+            scanPos = 0;
+            lineStart = 0;
+            lines = 0;
+        }
+    }
+
+    /**
+     * Scans {@code buf[0, position)} for a complete request head. {@code buf} must be a heap buffer
+     * in write mode; it is not modified. Call {@link Request#reset()} before the first call for
+     * each new request.
+     */
+    static int parse(ByteBuffer buf, Request req) {
+        byte[] a = buf.array();
+        int base = buf.arrayOffset();
+        int limit = buf.position();
+
+        for (int i = req.scanPos; i < limit; i++) {
+            if (a[base + i] != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > req.lineStart && a[base + lineEnd - 1] == '\r') lineEnd--;
+            int start = req.lineStart;
+            req.lineStart = i + 1;
+
+            if (req.lines++ == 0) {
+                if (!parseRequestLine(a, base + start, base + lineEnd, req)) return ERROR;
+            } else if (lineEnd == start) {
+                req.headerEnd = i + 1;
+                req.scanPos = i + 1;
+                return DONE;
+            } else {
+                if (req.lines > MAX_HEADER_LINES) return ERROR;
+                if (!parseHeader(a, base + start, base + lineEnd, req)) return ERROR;
+            }
+        }
+        req.scanPos = limit;
+        return NEED_MORE;
+    }
+
+    private static boolean parseRequestLine(byte[] a, int from, int to, Request req) {
+        int sp1 = indexOf(a, from, to, (byte) ' ');
+        if (sp1 < 0) return false;
+        int sp2 = indexOf(a, sp1 + 1, to, (byte) ' ');
+        int targetEnd = sp2 < 0 ? to : sp2;
+
+        req.method = null;
+        for (int m = 0; m < METHOD_BYTES.length; m++) {
+            if (regionEquals(a, from, sp1, METHOD_BYTES[m], false)) {
+                req.method = METHODS[m];
+                break;
+            }
+        }
+        if (req.method == null) req.method = new String(a, from, sp1 - from, StandardCharsets.US_ASCII);
+
+        if (!decodeTarget(a, sp1 + 1, targetEnd, req)) return false;
+        // HTTP/1.1 is persistent unless told otherwise; 1.0 only when asked
+        req.keepAlive = sp2 >= 0 && regionEquals(a, sp2 + 1, to, HTTP_1_1, false);
+        return true;
+    }
+
+    /** Percent-decodes the target as UTF-8. '+' is kept literally since this is a path, not a form. */
+    private static boolean decodeTarget(byte[] a, int from, int to, Request req) {
+        if (to <= from) return false;
+        if (req.decodeBuf.length < to - from) req.decodeBuf = new byte[to - from];
+        byte[] out = req.decodeBuf;
+        int n = 0;
+        int queryAt = -1;
+        int decodedQueryAt = -1;
+        for (int i = from; i < to; i++) {
+            byte b = a[i];
+            if (b == '?' && queryAt < 0) {
+                queryAt = i;
+                decodedQueryAt = n;
+            }
+            if (b == '%') {
+                if (i + 2 >= to) return false;
+                int hi = hexValue(a[i + 1]);
+                int lo = hexValue(a[i + 2]);
+                if (hi < 0 || lo < 0) return false;
+                out[n++] = (byte) ((hi << 4) | lo);
+                i += 2;
+            } else {
+                out[n++] = b;
+            }
+        }
+        req.path = new String(out, 0, n, StandardCharsets.UTF_8);
+        if (queryAt < 0) {
+            req.query = null;
+            req.pathOnly = req.path;
+        } else {
+            req.query = new String(a, queryAt + 1, to - queryAt - 1, StandardCharsets.US_ASCII);
+            req.pathOnly = new String(out, 0, decodedQueryAt, StandardCharsets.UTF_8);
+        }
+        return true;
+    }
+
+    private static boolean parseHeader(byte[] a, int from, int to, Request req) {
+        int colon = indexOf(a, from, to, (byte) ':');
+        if (colon <= from) return false;
+        int vs = colon + 1;
+        int ve = to;
+        while (vs < ve && (a[vs] == ' ' || a[vs] == '\t')) vs++;
+        while (ve > vs && (a[ve - 1] == ' ' || a[ve - 1] == '\t')) ve--;
+
+        if (regionEquals(a, from, colon, CONTENT_LENGTH, true)) {
+            long len = parseLong(a, vs, ve);
+            if (len < 0) return false;
+            req.contentLength = len;
+        } else if (regionEquals(a, from, colon, CONNECTION, true)) {
+            parseConnection(a, vs, ve, req);
+        } else if (regionEquals(a, from, colon, RANGE, true)) {
+            parseRange(a, vs, ve, req);
+        } else if (regionEquals(a, from, colon, IF_NONE_MATCH, true)) {
+            req.ifNoneMatch = new String(a, vs, ve - vs, StandardCharsets.ISO_8859_1);
+        } else if (regionEquals(a, from, colon, IF_MODIFIED_SINCE, true)) {
+            req.ifModifiedSince = new String(a, vs, ve - vs, StandardCharsets.ISO_8859_1);
+        } else if (regionEquals(a, from, colon, IF_RANGE, true)) {
+            req.ifRange = new String(a, vs, ve - vs, StandardCharsets.ISO_8859_1);
+        } else if (regionEquals(a, from, colon, ACCESS_TOKEN, true)) {
+            req.accessToken = new String(a, vs, ve - vs, StandardCharsets.ISO_8859_1);
+        }
+        return true;
+    }
+
+    private static void parseConnection(byte[] a, int from, int to, Request req) {
+        int tokenStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i < to && a[i] != ',') continue;
+            int s = tokenStart;
+            int e = i;
+            while (s < e && a[s] == ' ') s++;
+            while (e > s && a[e - 1] == ' ') e--;
+            if (regionEquals(a, s, e, CLOSE, true)) req.keepAlive = false;
+            else if (regionEquals(a, s, e, KEEP_ALIVE, true)) req.keepAlive = true;
+            tokenStart = i + 1;
+        }
+    }
+
+    /**
+     * Parses a {@code bytes=} range set into the request. Specs are validated syntactically only;
+     * a header that does not parse, or has too many specs, is ignored as if absent.
+     */
+    private static void parseRange(byte[] a, int from, int to, Request req) {
+        req.rangeCount = 0;
+        if (!startsWith(a, from, to, BYTES_UNIT)) return;
+        int count = 0;
+        int i = from + BYTES_UNIT.length;
+        while (i <= to) {
+            int end = indexOf(a, i, to, (byte) ',');
+            if (end < 0) end = to;
+            int s = i;
+            int e = end;
+            while (s < e && (a[s] == ' ' || a[s] == '\t')) s++;
+            while (e > s && (a[e - 1] == ' ' || a[e - 1] == '\t')) e--;
+            i = end + 1;
+            if (s == e) continue; // empty list elements are allowed
+
+            int dash = indexOf(a, s, e, (byte) '-');
+            if (dash < 0 || count == MAX_RANGES) return;
+            long first;
+            long last;
+            if (dash == s) {
+                first = -1;
+                last = parseLong(a, dash + 1, e);
+                if (last < 0) return;
+            } else {
+                first = parseLong(a, s, dash);
+                last = dash + 1 == e ? -1 : parseLong(a, dash + 1, e);
+                if (first < 0 || (dash + 1 != e && (last < 0 || last < first))) return;
+            }
+            req.rangeFirst[count] = first;
+            req.rangeLast[count] = last;
+            count++;
+        }
+        req.rangeCount = count;
+    }
+
+    /** @return the non-negative decimal value of {@code a[from, to)}, or -1 if it is not one. */
+    static long parseLong(byte[] a, int from, int to) {
+        if (to <= from || to - from > 18) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = a[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    static int indexOf(byte[] a, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (a[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /** Compares {@code a[from, to)} with {@code expected}; with {@code ignoreCase}, expected must be lower-case. */
+    static boolean regionEquals(byte[] a, int from, int to, byte[] expected, boolean ignoreCase) {
+        if (to - from != expected.length) return false;
+        return startsWith(a, from, to, expected, ignoreCase);
+    }
+
+    static boolean startsWith(byte[] a, int from, int to, byte[] prefix) {
+        return startsWith(a, from, to, prefix, true);
+    }
+
+    private static boolean startsWith(byte[] a, int from, int to, byte[] prefix, boolean ignoreCase) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            int b = a[from + i];
+            if (ignoreCase && b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,217 @@
+package com.android.drive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Remote directory listings from {@code listRemote}, keyed by drive and collection URL, in a
+ * memory LRU bounded by total entry count in front of a {@link DiskLruCache}.
+ *
+ * A listing is stored with the collection's etag and ctag as read by a Depth-0 PROPFIND issued
+ * before the listing itself, so the stored validator is never newer than the entries. A later
+ * Depth-0 returning the same validator means the listing can be reused as is.
+ */
+final class ListingCache {
+    private static final int FORMAT_VERSION = 2;
+
+    static final class Listing {
+        final String etag;
+        final String ctag;
+        final List<PropfindParser.Entry> entries;
+        /** When the validator was last confirmed against the server. */
+        volatile long validatedAt;
+
+        Listing(String etag, String ctag, List<PropfindParser.Entry> entries, long validatedAt) {
+            this.etag = etag;
+            this.ctag = ctag;
+            this.entries = Collections.unmodifiableList(entries);
+            this.validatedAt = validatedAt;
+        }
+
+        boolean hasValidator() {
+            return etag != null || ctag != null;
+        }
+
+        /** @param current the collection as returned by a Depth-0 PROPFIND */
+        boolean matches(PropfindParser.Entry current) {
+            if (!hasValidator() || current == null) return false;
+            if (ctag != null && current.ctag != null) return ctag.equals(current.ctag);
+            return etag != null && etag.equals(current.etag);
+        }
+    }
+
+    private final DiskLruCache disk;
+    private final int maxMemoryEntries;
+    // Guarded by this
+    private final LinkedHashMap<String, Listing> memory = new LinkedHashMap<>(32, 0.75f, true);
+    private int memoryEntries;
+
+    ListingCache(File dir, long maxDiskBytes, int maxMemoryEntries) {
+        this.disk = new DiskLruCache(dir, maxDiskBytes);
+        this.maxMemoryEntries = maxMemoryEntries;
+    }
+
+    /**
+     * Who a listing was fetched as: the drive, or else the Authorization header, hashed so the
+     * credential itself is never stored. Two accounts on one server see different trees, so
+     * their listings must not share keys. Empty for anonymous requests.
+     */
+    static String scope(String driveId, Map<String, String> headers) {
+        String identity = null;
+        if (driveId != null) {
+            identity = "drive\n" + driveId;
+        } else if (headers != null) {
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                if ("Authorization".equalsIgnoreCase(e.getKey())) identity = "auth\n" + e.getValue();
+            }
+        }
+        return identity != null ? DiskLruCache.hashKey(identity) : "";
+    }
+
+    /**
+     * Key of the listing of {@code url} as seen by {@code scope}. The URL is normalised so that
+     * {@code /dir} and {@code /dir/} share one listing.
+     */
+    static String key(String scope, String url) {
+        return scope + " " + normalize(url);
+    }
+
+    /** Key of the collection containing {@code url}, or null for a root. */
+    static String parentKey(String scope, String url) {
+        String parent = parentUrl(url);
+        return parent != null ? scope + " " + parent : null;
+    }
+
+    /** Normalised URL of the collection containing {@code url}, or null for a root. */
+    static String parentUrl(String url) {
+        String key = normalize(url);
+        int root = key.indexOf('/', key.indexOf("://") + 3);
+        if (root < 0 || root == key.length() - 1) return null;
+        int slash = key.lastIndexOf('/');
+        return slash == root ? key.substring(0, root + 1) : key.substring(0, slash);
+    }
+
+    private static String normalize(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        if (parsed == null) return url;
+        String path = parsed.encodedPath();
+        if (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        return parsed.scheme() + "://" + parsed.host() + ":" + parsed.port() + path;
+    }
+
+    Listing get(String key) {
+        synchronized (this) {
+            Listing listing = memory.get(key);
+            if (listing != null) return listing;
+        }
+        File file = disk.get(DiskLruCache.hashKey(key));
+        if (file == null) return null;
+        try {
+            Listing listing = read(file, key);
+            if (listing == null) return null;
+            remember(key, listing);
+            return listing;
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Dropping unreadable listing for " + key + ": " + e.getMessage());
+            disk.remove(DiskLruCache.hashKey(key));
+            return null;
+        }
+    }
+
+    void put(String key, Listing listing) {
+        remember(key, listing);
+        if (!listing.hasValidator()) return; // Could never be revalidated after a restart
+        try {
+            disk.put(DiskLruCache.hashKey(key), target -> write(target, key, listing));
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Failed to persist listing for " + key + ": " + e.getMessage());
+        }
+    }
+
+    void invalidate(String key) {
+        if (key == null) return;
+        synchronized (this) {
+            Listing removed = memory.remove(key);
+            if (removed != null) memoryEntries -= removed.entries.size();
+        }
+        disk.remove(DiskLruCache.hashKey(key));
+    }
+
+    private synchronized void remember(String key, Listing listing) {
+        Listing previous = memory.put(key, listing);
+        if (previous != null) memoryEntries -= previous.entries.size();
+        memoryEntries += listing.entries.size();
+        Iterator<Map.Entry<String, Listing>> it = memory.entrySet().iterator();
+        while (memoryEntries > maxMemoryEntries && it.hasNext()) {
+            Map.Entry<String, Listing> eldest = it.next();
+            if (eldest.getValue() == listing) continue;
+            memoryEntries -= eldest.getValue().entries.size();
+            it.remove();
+        }
+    }
+
+    private static void write(File target, String key, Listing listing) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 64 * 1024))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            writeNullable(out, listing.etag);
+            writeNullable(out, listing.ctag);
+            out.writeLong(listing.validatedAt);
+            out.writeInt(listing.entries.size());
+            for (PropfindParser.Entry e : listing.entries) {
+                out.writeUTF(e.href);
+                out.writeBoolean(e.isCollection);
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                writeNullable(out, e.etag);
+                writeNullable(out, e.contentType);
+            }
+        }
+    }
+
+    /** @return the listing, or null if the file belongs to another key or an older format. */
+    private static Listing read(File file, String key) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) return null;
+            String etag = readNullable(in);
+            String ctag = readNullable(in);
+            long validatedAt = in.readLong();
+            int count = in.readInt();
+            List<PropfindParser.Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                PropfindParser.Entry e = new PropfindParser.Entry();
+                e.href = in.readUTF();
+                e.isCollection = in.readBoolean();
+                e.size = in.readLong();
+                e.mtime = in.readLong();
+                e.etag = readNullable(in);
+                e.contentType = readNullable(in);
+                entries.add(e);
+            }
+            return new Listing(etag, ctag, entries, validatedAt);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
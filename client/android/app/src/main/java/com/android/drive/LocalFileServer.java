@@ -0,0 +1,1169 @@
+package com.android.drive;
+
+import android.content.Context;
+import android.os.Environment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback HTTP server that exposes external storage and the app cache dir to the WebView.
+ *
+ * Sockets are non-blocking and multiplexed over a couple of selector threads ({@link EventLoop}),
+ * so idle or slow connections cost a {@link Connection} object rather than a thread. Anything that
+ * touches the filesystem metadata or writes to disk (path resolution, opening files, PUT bodies)
+ * runs on a separate worker pool; the event loop only moves bytes between sockets and open files.
+ *
+ * Any app on the device can reach a loopback port. {@code /remote/} (which attaches drive
+ * credentials) and {@code /thumb/} therefore need the per-launch {@link #getToken() token}, as a
+ * {@code token} query parameter or an {@code X-Access-Token} header, and CORS is granted to the
+ * WebView's origin only.
+ */
+class LocalFileServer {
+    private static final String TAG = "WebDavNative";
+    private static final int HEADER_BUFFER_SIZE = 16 * 1024;
+    private static final int BODY_CHUNK_SIZE = 64 * 1024;
+    private static final long SLOW_LOOP_NANOS = 50_000_000L;
+    // Upper bound on body bytes pushed to one socket per loop turn, so a fast reader
+    // streaming a large file cannot starve the other connections on the same loop.
+    private static final long MAX_WRITE_PER_TURN = 4L * 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MS = 15_000;
+    private static final long STALL_TIMEOUT_MS = 60_000;
+    private static final int MAX_REQUESTS_PER_CONNECTION = 1000;
+    // Cache-dir artifacts (temp uploads, thumbnails) get unique names and are never rewritten
+    // in place; anything on shared storage can change under us and must be revalidated.
+    static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+    static final String CACHE_REVALIDATE = "no-cache";
+
+    private static final ThreadLocal<java.text.SimpleDateFormat> HTTP_DATE = new ThreadLocal<java.text.SimpleDateFormat>() {
+        @Override
+        protected java.text.SimpleDateFormat initialValue() {
+            java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", java.util.Locale.US);
+            format.setTimeZone(java.util.TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    // Android only gained the covariant ByteBuffer overrides in later API levels.
+    // Calling through Buffer keeps the bytecode valid on minSdk devices.
+    static void flip(ByteBuffer buf) { ((Buffer) buf).flip(); }
+    static void clear(ByteBuffer buf) { ((Buffer) buf).clear(); }
+    static void limit(ByteBuffer buf, int limit) { ((Buffer) buf).limit(limit); }
+    static void position(ByteBuffer buf, int position) { ((Buffer) buf).position(position); }
+
+    private final Context context;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    private final BufferPool headerBuffers = new BufferPool(HEADER_BUFFER_SIZE, 64);
+    private final BufferPool bodyBuffers = new BufferPool(BODY_CHUNK_SIZE, 16);
+    private final ThumbnailCache thumbnails;
+    private final RemoteFileCache remoteFiles;
+    private final int port;
+    private final String token;
+    private final String corsHeader;
+    private volatile boolean isRunning = true;
+    private volatile boolean zeroCopyEnabled = true;
+
+    /** @param allowedOrigin the WebView's origin, e.g. {@code https://localhost} */
+    public LocalFileServer(Context context, RemoteFileCache remoteFiles, String allowedOrigin) throws IOException {
+        this.context = context.getApplicationContext();
+        this.remoteFiles = remoteFiles;
+        byte[] secret = new byte[16];
+        new java.security.SecureRandom().nextBytes(secret);
+        token = HashCache.hex(secret);
+        corsHeader = "Access-Control-Allow-Origin: " + allowedOrigin + "\r\n";
+        thumbnails = new ThumbnailCache(new File(this.context.getCacheDir(), "thumbs"), 64L * 1024 * 1024);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        port = serverChannel.socket().getLocalPort();
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        loops = new EventLoop[Math.max(1, Math.min(2, cpus / 2))];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        workers = Executors.newFixedThreadPool(Math.max(4, cpus), r -> {
+            Thread t = new Thread(r, "LocalFileServer-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Random per launch; required by {@code /remote/} and {@code /thumb/}. */
+    public String getToken() {
+        return token;
+    }
+
+    public void start() throws IOException {
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public void stopServer() {
+        isRunning = false;
+        try { serverChannel.close(); } catch (Exception e) {}
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdownNow();
+    }
+
+    public boolean isZeroCopyEnabled() {
+        return zeroCopyEnabled;
+    }
+
+    public void setZeroCopyEnabled(boolean enabled) {
+        zeroCopyEnabled = enabled;
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    public EventLoop getLoop(int index) {
+        return loops[index];
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel ch;
+            try {
+                ch = serverChannel.accept();
+            } catch (IOException e) {
+                if (isRunning) e.printStackTrace();
+                return;
+            }
+            if (ch == null) return;
+            try {
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                try { ch.close(); } catch (IOException ignored) {}
+                continue;
+            }
+            EventLoop loop = loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+            loop.execute(() -> loop.register(ch));
+        }
+    }
+
+    /**
+     * One selector thread. Tasks posted from workers are drained at the top of each iteration,
+     * and the time spent handling a wakeup (tasks + ready keys) is recorded as the loop latency.
+     */
+    class EventLoop extends Thread {
+        final Selector selector;
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(BODY_CHUNK_SIZE);
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger connections = new AtomicInteger(0);
+        private long lastSweep = System.currentTimeMillis();
+
+        private volatile long iterations;
+        private volatile long lastLatencyNanos;
+        private volatile long maxLatencyNanos;
+        private volatile long avgLatencyNanos;
+
+        EventLoop(int index) throws IOException {
+            super("LocalFileServer-io-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                Connection conn = new Connection(ch, this);
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+                connections.incrementAndGet();
+            } catch (ClosedChannelException e) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        public int getConnectionCount() { return connections.get(); }
+        public long getIterations() { return iterations; }
+        public long getLastLatencyNanos() { return lastLatencyNanos; }
+        public long getMaxLatencyNanos() { return maxLatencyNanos; }
+        public long getAvgLatencyNanos() { return avgLatencyNanos; }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    if (isRunning) e.printStackTrace();
+                    break;
+                }
+                long start = System.nanoTime();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (Exception e) {
+                        conn.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        Object att = key.attachment();
+                        if (att instanceof Connection) ((Connection) att).checkTimeout(now);
+                    }
+                }
+
+                long elapsed = System.nanoTime() - start;
+                iterations++;
+                lastLatencyNanos = elapsed;
+                if (elapsed > maxLatencyNanos) maxLatencyNanos = elapsed;
+                avgLatencyNanos = avgLatencyNanos == 0 ? elapsed : avgLatencyNanos + (elapsed - avgLatencyNanos) / 16;
+                if (elapsed > SLOW_LOOP_NANOS) {
+                    android.util.Log.w(TAG, getName() + " slow iteration: " + (elapsed / 1_000_000) + " ms");
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                Object att = key.attachment();
+                if (att instanceof Connection) ((Connection) att).close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /** A response body pumped to the socket by the event loop. */
+    interface Body {
+        long remaining();
+
+        /** @return bytes written, 0 if the socket is full, -1 if the source ended early. */
+        long writeTo(SocketChannel out, ByteBuffer scratch) throws IOException;
+
+        /**
+         * Loop thread. Returns false if the next bytes are not available yet; the body then runs
+         * {@code resume} once they are. Local files are always ready.
+         */
+        default boolean ready(Runnable resume) {
+            return true;
+        }
+
+        void close();
+    }
+
+    /**
+     * Streams a region of an open file to the socket. By default this goes through
+     * {@link FileChannel#transferTo}, which the kernel turns into sendfile(2) and never
+     * copies the bytes into the Java heap. If that is disabled, or the platform rejects it,
+     * the body falls back to positional reads through the loop's scratch buffer.
+     */
+    static class FileBody implements Body {
+        final FileChannel channel;
+        long position;
+        long remaining;
+        boolean zeroCopy;
+
+        FileBody(FileChannel channel, long position, long length, boolean zeroCopy) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+            this.zeroCopy = zeroCopy;
+        }
+
+        @Override
+        public long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public long writeTo(SocketChannel out, ByteBuffer scratch) throws IOException {
+            if (zeroCopy) {
+                try {
+                    long n = channel.transferTo(position, remaining, out);
+                    if (n == 0 && position >= channel.size()) return -1;
+                    position += n;
+                    remaining -= n;
+                    return n;
+                } catch (IOException e) {
+                    if (!out.isOpen()) throw e;
+                    android.util.Log.w(TAG, "transferTo failed, falling back to stream copy: " + e.getMessage());
+                    zeroCopy = false;
+                }
+            }
+            clear(scratch);
+            if (remaining < scratch.capacity()) limit(scratch, (int) remaining);
+            int read = channel.read(scratch, position);
+            if (read <= 0) return -1;
+            flip(scratch);
+            int written = out.write(scratch);
+            position += written;
+            remaining -= written;
+            return written;
+        }
+
+        @Override
+        public void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * A {@code multipart/byteranges} body: each part's header block followed by its file region,
+     * then the closing delimiter. Regions are streamed from the shared channel like {@link FileBody},
+     * so nothing beyond the small part headers is buffered.
+     */
+    static class MultipartBody implements Body {
+        private final FileChannel channel;
+        private final ByteBuffer[] heads;
+        private final FileBody[] parts;
+        private final ByteBuffer trailer;
+        private int index;
+        private long remaining;
+
+        MultipartBody(FileChannel channel, String boundary, String contentType, long[][] ranges, long fileLength, boolean zeroCopy) {
+            this.channel = channel;
+            heads = new ByteBuffer[ranges.length];
+            parts = new FileBody[ranges.length];
+            for (int i = 0; i < ranges.length; i++) {
+                long first = ranges[i][0];
+                long last = ranges[i][1];
+                heads[i] = ByteBuffer.wrap(("\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: bytes " + first + "-" + last + "/" + fileLength + "\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                parts[i] = new FileBody(channel, first, last - first + 1, zeroCopy);
+                remaining += heads[i].remaining() + parts[i].remaining;
+            }
+            trailer = ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            remaining += trailer.remaining();
+        }
+
+        @Override
+        public long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public long writeTo(SocketChannel out, ByteBuffer scratch) throws IOException {
+            long n;
+            if (index < parts.length && heads[index].hasRemaining()) {
+                n = out.write(heads[index]);
+            } else if (index < parts.length) {
+                n = parts[index].writeTo(out, scratch);
+                if (n < 0) return -1;
+                if (parts[index].remaining == 0) index++;
+            } else {
+                n = out.write(trailer);
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /** @return the integer value of {@code name} in a raw query string, or {@code def}. */
+    static int queryInt(String query, String name, int def) {
+        String value = queryParam(query, name);
+        if (value == null) return def;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /** @return the raw value of {@code name} in a raw query string, or null. */
+    static String queryParam(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) return pair.substring(eq + 1);
+        }
+        return null;
+    }
+
+    static String formatHttpDate(long millis) {
+        return HTTP_DATE.get().format(new java.util.Date(millis));
+    }
+
+    /** @return epoch millis, or -1 if {@code text} is not an IMF-fixdate. */
+    static long parseHttpDate(String text) {
+        try {
+            return HTTP_DATE.get().parse(text).getTime();
+        } catch (java.text.ParseException e) {
+            return -1;
+        }
+    }
+
+    /** Weak comparison of {@code etag} against a comma-separated If-None-Match list. */
+    static boolean etagListMatches(String header, String etag) {
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        int start = 0;
+        while (start < header.length()) {
+            int comma = header.indexOf(',', start);
+            if (comma < 0) comma = header.length();
+            String tag = header.substring(start, comma).trim();
+            if (tag.equals("*")) return true;
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(opaque)) return true;
+            start = comma + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Streams a byte range of a remote file out of {@link RemoteFileCache} blocks. Each block is
+     * looked up and opened off the loop, on the worker pool or, when it has to be fetched first, on
+     * the cache's network pool; the connection sits with no interest ops meanwhile, and the opened
+     * block comes back through {@code resume}. The following block is prefetched whenever one is opened.
+     */
+    static class RemoteBody implements Body {
+        private final RemoteFileCache cache;
+        private final RemoteFileCache.RemoteFile file;
+        private final Executor opener;
+        private final boolean zeroCopy;
+        private long position;
+        private long remaining;
+        private FileBody current;
+        /** Set off the loop once the next block is open; taken by {@link #ready}. */
+        private volatile FileBody opened;
+        private volatile boolean opening;
+        private volatile boolean failed;
+        private volatile boolean closed;
+
+        RemoteBody(RemoteFileCache cache, RemoteFileCache.RemoteFile file, long first, long length, Executor opener, boolean zeroCopy) {
+            this.cache = cache;
+            this.file = file;
+            this.position = first;
+            this.remaining = length;
+            this.opener = opener;
+            this.zeroCopy = zeroCopy;
+        }
+
+        @Override
+        public long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public boolean ready(Runnable resume) {
+            if (failed || (current != null && current.remaining > 0)) return true;
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            FileBody next = opened;
+            if (next != null) {
+                opened = null;
+                current = next;
+                return true;
+            }
+            if (opening) return false;
+            opening = true;
+            long index = position / RemoteFileCache.BLOCK_SIZE;
+            long offset = position - index * RemoteFileCache.BLOCK_SIZE;
+            long length = remaining;
+            opener.execute(() -> open(index, offset, length, false, resume));
+            return false;
+        }
+
+        /** Off the loop: opens block {@code index}, fetching it first if needed, then resumes the loop. */
+        private void open(long index, long offset, long length, boolean fetched, Runnable resume) {
+            File block = cache.getCachedBlock(file, index);
+            if (block == null && !fetched) {
+                cache.fetchAsync(file, index, () -> open(index, offset, length, true, resume));
+                return;
+            }
+            if (block == null) {
+                failed = true;
+            } else {
+                try {
+                    FileBody body = new FileBody(new RandomAccessFile(block, "r").getChannel(), offset, Math.min(length, block.length() - offset), zeroCopy);
+                    opened = body;
+                    if (body.remaining < length && cache.getCachedBlock(file, index + 1) == null) {
+                        cache.fetchAsync(file, index + 1, null);
+                    }
+                } catch (IOException e) {
+                    // Evicted between lookup and open
+                    failed = true;
+                }
+            }
+            opening = false;
+            if (closed) {
+                // The response was abandoned while this ran
+                FileBody orphan = opened;
+                opened = null;
+                if (orphan != null) orphan.close();
+                return;
+            }
+            resume.run();
+        }
+
+        @Override
+        public long writeTo(SocketChannel out, ByteBuffer scratch) throws IOException {
+            if (failed || current == null) return -1;
+            long n = current.writeTo(out, scratch);
+            if (n > 0) {
+                position += n;
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            if (current != null) current.close();
+            FileBody orphan = opened;
+            opened = null;
+            if (orphan != null) orphan.close();
+        }
+    }
+
+    /**
+     * Resolves the request's range specs against the file length (RFC 7233 section 2.1).
+     * Returns null when the full representation should be sent, an empty array when no spec is
+     * satisfiable, and otherwise the sorted, coalesced [first, last] pairs.
+     */
+    static long[][] resolveRanges(HttpRequestParser.Request req, long fileLength) {
+        if (req.rangeCount == 0) return null;
+        long[][] ranges = new long[req.rangeCount][];
+        int n = 0;
+        for (int i = 0; i < req.rangeCount; i++) {
+            long first = req.rangeFirst[i];
+            long last = req.rangeLast[i];
+            if (first < 0) {
+                if (last == 0 || fileLength == 0) continue;
+                first = Math.max(0, fileLength - last);
+                last = fileLength - 1;
+            } else {
+                if (first >= fileLength) continue;
+                if (last < 0 || last >= fileLength) last = fileLength - 1;
+            }
+            ranges[n++] = new long[]{first, last};
+        }
+        if (n == 0) return new long[0][];
+
+        java.util.Arrays.sort(ranges, 0, n, (x, y) -> Long.compare(x[0], y[0]));
+        int merged = 0;
+        for (int i = 1; i < n; i++) {
+            if (ranges[i][0] <= ranges[merged][1] + 1) {
+                ranges[merged][1] = Math.max(ranges[merged][1], ranges[i][1]);
+            } else {
+                ranges[++merged] = ranges[i];
+            }
+        }
+        return java.util.Arrays.copyOf(ranges, merged + 1);
+    }
+
+    private enum State { READING_HEADERS, PROCESSING, READING_BODY, WRITING, CLOSED }
+
+    /**
+     * Per-socket state. Ownership alternates between the event loop and one worker: while a worker
+     * holds the connection its interest set is empty, and it hands back via {@link EventLoop#execute}.
+     *
+     * Connections are persistent. {@link #in} keeps any bytes received past the current request, so
+     * pipelined requests are answered in order once the current response has been flushed. When
+     * nothing is buffered the connection returns {@link #in} to the pool and holds no buffer while idle.
+     */
+    class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        SelectionKey key;
+        State state = State.READING_HEADERS;
+        ByteBuffer in;
+        long lastActivity = System.currentTimeMillis();
+        int requestCount;
+
+        final HttpRequestParser.Request request = new HttpRequestParser.Request();
+        boolean keepAlive;
+
+        // PUT state
+        File uploadFile;
+        FileOutputStream uploadStream;
+        long bodyRemaining;
+
+        // Response state
+        ByteBuffer head;
+        Body body;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            request.reset();
+        }
+
+        void onReadable() throws IOException {
+            if (state == State.READING_HEADERS) {
+                if (in == null) in = headerBuffers.acquire();
+                int n = channel.read(in);
+                if (n == -1) {
+                    close();
+                    return;
+                }
+                if (in.position() == 0) {
+                    releaseBuffer();
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                processBuffered();
+            } else if (state == State.READING_BODY) {
+                clear(in);
+                if (bodyRemaining >= 0 && bodyRemaining < in.capacity()) limit(in, (int) bodyRemaining);
+                int n = channel.read(in);
+                if (n == 0) return;
+                lastActivity = System.currentTimeMillis();
+                flip(in);
+                final boolean eof = n == -1;
+                state = State.PROCESSING;
+                key.interestOps(0);
+                workers.execute(() -> continueUpload(eof));
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (state == State.WRITING) flush();
+        }
+
+        /** Loop thread. Dispatches the next request if a complete header block is already buffered. */
+        private void processBuffered() {
+            int result = HttpRequestParser.parse(in, request);
+            if (result == HttpRequestParser.NEED_MORE) {
+                if (!in.hasRemaining()) {
+                    keepAlive = false;
+                    sendStatus("431 Request Header Fields Too Large");
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (result == HttpRequestParser.ERROR) {
+                keepAlive = false;
+                sendStatus("400 Bad Request");
+                return;
+            }
+
+            keepAlive = request.keepAlive;
+            // A body we do not read would be mistaken for the next pipelined request,
+            // and a PUT without a length is only delimited by the client closing.
+            if ("PUT".equals(request.method) ? request.contentLength == -1 : request.contentLength > 0) keepAlive = false;
+            requestCount++;
+            if (requestCount >= MAX_REQUESTS_PER_CONNECTION) keepAlive = false;
+
+            // Whatever follows the header block is the start of the request body
+            flip(in);
+            position(in, request.headerEnd);
+
+            state = State.PROCESSING;
+            key.interestOps(0);
+            workers.execute(this::handleRequest);
+        }
+
+        /** Runs on a worker thread. */
+        private void handleRequest() {
+            try {
+                String method = request.method;
+                // CORS preflight, answered for every path; it carries no token
+                if ("OPTIONS".equals(method)) {
+                    send(new StringBuilder("HTTP/1.1 200 OK\r\n").append(corsHeader).append("Access-Control-Allow-Methods: GET, PUT, OPTIONS\r\nAccess-Control-Allow-Headers: Content-Type, Range, If-None-Match, If-Modified-Since, If-Range, X-Access-Token\r\nContent-Length: 0\r\n"), null);
+                    return;
+                }
+                boolean remote = request.pathOnly.startsWith("/remote/");
+                if ((remote || request.pathOnly.startsWith("/thumb/")) && !hasToken()) {
+                    sendStatus("403 Forbidden");
+                    return;
+                }
+                if (remote) {
+                    serveRemote();
+                    return;
+                }
+                File root;
+                String relPath = request.pathOnly;
+                // /thumb/<path>?w=256 serves a downsampled JPEG of <path>
+                boolean thumbnail = relPath.startsWith("/thumb/");
+                if (thumbnail) relPath = relPath.substring(6);
+                if (relPath.startsWith("/cache/")) {
+                    root = context.getExternalCacheDir();
+                    relPath = relPath.substring(7);
+                } else {
+                    root = Environment.getExternalStorageDirectory();
+                }
+
+                File file = new File(root, relPath);
+
+                if (!file.getCanonicalPath().startsWith(root.getCanonicalPath())) {
+                    sendStatus("403 Forbidden");
+                    return;
+                }
+
+                if (thumbnail && !"GET".equals(method) && !"HEAD".equals(method)) {
+                    sendStatus("405 Method Not Allowed");
+                } else if ("PUT".equals(method)) {
+                    File parent = file.getParentFile();
+                    if (!parent.exists()) parent.mkdirs();
+                    uploadFile = file;
+                    uploadStream = new FileOutputStream(file);
+                    bodyRemaining = request.contentLength;
+                    writeUploadChunk();
+                    if (bodyRemaining == 0) {
+                        finishUpload(true);
+                    } else {
+                        // Everything buffered so far belonged to the body; read the rest in larger slices
+                        headerBuffers.release(in);
+                        in = bodyBuffers.acquire();
+                        loop.execute(this::resumeReading);
+                    }
+                } else {
+                    if (!file.exists() || !file.isFile()) {
+                        sendStatus("404 Not Found");
+                        return;
+                    }
+
+                    if (thumbnail) {
+                        File thumb = thumbnails.get(file, queryInt(request.query, "w", 256));
+                        if (thumb == null) {
+                            sendStatus("415 Unsupported Media Type");
+                        } else {
+                            // Cache hits touch the thumbnail's mtime, so validate against the source instead:
+                            // the cache key (the file name) already hashes its path, size, mtime and the width
+                            serveFile(thumb, "image/jpeg", CACHE_REVALIDATE, "\"" + thumb.getName() + "\"", file.lastModified());
+                        }
+                        return;
+                    }
+                    boolean immutable = request.pathOnly.startsWith("/cache/");
+                    serveFile(file, "application/octet-stream", immutable ? CACHE_IMMUTABLE : CACHE_REVALIDATE);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (uploadStream != null) {
+                    finishUpload(false);
+                } else {
+                    keepAlive = false;
+                    sendStatus("500 Internal Server Error");
+                }
+            }
+        }
+
+        /**
+         * Runs on a worker thread. Answers GET/HEAD for a regular file, honouring conditional
+         * headers (RFC 7232) and byte ranges (RFC 7233). The validator is derived from size and
+         * mtime, so a 304 costs one stat and no data reads.
+         */
+        private void serveFile(File file, String contentType, String cacheControl) throws IOException {
+            long lastModified = file.lastModified();
+            String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(file.length()) + "\"";
+            serveFile(file, contentType, cacheControl, etag, lastModified);
+        }
+
+        /** As above, with validators supplied by the caller for files whose mtime does not track their content. */
+        private void serveFile(File file, String contentType, String cacheControl, String etag, long lastModified) throws IOException {
+            String method = request.method;
+            long fileLength = file.length();
+            String lastModifiedText = formatHttpDate(lastModified);
+
+            StringBuilder validators = new StringBuilder();
+            validators.append("ETag: ").append(etag).append("\r\n");
+            validators.append("Last-Modified: ").append(lastModifiedText).append("\r\n");
+            validators.append("Cache-Control: ").append(cacheControl).append("\r\n");
+            validators.append(corsHeader);
+
+            if (isNotModified(etag, lastModified)) {
+                send(new StringBuilder("HTTP/1.1 304 Not Modified\r\n").append(validators), null);
+                return;
+            }
+
+            // If-Range: only serve the partial response when the client's copy is still current
+            boolean rangeAllowed = "GET".equals(method);
+            if (rangeAllowed && request.ifRange != null) {
+                String ifRange = request.ifRange;
+                rangeAllowed = ifRange.startsWith("\"") ? ifRange.equals(etag) : ifRange.equals(lastModifiedText);
+            }
+            long[][] ranges = rangeAllowed ? resolveRanges(request, fileLength) : null;
+
+            StringBuilder headers = new StringBuilder();
+            if (ranges != null && ranges.length == 0) {
+                headers.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+                headers.append("Content-Range: bytes */").append(fileLength).append("\r\n");
+                headers.append("Content-Length: 0\r\n");
+                headers.append(corsHeader);
+                send(headers, null);
+                return;
+            }
+
+            Body responseBody = null;
+            FileChannel fc = "HEAD".equals(method) ? null : new RandomAccessFile(file, "r").getChannel();
+            if (ranges == null) {
+                headers.append("HTTP/1.1 200 OK\r\n");
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+                headers.append("Content-Length: ").append(fileLength).append("\r\n");
+                if (fc != null) responseBody = new FileBody(fc, 0, fileLength, zeroCopyEnabled);
+            } else if (ranges.length == 1) {
+                long first = ranges[0][0];
+                long last = ranges[0][1];
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+                headers.append("Content-Length: ").append(last - first + 1).append("\r\n");
+                headers.append("Content-Range: bytes ").append(first).append("-").append(last).append("/").append(fileLength).append("\r\n");
+                responseBody = new FileBody(fc, first, last - first + 1, zeroCopyEnabled);
+            } else {
+                String boundary = "LFS" + Long.toHexString(System.nanoTime()) + Integer.toHexString(requestCount);
+                MultipartBody multipart = new MultipartBody(fc, boundary, contentType, ranges, fileLength, zeroCopyEnabled);
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Type: multipart/byteranges; boundary=").append(boundary).append("\r\n");
+                headers.append("Content-Length: ").append(multipart.remaining()).append("\r\n");
+                responseBody = multipart;
+            }
+            headers.append("Accept-Ranges: bytes\r\n");
+            headers.append(validators);
+            send(headers, responseBody);
+        }
+
+        /**
+         * Runs on a worker thread. Proxies {@code /remote/<driveId>/<path>} to a drive registered
+         * with {@link RemoteFileCache}. Only single ranges are honoured; a multi-range request gets
+         * the full body, which RFC 7233 permits.
+         */
+        private void serveRemote() throws IOException {
+            String method = request.method;
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                sendStatus("405 Method Not Allowed");
+                return;
+            }
+            String rest = request.pathOnly.substring("/remote/".length());
+            int slash = rest.indexOf('/');
+            if (remoteFiles == null || slash <= 0) {
+                sendStatus("404 Not Found");
+                return;
+            }
+
+            RemoteFileCache.RemoteFile file;
+            try {
+                file = remoteFiles.stat(rest.substring(0, slash), rest.substring(slash));
+            } catch (IOException e) {
+                android.util.Log.w(TAG, "Remote stat failed: " + e.getMessage());
+                sendStatus("502 Bad Gateway");
+                return;
+            }
+            if (file == null) {
+                sendStatus("404 Not Found");
+                return;
+            }
+
+            String etag = file.etag != null ? file.etag : "\"" + DiskLruCache.hashKey(file.validator) + "\"";
+            StringBuilder validators = new StringBuilder();
+            validators.append("ETag: ").append(etag).append("\r\n");
+            if (file.lastModified != null) validators.append("Last-Modified: ").append(file.lastModified).append("\r\n");
+            validators.append("Cache-Control: ").append(CACHE_REVALIDATE).append("\r\n");
+            validators.append(corsHeader);
+
+            boolean notModified = request.ifNoneMatch != null
+                    ? etagListMatches(request.ifNoneMatch, etag)
+                    : request.ifModifiedSince != null && request.ifModifiedSince.equals(file.lastModified);
+            if (notModified) {
+                send(new StringBuilder("HTTP/1.1 304 Not Modified\r\n").append(validators), null);
+                return;
+            }
+
+            boolean rangeAllowed = "GET".equals(method)
+                    && (request.ifRange == null || request.ifRange.equals(etag) || request.ifRange.equals(file.lastModified));
+            long[][] ranges = rangeAllowed ? resolveRanges(request, file.length) : null;
+            if (ranges != null && ranges.length > 1) ranges = null;
+
+            StringBuilder headers = new StringBuilder();
+            if (ranges != null && ranges.length == 0) {
+                headers.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+                headers.append("Content-Range: bytes */").append(file.length).append("\r\n");
+                headers.append("Content-Length: 0\r\n");
+                headers.append(corsHeader);
+                send(headers, null);
+                return;
+            }
+
+            long first = 0;
+            long length = file.length;
+            if (ranges == null) {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            } else {
+                first = ranges[0][0];
+                length = ranges[0][1] - first + 1;
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Range: bytes ").append(first).append("-").append(ranges[0][1]).append("/").append(file.length).append("\r\n");
+            }
+            headers.append("Content-Type: ").append(file.contentType != null ? file.contentType : "application/octet-stream").append("\r\n");
+            headers.append("Content-Length: ").append(length).append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\n");
+            headers.append(validators);
+            send(headers, "HEAD".equals(method) || length == 0 ? null : new RemoteBody(remoteFiles, file, first, length, workers, zeroCopyEnabled));
+        }
+
+        /** Whether the request carries {@link #token}, compared in constant time. */
+        private boolean hasToken() {
+            String given = request.accessToken != null ? request.accessToken : queryParam(request.query, "token");
+            return given != null && java.security.MessageDigest.isEqual(
+                    given.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /** RFC 7232 section 6: If-None-Match takes precedence, If-Modified-Since is compared at second precision. */
+        private boolean isNotModified(String etag, long lastModified) {
+            if (request.ifNoneMatch != null) {
+                return etagListMatches(request.ifNoneMatch, etag);
+            }
+            if (request.ifModifiedSince != null) {
+                long since = parseHttpDate(request.ifModifiedSince);
+                return since >= 0 && lastModified / 1000 <= since / 1000;
+            }
+            return false;
+        }
+
+        /** Runs on a worker thread with {@link #in} positioned over freshly read body bytes. */
+        private void continueUpload(boolean eof) {
+            try {
+                writeUploadChunk();
+                if (bodyRemaining == 0 || (eof && request.contentLength == -1)) {
+                    finishUpload(true);
+                } else if (eof) {
+                    finishUpload(false);
+                } else {
+                    loop.execute(this::resumeReading);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                finishUpload(false);
+            }
+        }
+
+        /** Writes the body bytes at the front of {@link #in}, leaving anything past the body in place. */
+        private void writeUploadChunk() throws IOException {
+            int bufferLimit = in.limit();
+            int n = in.remaining();
+            if (request.contentLength != -1 && n > bodyRemaining) {
+                n = (int) bodyRemaining;
+                limit(in, in.position() + n);
+            }
+            while (in.hasRemaining()) {
+                uploadStream.getChannel().write(in);
+            }
+            limit(in, bufferLimit);
+            if (request.contentLength != -1) bodyRemaining -= n;
+        }
+
+        private void finishUpload(boolean success) {
+            if (success) {
+                try { uploadStream.close(); } catch (Exception ignored) {}
+                uploadStream = null;
+            } else {
+                abortUpload();
+            }
+            if (success) {
+                send(new StringBuilder("HTTP/1.1 201 Created\r\n").append(corsHeader).append("Content-Length: 0\r\n"), null);
+            } else {
+                keepAlive = false;
+                sendStatus("500 Internal Server Error");
+            }
+        }
+
+        /** Closes the PUT target and deletes it, since its body never arrived in full. */
+        private void abortUpload() {
+            try { uploadStream.close(); } catch (Exception ignored) {}
+            uploadStream = null;
+            if (uploadFile.exists()) {
+                android.util.Log.d(TAG, "Deleting partial PUT file: " + uploadFile.getAbsolutePath());
+                uploadFile.delete();
+            }
+        }
+
+        /** Loop thread. */
+        private void resumeReading() {
+            if (state == State.CLOSED) {
+                // Closed while a worker was writing; the upload is ours again
+                if (uploadStream != null) abortUpload();
+                return;
+            }
+            state = State.READING_BODY;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void sendStatus(String status) {
+            send(new StringBuilder("HTTP/1.1 ").append(status).append("\r\nContent-Length: 0\r\n"), null);
+        }
+
+        /**
+         * Safe to call from any thread; the write itself happens on the loop. {@code headers} holds
+         * the status line and response headers, the connection headers and blank line are appended here.
+         */
+        private void send(StringBuilder headers, Body responseBody) {
+            if (keepAlive) {
+                headers.append("Connection: keep-alive\r\n");
+                headers.append("Keep-Alive: timeout=").append(IDLE_TIMEOUT_MS / 1000)
+                        .append(", max=").append(MAX_REQUESTS_PER_CONNECTION - requestCount).append("\r\n");
+            } else {
+                headers.append("Connection: close\r\n");
+            }
+            headers.append("\r\n");
+            ByteBuffer h = ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+            Runnable start = () -> {
+                if (state == State.CLOSED) {
+                    if (responseBody != null) responseBody.close();
+                    return;
+                }
+                head = h;
+                body = responseBody;
+                state = State.WRITING;
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            };
+            if (Thread.currentThread() == loop) start.run();
+            else loop.execute(start);
+        }
+
+        /** Loop thread. Writes as much of the pending response as the socket accepts. */
+        private void flush() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            while (head.hasRemaining()) {
+                if (channel.write(head) == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (body != null) {
+                long budget = MAX_WRITE_PER_TURN;
+                while (body.remaining() > 0) {
+                    if (!body.ready(this::resumeWriting)) {
+                        key.interestOps(0);
+                        return;
+                    }
+                    long n = body.writeTo(channel, loop.scratch);
+                    if (n < 0) {
+                        // Source shrank or failed; the declared Content-Length can no longer be honoured
+                        keepAlive = false;
+                        break;
+                    }
+                    budget -= n;
+                    if (n == 0 || budget <= 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            }
+            onResponseComplete();
+        }
+
+        /** Any thread. Continues a response whose body was waiting for data. */
+        private void resumeWriting() {
+            loop.execute(() -> {
+                if (state != State.WRITING) return;
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        /** Loop thread. Either closes or rewinds to read the next request on this socket. */
+        private void onResponseComplete() {
+            if (body != null) {
+                body.close();
+                body = null;
+            }
+            head = null;
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            state = State.READING_HEADERS;
+            request.reset();
+            // Keep pipelined bytes that arrived after the previous request
+            in.compact();
+            if (in.position() == 0) {
+                releaseBuffer();
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                processBuffered();
+            }
+        }
+
+        private void releaseBuffer() {
+            headerBuffers.release(in);
+            bodyBuffers.release(in);
+            in = null;
+        }
+
+        /** Loop thread. Called on each sweep to drop idle keep-alive sockets and stalled transfers. */
+        void checkTimeout(long now) {
+            long timeout = state == State.READING_HEADERS ? IDLE_TIMEOUT_MS : STALL_TIMEOUT_MS;
+            if (state != State.PROCESSING && now - lastActivity > timeout) {
+                close();
+            }
+        }
+
+        void close() {
+            if (state == State.CLOSED) return;
+            // While PROCESSING a worker owns the upload; resumeReading cleans up after it
+            boolean abort = uploadStream != null && state != State.PROCESSING;
+            state = State.CLOSED;
+            if (abort) abortUpload();
+            if (body != null) {
+                body.close();
+                body = null;
+            }
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            loop.connections.decrementAndGet();
+        }
+    }
+}
@@ -34,10 +34,10 @@ public class MainActivity extends BridgeActivity {
         super.onStart();
         if (getBridge() != null && getBridge().getWebView() != null) {
             android.webkit.WebSettings settings = getBridge().getWebView().getSettings();
-            settings.setCacheMode(android.webkit.WebSettings.LOAD_NO_CACHE);
+            // The local file server sends validators and Cache-Control, so let the WebView cache its responses
+            settings.setCacheMode(android.webkit.WebSettings.LOAD_DEFAULT);
             settings.setDomStorageEnabled(true);
             settings.setJavaScriptEnabled(true);
-            getBridge().getWebView().clearCache(true);
         }
     }
 }
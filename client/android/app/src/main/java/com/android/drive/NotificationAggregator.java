@@ -0,0 +1,261 @@
+package com.android.drive;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import androidx.core.app.NotificationCompat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single transfer notification. Transfers only record their progress here, which is cheap;
+ * a timer publishes one combined notification per {@link #PERIOD_MS} with the overall progress and
+ * speed, and skips the IPC to the notification service when nothing visible changed. The channel,
+ * content intent and builder are created once.
+ */
+final class NotificationAggregator {
+    static final String CHANNEL_ID = "file_ops_v2";
+    private static final long PERIOD_MS = 1000;
+
+    private static final class Progress {
+        final boolean upload;
+        volatile String name;
+        volatile long bytes;
+        volatile long total;
+
+        Progress(boolean upload) {
+            this.upload = upload;
+        }
+    }
+
+    private final Context context;
+    private final int notificationId;
+    private final NotificationManager manager;
+    private final ConcurrentHashMap<String, Progress> transfers = new ConcurrentHashMap<>();
+    /** Bytes moved by all transfers since creation; only ever grows, so speed survives finished transfers. */
+    private final AtomicLong moved = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Notifications");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this; volatile so update() can skip the lock once the timer runs
+    private volatile ScheduledFuture<?> tick;
+    private boolean channelCreated;
+    private PendingIntent contentIntent;
+    private boolean contentIntentResolved;
+    private NotificationCompat.Builder builder;
+    private String labelTitle;
+    private String labelText;
+    private int labelProgress;
+    private int labelMax;
+    private String lastShown;
+    private long lastMoved;
+    private long lastTickAt;
+
+    NotificationAggregator(Context context, int notificationId) {
+        this.context = context.getApplicationContext();
+        this.notificationId = notificationId;
+        this.manager = (NotificationManager) this.context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    /** Records progress of one transfer; {@code total <= 0} if unknown. */
+    void update(String key, boolean upload, String name, long bytes, long total) {
+        Progress p = transfers.get(key);
+        if (p == null) {
+            Progress created = new Progress(upload);
+            p = transfers.putIfAbsent(key, created);
+            if (p == null) p = created;
+        }
+        long delta = bytes - p.bytes;
+        if (delta > 0) moved.addAndGet(delta);
+        p.name = name;
+        p.bytes = bytes;
+        p.total = total;
+        if (tick == null) ensureTicking();
+    }
+
+    /** The transfer is done; it leaves the totals at the next publish. */
+    void finish(String key) {
+        transfers.remove(key);
+    }
+
+    /**
+     * Sets the caption JS shows for its own multi-file operations. It is the title while native
+     * transfers run, and the whole notification when none do.
+     */
+    synchronized void setLabel(String title, String text, int progress, int max) {
+        labelTitle = title;
+        labelText = text;
+        labelProgress = progress;
+        labelMax = max;
+        ensureTicking();
+    }
+
+    /** Shows {@code title} right away, e.g. as feedback for a cancel, until the next publish. */
+    synchronized void showNow(String title) {
+        lastShown = null;
+        post(title, "", 0, 0);
+    }
+
+    /** Drops the JS caption; removes the notification if no transfer is left either. */
+    synchronized void clearLabel() {
+        labelTitle = null;
+        labelText = null;
+        if (transfers.isEmpty()) clear();
+    }
+
+    /** Forgets every transfer and removes the notification. */
+    synchronized void clear() {
+        transfers.clear();
+        labelTitle = null;
+        labelText = null;
+        lastShown = null;
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+        manager.cancel(notificationId);
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    synchronized void ensureChannel() {
+        if (channelCreated || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+        // Use DEFAULT importance to ensure visibility in status bar.
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "File Operations", NotificationManager.IMPORTANCE_DEFAULT);
+        channel.setSound(null, null);
+        channel.enableVibration(false);
+        channel.setShowBadge(false);
+        manager.createNotificationChannel(channel);
+        channelCreated = true;
+    }
+
+    /** Opens the app's transfer view; null if the app has no launch intent. */
+    synchronized PendingIntent contentIntent() {
+        if (contentIntentResolved) return contentIntent;
+        contentIntentResolved = true;
+        Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(context.getPackageName());
+        if (launchIntent != null) {
+            launchIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+            launchIntent.setData(Uri.parse("webdav://transfers")); // Deep link
+            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                flags |= PendingIntent.FLAG_IMMUTABLE;
+            }
+            contentIntent = PendingIntent.getActivity(context, 0, launchIntent, flags);
+        }
+        return contentIntent;
+    }
+
+    static int iconFor(long progress, long max) {
+        if (max <= 0) return com.android.drive.R.drawable.ic_stat_transfer_0;
+        int percent = (int) (progress * 100 / max);
+        if (percent >= 100) return com.android.drive.R.drawable.ic_stat_transfer_100;
+        if (percent >= 80) return com.android.drive.R.drawable.ic_stat_transfer_80;
+        if (percent >= 60) return com.android.drive.R.drawable.ic_stat_transfer_60;
+        if (percent >= 40) return com.android.drive.R.drawable.ic_stat_transfer_40;
+        if (percent >= 20) return com.android.drive.R.drawable.ic_stat_transfer_20;
+        return com.android.drive.R.drawable.ic_stat_transfer_0;
+    }
+
+    static String formatSpeed(long bytesPerSec) {
+        if (bytesPerSec < 1024 * 1024) {
+            return String.format(java.util.Locale.US, "%.1f KB/s", bytesPerSec / 1024.0);
+        }
+        return String.format(java.util.Locale.US, "%.1f MB/s", bytesPerSec / (1024.0 * 1024.0));
+    }
+
+    private synchronized void ensureTicking() {
+        if (tick == null) tick = timer.scheduleAtFixedRate(this::publish, 0, PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void publish() {
+        long now = System.currentTimeMillis();
+        long movedNow = moved.get();
+        long speed = lastTickAt > 0 && now > lastTickAt ? (movedNow - lastMoved) * 1000 / (now - lastTickAt) : 0;
+        lastMoved = movedNow;
+        lastTickAt = now;
+
+        String title;
+        String text;
+        long progress;
+        long max;
+        if (!transfers.isEmpty()) {
+            int uploads = 0;
+            long bytes = 0;
+            long total = 0;
+            String name = null;
+            for (Progress p : transfers.values()) {
+                if (p.upload) uploads++;
+                name = p.name;
+                if (p.total > 0) {
+                    bytes += Math.min(p.bytes, p.total);
+                    total += p.total;
+                }
+            }
+            int count = transfers.size();
+            boolean isZh = java.util.Locale.getDefault().getLanguage().equals("zh");
+            if (labelTitle != null) title = labelTitle;
+            else if (uploads == count) title = isZh ? "正在上传" : "Uploading";
+            else if (uploads == 0) title = isZh ? "正在下载" : "Downloading";
+            else title = isZh ? "正在传输" : "Transferring";
+            String what = count == 1 ? name : (isZh ? count + " 个文件" : count + " files");
+            text = what + " (" + formatSpeed(speed) + ")";
+            // Per mille keeps the progress bar from changing on every byte
+            progress = total > 0 ? bytes * 1000 / total : 0;
+            max = total > 0 ? 1000 : 0;
+        } else if (labelTitle != null) {
+            title = labelTitle;
+            text = labelText;
+            progress = labelProgress;
+            max = labelMax;
+        } else {
+            // Nothing left to show; the next update restarts the timer
+            if (tick != null) {
+                tick.cancel(false);
+                tick = null;
+            }
+            lastTickAt = 0;
+            return;
+        }
+
+        String shown = title + '\n' + text + '\n' + progress + '/' + max;
+        if (shown.equals(lastShown)) return;
+        lastShown = shown;
+        post(title, text, progress, max);
+    }
+
+    private void post(String title, String text, long progress, long max) {
+        ensureChannel();
+        if (builder == null) {
+            builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+                    .setPriority(NotificationCompat.PRIORITY_LOW)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true);
+            PendingIntent intent = contentIntent();
+            if (intent != null) builder.setContentIntent(intent);
+        }
+        builder.setSmallIcon(iconFor(progress, max))
+                .setContentTitle(title)
+                .setContentText(text);
+        if (max > 0) {
+            builder.setProgress((int) max, (int) progress, false);
+        } else {
+            builder.setProgress(0, 0, true);
+        }
+        manager.notify(notificationId, builder.build());
+    }
+}
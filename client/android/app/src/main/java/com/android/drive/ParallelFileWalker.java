@@ -0,0 +1,162 @@
+package com.android.drive;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Walks a directory tree on a {@link ForkJoinPool}: every directory is one task that lists itself,
+ * hands the listing to the {@link Visitor} and forks a task per subdirectory. Idle workers steal
+ * subtrees from busy ones, so a wide tree keeps every core busy and a slow (little) core never
+ * holds up the rest. Attributes come from one {@code lstat} per entry instead of the separate
+ * isDirectory/length/lastModified calls of {@link File}; {@code java.nio.file} would do the same
+ * but needs API 26. Symbolic links are reported as what they point to, marked
+ * {@link Entry#isLink}, but never followed, so a link loop cannot trap the walk.
+ */
+final class ParallelFileWalker {
+
+    static final class Entry {
+        final String name;
+        final String path;
+        final boolean isDirectory;
+        final long size;
+        final long mtime;
+        /** A symbolic link; the other fields describe its target, or the link itself if dangling. */
+        final boolean isLink;
+
+        private Entry(String name, String path, boolean isDirectory, long size, long mtime, boolean isLink) {
+            this.name = name;
+            this.path = path;
+            this.isDirectory = isDirectory;
+            this.size = size;
+            this.mtime = mtime;
+            this.isLink = isLink;
+        }
+    }
+
+    interface Visitor {
+        /**
+         * Receives the listing of one directory, before anything below it. Called concurrently from
+         * pool threads, so implementations must be thread-safe.
+         */
+        void visit(Entry dir, List<Entry> entries);
+    }
+
+    private final ForkJoinPool pool;
+
+    ParallelFileWalker(int parallelism) {
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Visits every directory below and including {@code root}; blocks until done.
+     *
+     * @param includeHidden whether dot files are visited and dot directories entered
+     * @param cancelled polled once per directory; may be null
+     * @return false if the walk was cut short by {@code cancelled}
+     */
+    boolean walk(File root, boolean includeHidden, Visitor visitor, BooleanSupplier cancelled) {
+        Entry top = stat(root);
+        if (top == null || !top.isDirectory) return true;
+        Walk walk = new Walk(includeHidden, visitor, cancelled);
+        pool.invoke(walk.new DirTask(top));
+        return !walk.stopped;
+    }
+
+    /** Lets running walks finish; callers stop theirs through their cancel checks. */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /** @return the entries of {@code dir}, or null if it cannot be listed */
+    static List<Entry> list(File dir, boolean includeHidden) {
+        String[] names = dir.list();
+        if (names == null) return null;
+        String prefix = dir.getPath().endsWith("/") ? dir.getPath() : dir.getPath() + "/";
+        List<Entry> entries = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (!includeHidden && name.startsWith(".")) continue;
+            Entry e = stat(name, prefix + name);
+            // Gone since the listing
+            if (e != null) entries.add(e);
+        }
+        return entries;
+    }
+
+    /** @return the attributes of {@code file} in the form {@link #list} reports them, or null if it does not exist */
+    static Entry stat(File file) {
+        return stat(file.getName(), file.getPath());
+    }
+
+    private static Entry stat(String name, String path) {
+        try {
+            StructStat st = Os.lstat(path);
+            boolean link = OsConstants.S_ISLNK(st.st_mode);
+            if (link) {
+                try {
+                    st = Os.stat(path);
+                } catch (ErrnoException dangling) {
+                    // Report the link itself
+                }
+            }
+            return new Entry(name, path, OsConstants.S_ISDIR(st.st_mode), st.st_size, mtime(st), link);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    /** Milliseconds, with the sub-second part where the platform exposes it (API 27+). */
+    private static long mtime(StructStat st) {
+        if (Build.VERSION.SDK_INT >= 27) return st.st_mtim.tv_sec * 1000 + st.st_mtim.tv_nsec / 1_000_000;
+        return st.st_mtime * 1000;
+    }
+
+    private static final class Walk {
+        final boolean includeHidden;
+        final Visitor visitor;
+        final BooleanSupplier cancelled;
+        volatile boolean stopped;
+
+        Walk(boolean includeHidden, Visitor visitor, BooleanSupplier cancelled) {
+            this.includeHidden = includeHidden;
+            this.visitor = visitor;
+            this.cancelled = cancelled;
+        }
+
+        boolean shouldStop() {
+            if (!stopped && cancelled != null && cancelled.getAsBoolean()) stopped = true;
+            return stopped;
+        }
+
+        final class DirTask extends RecursiveAction {
+            private final Entry dir;
+
+            DirTask(Entry dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                if (shouldStop()) return;
+                List<Entry> entries = list(new File(dir.path), includeHidden);
+                if (entries == null) return;
+                visitor.visit(dir, entries);
+                List<DirTask> subdirs = new ArrayList<>();
+                for (Entry e : entries) {
+                    if (e.isDirectory && !e.isLink) subdirs.add(new DirTask(e));
+                }
+                if (subdirs.size() == 1) subdirs.get(0).compute();
+                else if (!subdirs.isEmpty()) invokeAll(subdirs);
+            }
+        }
+    }
+}
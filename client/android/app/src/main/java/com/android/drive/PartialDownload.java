@@ -0,0 +1,226 @@
+package com.android.drive;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resume state of one download. Bytes go to {@code <target>.part}; a small JSON sidecar at
+ * {@code <target>.part.json} records the source URL, its validators and the byte ranges already
+ * written. The target itself only appears, by rename, once every byte is present.
+ */
+final class PartialDownload {
+    final File target;
+    final File part;
+    private final File sidecar;
+    private final String url;
+
+    private String etag;
+    private String lastModified;
+    private long length = -1;
+    /** Completed inclusive [first, last] ranges, sorted and coalesced. */
+    private final List<long[]> ranges = new ArrayList<>();
+
+    private PartialDownload(File target, String url) {
+        this.target = target;
+        this.url = url;
+        this.part = new File(target.getPath() + ".part");
+        this.sidecar = new File(target.getPath() + ".part.json");
+    }
+
+    /**
+     * Loads the resume state for {@code target}. State left by a different URL, or a sidecar
+     * without its data file, is discarded.
+     */
+    static PartialDownload open(File target, String url) {
+        PartialDownload d = new PartialDownload(target, url);
+        if (!d.sidecar.exists() || !d.part.exists()) {
+            d.discard();
+            return d;
+        }
+        try (InputStream in = new FileInputStream(d.sidecar)) {
+            byte[] data = new byte[(int) d.sidecar.length()];
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read == -1) break;
+                n += read;
+            }
+            JSONObject json = new JSONObject(new String(data, 0, n, StandardCharsets.UTF_8));
+            if (!url.equals(json.optString("url"))) {
+                d.discard();
+                return d;
+            }
+            d.etag = json.has("etag") ? json.getString("etag") : null;
+            d.lastModified = json.has("lastModified") ? json.getString("lastModified") : null;
+            d.length = json.optLong("length", -1);
+            JSONArray list = json.getJSONArray("ranges");
+            for (int i = 0; i < list.length(); i++) {
+                JSONArray r = list.getJSONArray(i);
+                d.addRange(r.getLong(0), r.getLong(1));
+            }
+            // Never trust ranges past what actually reached the disk
+            d.truncate(d.part.length());
+        } catch (IOException | JSONException e) {
+            android.util.Log.w("WebDavNative", "Discarding unreadable resume state for " + target + ": " + e.getMessage());
+            d.discard();
+        }
+        return d;
+    }
+
+    /** Validator to send as If-Range: a strong ETag if there is one, else Last-Modified. */
+    static String rangeValidator(String etag, String lastModified) {
+        return etag != null && !etag.startsWith("W/") ? etag : lastModified;
+    }
+
+    /** @return {first, last, total} from a Content-Range header, total -1 if "*", or null if malformed. */
+    static long[] parseContentRange(String header) {
+        if (header == null || !header.startsWith("bytes ")) return null;
+        int dash = header.indexOf('-', 6);
+        int slash = header.indexOf('/', 6);
+        if (dash < 0 || slash < dash) return null;
+        try {
+            long first = Long.parseLong(header.substring(6, dash).trim());
+            long last = Long.parseLong(header.substring(dash + 1, slash).trim());
+            String total = header.substring(slash + 1).trim();
+            return new long[]{first, last, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    synchronized String validator() {
+        return rangeValidator(etag, lastModified);
+    }
+
+    synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Records the identity of the remote file. If it differs from what the stored ranges were
+     * written against, they are dropped.
+     */
+    synchronized void setRemote(String etag, String lastModified, long length) {
+        String previous = validator();
+        if (!ranges.isEmpty() && (this.length != length || previous == null || !previous.equals(rangeValidator(etag, lastModified)))) {
+            android.util.Log.d("WebDavNative", "Remote changed, restarting " + target.getName());
+            ranges.clear();
+        }
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    synchronized boolean hasData() {
+        return !ranges.isEmpty();
+    }
+
+    /** @return the number of bytes present from offset 0 without a gap. */
+    synchronized long contiguousPrefix() {
+        return !ranges.isEmpty() && ranges.get(0)[0] == 0 ? ranges.get(0)[1] + 1 : 0;
+    }
+
+    synchronized long completedBytes() {
+        long total = 0;
+        for (long[] r : ranges) total += r[1] - r[0] + 1;
+        return total;
+    }
+
+    /** @return inclusive ranges of {@code [0, length)} not yet written. */
+    synchronized List<long[]> missing() {
+        List<long[]> gaps = new ArrayList<>();
+        long next = 0;
+        for (long[] r : ranges) {
+            if (r[0] > next) gaps.add(new long[]{next, r[0] - 1});
+            next = Math.max(next, r[1] + 1);
+        }
+        if (next < length) gaps.add(new long[]{next, length - 1});
+        return gaps;
+    }
+
+    synchronized void addRange(long first, long last) {
+        int i = 0;
+        while (i < ranges.size() && ranges.get(i)[1] + 1 < first) i++;
+        // Absorb every range that overlaps or touches [first, last]
+        while (i < ranges.size() && ranges.get(i)[0] <= last + 1) {
+            long[] r = ranges.remove(i);
+            first = Math.min(first, r[0]);
+            last = Math.max(last, r[1]);
+        }
+        ranges.add(i, new long[]{first, last});
+    }
+
+    /** Forgets every written byte, e.g. when the server sent the full body instead of a range. */
+    synchronized void reset() {
+        ranges.clear();
+    }
+
+    /** Forgets ranges at or past {@code size}, matching a data file truncated to that length. */
+    synchronized void truncate(long size) {
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            long[] r = ranges.get(i);
+            if (r[0] >= size) ranges.remove(i);
+            else if (r[1] >= size) r[1] = size - 1;
+        }
+    }
+
+    /**
+     * Writes the sidecar via a temp file and rename, so a crash leaves either the old or new state.
+     * The ranges are taken first and the .part data synced before the sidecar is written, so it never
+     * lists bytes that were still only in the page cache; a preallocated .part would otherwise resume
+     * over zeros that no length check can spot.
+     */
+    void save() throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            synchronized (this) {
+                json.put("url", url);
+                if (etag != null) json.put("etag", etag);
+                if (lastModified != null) json.put("lastModified", lastModified);
+                json.put("length", length);
+                JSONArray list = new JSONArray();
+                for (long[] r : ranges) list.put(new JSONArray().put(r[0]).put(r[1]));
+                json.put("ranges", list);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        if (part.exists()) {
+            try (RandomAccessFile data = new RandomAccessFile(part, "rw")) {
+                data.getChannel().force(false);
+            }
+        }
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(sidecar)) throw new IOException("Failed to save resume state for " + target.getName());
+    }
+
+    /** Moves the finished data file into place and drops the sidecar. */
+    void commit() throws IOException {
+        if (!part.renameTo(target)) throw new IOException("Failed to rename " + part.getName() + " to " + target.getName());
+        sidecar.delete();
+    }
+
+    /** Deletes the data file and sidecar; used on explicit cancel or unusable state. */
+    void discard() {
+        part.delete();
+        sidecar.delete();
+        synchronized (this) {
+            ranges.clear();
+        }
+    }
+}
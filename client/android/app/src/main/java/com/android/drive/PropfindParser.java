@@ -0,0 +1,186 @@
+package com.android.drive;
+
+import com.getcapacitor.JSObject;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Streams a WebDAV multistatus response through a pull parser and hands out one compact
+ * {@link Entry} per {@code <response>}, so a listing never exists in memory as a DOM or as one
+ * big XML string. Only properties from a 2xx {@code <propstat>} are used.
+ */
+final class PropfindParser {
+    private static final String DAV = "DAV:";
+
+    /** Body for a PROPFIND that asks only for the properties {@link Entry} keeps. */
+    static final String REQUEST_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<d:propfind xmlns:d=\"DAV:\"><d:prop>"
+            + "<d:resourcetype/><d:getcontentlength/><d:getlastmodified/><d:getetag/><d:getcontenttype/>"
+            + "</d:prop></d:propfind>";
+
+    /** Body for a Depth-0 PROPFIND that only reads a collection's validators. */
+    static final String VALIDATOR_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<d:propfind xmlns:d=\"DAV:\" xmlns:cs=\"http://calendarserver.org/ns/\"><d:prop>"
+            + "<d:getetag/><cs:getctag/>"
+            + "</d:prop></d:propfind>";
+
+    /** Body for an upload pre-flight: {@link #REQUEST_BODY} plus ownCloud/Nextcloud content checksums. */
+    static final String DEDUP_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<d:propfind xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\"><d:prop>"
+            + "<d:resourcetype/><d:getcontentlength/><d:getlastmodified/><d:getetag/><oc:checksums/>"
+            + "</d:prop></d:propfind>";
+
+    static final class Entry {
+        /** As sent by the server, still percent-encoded. */
+        String href;
+        long size = -1;
+        /** Epoch millis, or -1 if missing or unparseable. */
+        long mtime = -1;
+        String etag;
+        /** Collection tag; only requested by {@link #VALIDATOR_BODY}. */
+        String ctag;
+        /** Space-separated {@code TYPE:hex} pairs; only requested by {@link #DEDUP_BODY}. */
+        String checksums;
+        boolean isCollection;
+        String contentType;
+
+        JSObject toJson() {
+            JSObject o = new JSObject();
+            o.put("href", href);
+            if (isCollection) o.put("isCollection", true);
+            if (size >= 0) o.put("size", size);
+            if (mtime >= 0) o.put("mtime", mtime);
+            if (etag != null) o.put("etag", etag);
+            if (contentType != null) o.put("contentType", contentType);
+            return o;
+        }
+    }
+
+    interface Sink {
+        void accept(Entry entry) throws IOException;
+    }
+
+    private PropfindParser() {}
+
+    /** Parses {@code in} until the end of the document. @return the number of entries delivered. */
+    static int parse(InputStream in, Sink sink) throws IOException {
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        int count = 0;
+        try {
+            XmlPullParser p = android.util.Xml.newPullParser();
+            p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            // Encoding comes from the BOM or XML declaration
+            p.setInput(in, null);
+
+            Entry entry = null;
+            // Properties of the current propstat; merged into entry only if its status is 2xx
+            Entry props = null;
+            boolean propsOk = false;
+            boolean responseOk = true;
+            for (int event = p.next(); event != XmlPullParser.END_DOCUMENT; event = p.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    String name = p.getName();
+                    // getctag lives in a vendor namespace (calendarserver, owncloud)
+                    if (props != null && "getctag".equals(name)) {
+                        props.ctag = emptyToNull(p.nextText().trim());
+                        continue;
+                    }
+                    // oc:checksums holds one or more oc:checksum
+                    if (props != null && "checksum".equals(name)) {
+                        String checksum = p.nextText().trim();
+                        if (!checksum.isEmpty()) props.checksums = props.checksums == null ? checksum : props.checksums + " " + checksum;
+                        continue;
+                    }
+                    if (!DAV.equals(p.getNamespace())) continue;
+                    if (entry == null) {
+                        if ("response".equals(name)) {
+                            entry = new Entry();
+                            responseOk = true;
+                        }
+                    } else if (props == null) {
+                        if ("href".equals(name)) {
+                            if (entry.href == null) entry.href = p.nextText().trim();
+                        } else if ("propstat".equals(name)) {
+                            props = new Entry();
+                            propsOk = true;
+                        } else if ("status".equals(name)) {
+                            responseOk = isSuccess(p.nextText());
+                        }
+                    } else {
+                        switch (name) {
+                            case "status":
+                                propsOk = isSuccess(p.nextText());
+                                break;
+                            case "collection":
+                                props.isCollection = true;
+                                break;
+                            case "getcontentlength":
+                                try {
+                                    props.size = Long.parseLong(p.nextText().trim());
+                                } catch (NumberFormatException ignored) {
+                                }
+                                break;
+                            case "getlastmodified":
+                                try {
+                                    props.mtime = httpDate.parse(p.nextText().trim()).getTime();
+                                } catch (ParseException ignored) {
+                                }
+                                break;
+                            case "getetag":
+                                props.etag = emptyToNull(p.nextText().trim());
+                                break;
+                            case "getcontenttype":
+                                props.contentType = emptyToNull(p.nextText().trim());
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                } else if (event == XmlPullParser.END_TAG && DAV.equals(p.getNamespace())) {
+                    if (props != null && "propstat".equals(p.getName())) {
+                        if (propsOk) merge(entry, props);
+                        props = null;
+                    } else if (entry != null && "response".equals(p.getName())) {
+                        if (responseOk && entry.href != null) {
+                            sink.accept(entry);
+                            count++;
+                        }
+                        entry = null;
+                    }
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed PROPFIND response: " + e.getMessage(), e);
+        }
+        return count;
+    }
+
+    private static void merge(Entry entry, Entry props) {
+        if (props.isCollection) entry.isCollection = true;
+        if (props.size >= 0) entry.size = props.size;
+        if (props.mtime >= 0) entry.mtime = props.mtime;
+        if (props.etag != null) entry.etag = props.etag;
+        if (props.ctag != null) entry.ctag = props.ctag;
+        if (props.checksums != null) entry.checksums = props.checksums;
+        if (props.contentType != null) entry.contentType = props.contentType;
+    }
+
+    /** @param status a status line such as {@code HTTP/1.1 200 OK} */
+    private static boolean isSuccess(String status) {
+        String[] parts = status.trim().split(" ");
+        return parts.length > 1 && parts[1].startsWith("2");
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+}
@@ -0,0 +1,203 @@
+package com.android.drive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Range-aware read-through cache of remote WebDAV files, backing the local server's
+ * {@code /remote/<driveId>/<path>} route.
+ *
+ * Files are split into fixed-size blocks that are fetched with HTTP Range requests and stored in a
+ * {@link DiskLruCache}. Block keys include the remote validator (ETag, or Last-Modified and size),
+ * so a changed file is refetched while seeking back and forth within an unchanged one is served
+ * from flash.
+ */
+final class RemoteFileCache {
+    static final int BLOCK_SIZE = 512 * 1024;
+    private static final long META_TTL_MS = 30_000;
+
+    /** Connection details registered from JS, since the native side does not store credentials. */
+    static final class Drive {
+        final OkHttpClient client;
+        final HttpUrl baseUrl;
+        final Map<String, String> headers;
+
+        Drive(OkHttpClient client, HttpUrl baseUrl, Map<String, String> headers) {
+            this.client = client;
+            this.baseUrl = baseUrl;
+            this.headers = headers;
+        }
+    }
+
+    /** Metadata of one remote file, from a HEAD request. */
+    static final class RemoteFile {
+        final Drive drive;
+        final HttpUrl url;
+        final long length;
+        final String etag;
+        final String lastModified;
+        final String contentType;
+        final long fetchedAt;
+        final String validator;
+
+        RemoteFile(Drive drive, HttpUrl url, long length, String etag, String lastModified, String contentType) {
+            this.drive = drive;
+            this.url = url;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.fetchedAt = System.currentTimeMillis();
+            this.validator = etag != null ? etag : lastModified + "/" + length;
+        }
+
+        long blockCount() {
+            return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+    }
+
+    private final DiskLruCache blocks;
+    private final ConcurrentHashMap<String, Drive> drives = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RemoteFile> metadata = new ConcurrentHashMap<>();
+    private final ExecutorService fetchers = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "RemoteFileCache-fetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    RemoteFileCache(File dir, long maxBytes) {
+        this.blocks = new DiskLruCache(dir, maxBytes);
+    }
+
+    void registerDrive(String driveId, OkHttpClient client, String baseUrl, Map<String, String> headers) {
+        HttpUrl url = HttpUrl.parse(baseUrl);
+        if (url == null) throw new IllegalArgumentException("Invalid baseUrl: " + baseUrl);
+        drives.put(driveId, new Drive(client, url, headers));
+    }
+
+    void unregisterDrive(String driveId) {
+        drives.remove(driveId);
+        metadata.keySet().removeIf(key -> key.startsWith(driveId + "\n"));
+    }
+
+    /** @return metadata for {@code path} on the drive, or null if the drive or file is unknown. */
+    RemoteFile stat(String driveId, String path) throws IOException {
+        Drive drive = drives.get(driveId);
+        if (drive == null) return null;
+        String key = driveId + "\n" + path;
+        RemoteFile cached = metadata.get(key);
+        if (cached != null && cached.drive == drive && System.currentTimeMillis() - cached.fetchedAt < META_TTL_MS) {
+            return cached;
+        }
+
+        HttpUrl url = resolve(drive, path);
+        Request.Builder builder = new Request.Builder().url(url).head();
+        for (Map.Entry<String, String> h : drive.headers.entrySet()) builder.header(h.getKey(), h.getValue());
+        try (Response response = drive.client.newCall(builder.build()).execute()) {
+            if (response.code() == 404) {
+                metadata.remove(key);
+                return null;
+            }
+            if (!response.isSuccessful()) throw new IOException("HEAD failed: " + response.code());
+            String length = response.header("Content-Length");
+            if (length == null) throw new IOException("Remote did not report Content-Length");
+            RemoteFile file = new RemoteFile(drive, url, Long.parseLong(length), response.header("ETag"),
+                    response.header("Last-Modified"), response.header("Content-Type"));
+            metadata.put(key, file);
+            return file;
+        }
+    }
+
+    /** @return the cached block file, or null if it has not been fetched yet. */
+    File getCachedBlock(RemoteFile file, long index) {
+        return blocks.get(blockKey(file, index));
+    }
+
+    /** Blocking; fetches the block if it is not cached. */
+    File getBlock(RemoteFile file, long index) throws IOException {
+        return blocks.getOrCreate(blockKey(file, index), target -> fetchBlock(file, index, target));
+    }
+
+    /** Fetches a block on the fetch pool and runs {@code done} afterwards, whatever the outcome. */
+    void fetchAsync(RemoteFile file, long index, Runnable done) {
+        fetchers.execute(() -> {
+            try {
+                getBlock(file, index);
+            } catch (IOException e) {
+                android.util.Log.w("WebDavNative", "Block fetch failed: " + file.url + " #" + index + ": " + e.getMessage());
+            } finally {
+                if (done != null) done.run();
+            }
+        });
+    }
+
+    void shutdown() {
+        fetchers.shutdownNow();
+    }
+
+    private void fetchBlock(RemoteFile file, long index, File target) throws IOException {
+        long first = index * BLOCK_SIZE;
+        long last = Math.min(file.length, first + BLOCK_SIZE) - 1;
+        Request.Builder builder = new Request.Builder().url(file.url).get()
+                .header("Range", "bytes=" + first + "-" + last);
+        for (Map.Entry<String, String> h : file.drive.headers.entrySet()) builder.header(h.getKey(), h.getValue());
+        // Never splice bytes from a newer version of the file into an older one
+        if (file.etag != null) builder.header("If-Range", file.etag);
+        else if (file.lastModified != null) builder.header("If-Range", file.lastModified);
+
+        try (Response response = file.drive.client.newCall(builder.build()).execute()) {
+            ResponseBody body = response.body();
+            if (body == null) throw new IOException("Empty response body");
+            // A 200 means the server ignored Range; that is only usable for the first block
+            if (response.code() != 206 && !(response.code() == 200 && first == 0)) {
+                invalidate(file);
+                throw new IOException("Range fetch failed: " + response.code());
+            }
+            String etag = response.header("ETag");
+            if (file.etag != null && etag != null && !file.etag.equals(etag)) {
+                invalidate(file);
+                throw new IOException("Remote file changed");
+            }
+            long want = last - first + 1;
+            try (InputStream in = body.byteStream(); FileOutputStream out = new FileOutputStream(target)) {
+                byte[] buffer = new byte[65536];
+                long copied = 0;
+                while (copied < want) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, want - copied));
+                    if (read == -1) break;
+                    out.write(buffer, 0, read);
+                    copied += read;
+                }
+                if (copied != want) throw new IOException("Short block: " + copied + " of " + want);
+            }
+        }
+    }
+
+    private void invalidate(RemoteFile file) {
+        metadata.values().removeIf(f -> f == file);
+    }
+
+    private static String blockKey(RemoteFile file, long index) {
+        return DiskLruCache.hashKey(file.url + "\n" + file.validator + "\n" + index);
+    }
+
+    private static HttpUrl resolve(Drive drive, String path) {
+        HttpUrl.Builder builder = drive.baseUrl.newBuilder();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) builder.addPathSegment(segment);
+        }
+        return builder.build();
+    }
+}
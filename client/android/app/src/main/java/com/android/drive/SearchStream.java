@@ -0,0 +1,83 @@
+package com.android.drive;
+
+import com.getcapacitor.JSObject;
+
+import java.util.function.Consumer;
+
+/**
+ * Collects the results of one streaming search and hands them out as {@code searchResults}
+ * events: the first match right away, then a batch every {@code batchSize} matches or
+ * {@code intervalMs}, whichever comes first, and a last event with {@code done: true}. Each
+ * event carries its matches in the {@link EntryList} format asked for. Producers may call in
+ * from several threads.
+ */
+final class SearchStream {
+    private final String searchId;
+    private final int limit;
+    private final int batchSize;
+    private final long intervalMs;
+    private final String format;
+    private final Consumer<JSObject> sink;
+
+    // Guarded by this
+    private EntryList pending = new EntryList(true);
+    private int count;
+    private long lastFlush;
+    private boolean finished;
+
+    /** @param limit results after this many are dropped; 0 for no limit */
+    SearchStream(String searchId, int limit, int batchSize, long intervalMs, String format, Consumer<JSObject> sink) {
+        this.searchId = searchId;
+        this.limit = limit;
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+        this.format = format;
+        this.sink = sink;
+    }
+
+    /** @return false once the limit is reached, so the producer can stop */
+    synchronized boolean add(String name, String path, boolean isDirectory, long size, long mtime) {
+        if (finished || isFull()) return false;
+        pending.add(name, path, isDirectory, size, mtime);
+        count++;
+        if (pending.size() >= batchSize || System.currentTimeMillis() - lastFlush >= intervalMs) flush();
+        return !isFull();
+    }
+
+    synchronized boolean isFull() {
+        return limit > 0 && count >= limit;
+    }
+
+    /** Sends what is pending if the interval has passed; for producers between matches. */
+    synchronized void poll() {
+        if (!finished && pending.size() > 0 && System.currentTimeMillis() - lastFlush >= intervalMs) flush();
+    }
+
+    /** Sends the rest with {@code done: true}; later calls are ignored. */
+    synchronized void finish(boolean cancelled, boolean indexed) {
+        if (finished) return;
+        finished = true;
+        JSObject event = event();
+        event.put("done", true);
+        event.put("total", count);
+        event.put("cancelled", cancelled);
+        event.put("truncated", isFull());
+        event.put("indexed", indexed);
+        sink.accept(event);
+    }
+
+    private void flush() {
+        JSObject event = event();
+        event.put("done", false);
+        sink.accept(event);
+    }
+
+    private JSObject event() {
+        JSObject event = new JSObject();
+        event.put("searchId", searchId);
+        pending.putInto(event, format);
+        pending = new EntryList(true);
+        lastFlush = System.currentTimeMillis();
+        return event;
+    }
+}
@@ -0,0 +1,268 @@
+package com.android.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads one remote file over several concurrent HTTP Range requests. The target is
+ * preallocated and every segment writes into its own region with positional
+ * {@link FileChannel#write(ByteBuffer, long)}, so no reassembly pass is needed. A failed segment is
+ * retried from the last byte it wrote without disturbing the others, and written ranges are
+ * recorded in a {@link PartialDownload} so an interrupted download only fetches the gaps. A 206
+ * whose Content-Range is not the range asked for fails the attempt before anything is written.
+ */
+final class SegmentedDownloader {
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    interface Listener {
+        void onProgress(long downloaded, long total);
+    }
+
+    /** Inclusive byte range of the file; {@link #next} is the first byte not yet written. */
+    static final class Segment {
+        final long first;
+        final long last;
+        volatile long next;
+
+        Segment(long first, long last) {
+            this.first = first;
+            this.last = last;
+            this.next = first;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final String url;
+    private final Map<String, String> headers;
+    private final long length;
+    private final String etag;
+    private final String lastModified;
+    /** Strong ETag or Last-Modified for If-Range, so a file changed mid-download is never mixed. */
+    private final String validator;
+
+    private final AtomicLong downloaded = new AtomicLong();
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private volatile IOException failure;
+    private volatile boolean aborted;
+    private BandwidthThrottler.Ticket throttle;
+    /** Checksums the probe response carried, see {@link StreamingDigest#fromHeaders}. */
+    private String checksums;
+
+    private SegmentedDownloader(OkHttpClient client, String url, Map<String, String> headers, long length, String etag, String lastModified) {
+        this.client = client;
+        this.url = url;
+        this.headers = headers;
+        this.length = length;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.validator = PartialDownload.rangeValidator(etag, lastModified);
+    }
+
+    /**
+     * Asks for the first byte of {@code url}. A 206 with a complete Content-Range proves the
+     * server honours ranges, which Accept-Ranges alone does not.
+     *
+     * @return a downloader for the file, or null if the server does not support ranges.
+     */
+    static SegmentedDownloader probe(OkHttpClient client, String url, Map<String, String> headers) throws IOException {
+        Request.Builder builder = new Request.Builder().url(url).get().header("Range", "bytes=0-0");
+        for (Map.Entry<String, String> h : headers.entrySet()) builder.header(h.getKey(), h.getValue());
+        try (Response response = client.newCall(builder.build()).execute()) {
+            if (response.code() != 206 || "none".equalsIgnoreCase(response.header("Accept-Ranges"))) return null;
+            long[] contentRange = PartialDownload.parseContentRange(response.header("Content-Range"));
+            if (contentRange == null || contentRange[2] < 0) return null;
+            SegmentedDownloader downloader = new SegmentedDownloader(client, url, headers, contentRange[2],
+                    response.header("ETag"), response.header("Last-Modified"));
+            downloader.checksums = StreamingDigest.fromHeaders(response.headers(), true);
+            return downloader;
+        }
+    }
+
+    /** Paces all segments together through {@code throttle}; null for no limit. */
+    void setThrottle(BandwidthThrottler.Ticket throttle) {
+        this.throttle = throttle;
+    }
+
+    String getChecksums() {
+        return checksums;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    String getEtag() {
+        return etag;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Blocks until every byte missing from {@code partial} is in its data file. The resume state
+     * is saved with every progress tick and on failure. {@code cancelled} is polled at the same
+     * time; once it returns true, in-flight requests are cancelled and this throws.
+     */
+    void download(PartialDownload partial, long segmentSize, int concurrency, BooleanSupplier cancelled, Listener listener) throws IOException {
+        partial.setRemote(etag, lastModified, length);
+        ConcurrentLinkedQueue<Segment> queue = new ConcurrentLinkedQueue<>();
+        for (long[] gap : partial.missing()) {
+            for (long first = gap[0]; first <= gap[1]; first += segmentSize) {
+                queue.add(new Segment(first, Math.min(gap[1], first + segmentSize - 1)));
+            }
+        }
+        downloaded.set(partial.completedBytes());
+
+        try (RandomAccessFile raf = new RandomAccessFile(partial.part, "rw")) {
+            if (raf.length() != length) raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            int threads = Math.max(1, Math.min(concurrency, queue.size()));
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "SegmentedDownloader");
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < threads; i++) {
+                pool.execute(() -> {
+                    Segment segment;
+                    while (!aborted && (segment = queue.poll()) != null) {
+                        try {
+                            fetchWithRetry(segment, channel, partial);
+                        } catch (IOException e) {
+                            if (failure == null) failure = e;
+                            abort();
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+
+            try {
+                while (!pool.awaitTermination(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    if (cancelled.getAsBoolean()) {
+                        failure = new IOException("Cancelled");
+                        abort();
+                    }
+                    if (failure != null) break;
+                    partial.save();
+                    listener.onProgress(downloaded.get(), length);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Interrupted");
+                abort();
+            } finally {
+                if (failure != null) {
+                    pool.shutdownNow();
+                    try {
+                        pool.awaitTermination(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    partial.save();
+                }
+            }
+        }
+        if (failure != null) throw failure;
+        listener.onProgress(downloaded.get(), length);
+    }
+
+    private void abort() {
+        aborted = true;
+        for (Call c : calls) c.cancel();
+    }
+
+    private void fetchWithRetry(Segment segment, FileChannel channel, PartialDownload partial) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetch(segment, channel, partial);
+                return;
+            } catch (RemoteChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (aborted || attempt >= MAX_ATTEMPTS) throw e;
+                android.util.Log.w("WebDavNative", "Segment " + segment.first + "-" + segment.last + " failed at " + segment.next
+                        + " (attempt " + attempt + "): " + e.getMessage());
+                try {
+                    Thread.sleep(1000L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+        }
+    }
+
+    private void fetch(Segment segment, FileChannel channel, PartialDownload partial) throws IOException {
+        Request.Builder builder = new Request.Builder().url(url).get()
+                .header("Range", "bytes=" + segment.next + "-" + segment.last);
+        for (Map.Entry<String, String> h : headers.entrySet()) builder.header(h.getKey(), h.getValue());
+        if (validator != null) builder.header("If-Range", validator);
+
+        Call call = client.newCall(builder.build());
+        calls.add(call);
+        try (Response response = call.execute()) {
+            // With If-Range, a 200 means the representation changed since the probe
+            if (response.code() == 200) throw new RemoteChangedException();
+            if (response.code() != 206) throw new IOException("Segment request failed: " + response.code());
+            // Bytes are written where we asked for them, so the server must have sent exactly that range
+            long[] range = PartialDownload.parseContentRange(response.header("Content-Range"));
+            if (range != null && range[2] >= 0 && range[2] != length) throw new RemoteChangedException();
+            if (range == null || range[0] != segment.next || range[1] != segment.last) {
+                throw new IOException("Segment " + segment.next + "-" + segment.last + " answered with Content-Range "
+                        + response.header("Content-Range"));
+            }
+            ResponseBody body = response.body();
+            if (body == null) throw new IOException("Empty response body");
+
+            byte[] buffer = new byte[65536];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            try (InputStream in = body.byteStream()) {
+                while (segment.next <= segment.last) {
+                    if (aborted) throw new IOException("Cancelled");
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, segment.last - segment.next + 1));
+                    if (read == -1) throw new IOException("Segment ended early at " + segment.next);
+                    if (throttle != null) throttle.acquire(read);
+                    LocalFileServer.clear(wrapped);
+                    LocalFileServer.limit(wrapped, read);
+                    long position = segment.next;
+                    while (wrapped.hasRemaining()) {
+                        position += channel.write(wrapped, position);
+                    }
+                    partial.addRange(segment.next, segment.next + read - 1);
+                    segment.next += read;
+                    downloaded.addAndGet(read);
+                }
+            }
+        } finally {
+            calls.remove(call);
+        }
+    }
+
+    private static final class RemoteChangedException extends IOException {
+        RemoteChangedException() {
+            super("Remote file changed during download");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.android.drive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.zip.Adler32;
+
+import okhttp3.Headers;
+
+/**
+ * Checksum of a file computed from the buffers a copy loop already has in hand, so verifying a
+ * transfer costs no extra read pass. Bytes are fed with their file position and only count when
+ * they continue the digest exactly, so data sent twice (an OkHttp retry, a resent chunk) is not
+ * hashed twice. Whatever the stream skipped, such as the prefix of a resumed transfer, is read
+ * from disk by {@link #catchUp}.
+ *
+ * Types use the ownCloud/Nextcloud names: MD5, SHA1, SHA256, ADLER32.
+ */
+final class StreamingDigest {
+    final String type;
+    private final MessageDigest md;
+    private final Adler32 adler;
+    private long position;
+
+    StreamingDigest(String type) {
+        this.type = normalizeType(type);
+        if (this.type == null) throw new IllegalArgumentException("Unsupported checksum type: " + type);
+        this.md = HashCache.newDigest(algorithm(this.type));
+        this.adler = md == null ? new Adler32() : null;
+    }
+
+    /** Hashes {@code length} bytes that sit at {@code offset} in the file, if they extend the digest. */
+    void update(long offset, byte[] buffer, int start, int length) {
+        if (offset > position || offset + length <= position) return;
+        int skip = (int) (position - offset);
+        if (md != null) md.update(buffer, start + skip, length - skip);
+        else adler.update(buffer, start + skip, length - skip);
+        position = offset + length;
+    }
+
+    /** Reads {@code [position, upTo)} of {@code file} into the digest. */
+    void catchUp(File file, long upTo) throws IOException {
+        if (position >= upTo) return;
+        byte[] buffer = new byte[65536];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(position);
+            while (position < upTo) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, upTo - position));
+                if (read == -1) throw new IOException("File ended before " + upTo);
+                update(position, buffer, 0, read);
+            }
+        }
+    }
+
+    long position() {
+        return position;
+    }
+
+    /** @return the digest as lowercase hex; ends this digest. */
+    String hex() {
+        return md != null ? HashCache.hex(md.digest()) : HashCache.hex(adler);
+    }
+
+    /** @return the {@link HashCache} / MessageDigest name of {@code type}, or null if unsupported. */
+    static String algorithm(String type) {
+        switch (type.toUpperCase(Locale.US).replace("-", "")) {
+            case "MD5":
+                return "MD5";
+            case "SHA1":
+                return "SHA-1";
+            case "SHA256":
+                return "SHA-256";
+            case "ADLER32":
+                return HashCache.ADLER32;
+            default:
+                return null;
+        }
+    }
+
+    /** @return {@code type} in its canonical spelling, or null if unsupported. */
+    static String normalizeType(String type) {
+        String t = type.toUpperCase(Locale.US).replace("-", "");
+        return algorithm(t) != null ? t : null;
+    }
+
+    /**
+     * Checksums a server attached to a complete response, as {@code TYPE:hex} pairs separated by
+     * spaces, or null: {@code OC-Checksum}, RFC 3230 {@code Digest}, RFC 9530 {@code Repr-Digest},
+     * and {@code Content-MD5} unless the body is a range.
+     */
+    static String fromHeaders(Headers headers, boolean partialBody) {
+        StringBuilder sb = new StringBuilder();
+        String oc = headers.get("OC-Checksum");
+        if (oc != null) append(sb, oc.trim());
+        // Digest: SHA-256=<base64>, MD5=<base64>
+        String digest = headers.get("Digest");
+        if (digest != null) {
+            for (String part : digest.split(",")) {
+                int eq = part.indexOf('=');
+                if (eq > 0) appendBase64(sb, part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+            }
+        }
+        // Repr-Digest: sha-256=:<base64>:
+        String repr = headers.get("Repr-Digest");
+        if (repr != null) {
+            for (String part : repr.split(",")) {
+                int eq = part.indexOf('=');
+                if (eq > 0) appendBase64(sb, part.substring(0, eq).trim(), part.substring(eq + 1).trim().replace(":", ""));
+            }
+        }
+        String contentMd5 = headers.get("Content-MD5");
+        if (contentMd5 != null && !partialBody) appendBase64(sb, "MD5", contentMd5.trim());
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Picks the checksum to verify from {@code checksums} ({@code TYPE:hex} pairs): the one of type
+     * {@code preferred} if given, else the strongest supported one.
+     *
+     * @return {@code {type, hex}}, or null if none fits
+     */
+    static String[] pick(String checksums, String preferred) {
+        if (checksums == null) return null;
+        String[] best = null;
+        int bestRank = -1;
+        for (String checksum : checksums.split("\\s+")) {
+            int colon = checksum.indexOf(':');
+            if (colon <= 0) continue;
+            String type = normalizeType(checksum.substring(0, colon));
+            if (type == null) continue;
+            int rank = preferred != null ? (type.equals(preferred) ? 1 : -1) : rank(type);
+            if (rank > bestRank) {
+                bestRank = rank;
+                best = new String[]{type, checksum.substring(colon + 1).toLowerCase(Locale.US)};
+            }
+        }
+        return best;
+    }
+
+    private static int rank(String type) {
+        switch (type) {
+            case "SHA256":
+                return 3;
+            case "SHA1":
+                return 2;
+            case "MD5":
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static void append(StringBuilder sb, String checksum) {
+        if (sb.length() > 0) sb.append(' ');
+        sb.append(checksum);
+    }
+
+    private static void appendBase64(StringBuilder sb, String type, String base64) {
+        String normalized = normalizeType(type);
+        if (normalized == null) return;
+        try {
+            append(sb, normalized + ":" + HashCache.hex(android.util.Base64.decode(base64, android.util.Base64.DEFAULT)));
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
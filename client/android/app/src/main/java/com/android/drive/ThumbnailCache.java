@@ -0,0 +1,147 @@
+package com.android.drive;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downsampled JPEG thumbnails for images and videos on local storage, kept in a {@link DiskLruCache}
+ * keyed by source path, size, mtime and target width. A changed source gets a new key, so stale
+ * entries are never served and simply age out.
+ */
+final class ThumbnailCache {
+    private static final int MIN_WIDTH = 32;
+    private static final int MAX_WIDTH = 1024;
+    private static final int JPEG_QUALITY = 80;
+
+    private final DiskLruCache cache;
+    // Full-resolution decodes are memory hungry; bound how many run at once
+    private final Semaphore decodeSlots = new Semaphore(2);
+
+    ThumbnailCache(File dir, long maxBytes) {
+        cache = new DiskLruCache(dir, maxBytes);
+    }
+
+    /** Rounds the requested width up to a 64px bucket so near-identical sizes share an entry. */
+    static int normalizeWidth(int width) {
+        int w = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, width));
+        return (w + 63) / 64 * 64;
+    }
+
+    /**
+     * @return the thumbnail file, generating it if needed, or null if the source is not a
+     * decodable image or video.
+     */
+    File get(File source, int width) throws IOException {
+        int w = normalizeWidth(width);
+        String key = DiskLruCache.hashKey(source.getCanonicalPath() + "|" + source.length() + "|" + source.lastModified() + "|" + w);
+        try {
+            return cache.getOrCreate(key, target -> generate(source, w, target));
+        } catch (UnsupportedMediaException e) {
+            return null;
+        }
+    }
+
+    private void generate(File source, int width, File target) throws IOException {
+        try {
+            decodeSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = isVideo(source.getName()) ? decodeVideo(source, width) : decodeImage(source, width);
+            if (bitmap == null) throw new UnsupportedMediaException();
+            try (FileOutputStream out = new FileOutputStream(target)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        } finally {
+            if (bitmap != null) bitmap.recycle();
+            decodeSlots.release();
+        }
+    }
+
+    private static Bitmap decodeImage(File source, int width) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getAbsolutePath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+
+        // Largest power-of-two subsample that keeps the short side at or above the target
+        int shortSide = Math.min(bounds.outWidth, bounds.outHeight);
+        int sample = 1;
+        while (shortSide / (sample * 2) >= width) sample *= 2;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+        if (decoded == null) return null;
+
+        int rotation = 0;
+        try {
+            int orientation = new ExifInterface(source.getAbsolutePath())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            if (orientation == ExifInterface.ORIENTATION_ROTATE_90) rotation = 90;
+            else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) rotation = 180;
+            else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) rotation = 270;
+        } catch (IOException ignored) {
+            // Not every format carries EXIF
+        }
+        return scale(decoded, width, rotation);
+    }
+
+    private static Bitmap decodeVideo(File source, int width) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(source.getAbsolutePath());
+            Bitmap frame;
+            if (Build.VERSION.SDK_INT >= 27) {
+                frame = retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, width * 2, width * 2);
+            } else {
+                frame = retriever.getFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            }
+            return frame == null ? null : scale(frame, width, 0);
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            try { retriever.release(); } catch (Exception ignored) {}
+        }
+    }
+
+    /** Scales so the short side equals {@code width} and applies rotation; recycles the input if replaced. */
+    private static Bitmap scale(Bitmap src, int width, int rotation) {
+        int shortSide = Math.min(src.getWidth(), src.getHeight());
+        float factor = shortSide > width ? (float) width / shortSide : 1f;
+        if (factor == 1f && rotation == 0) return src;
+        Matrix m = new Matrix();
+        m.postScale(factor, factor);
+        if (rotation != 0) m.postRotate(rotation);
+        Bitmap out = Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), m, true);
+        if (out != src) src.recycle();
+        return out;
+    }
+
+    private static boolean isVideo(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        return lower.endsWith(".mp4") || lower.endsWith(".mkv") || lower.endsWith(".mov") || lower.endsWith(".webm")
+                || lower.endsWith(".3gp") || lower.endsWith(".avi") || lower.endsWith(".m4v") || lower.endsWith(".ts");
+    }
+
+    private static final class UnsupportedMediaException extends IOException {
+        UnsupportedMediaException() {
+            super("Unsupported media");
+        }
+    }
+}
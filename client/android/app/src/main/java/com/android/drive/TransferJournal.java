@@ -0,0 +1,282 @@
+package com.android.drive;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable record of transfers that have started but not finished, so they can be resumed after
+ * the process is killed. It is an append-only log of JSON lines: {@code add} with everything
+ * needed to restart the job, {@code progress} with its byte offset and {@code end} once it
+ * finished, failed or was cancelled while the process was alive.
+ *
+ * Appends are buffered and written by one thread at most once per {@link #FLUSH_MS} with a single
+ * fsync; progress records for the same job in one window collapse into the latest. When dead
+ * records dominate, the log is rewritten as a snapshot of the live jobs.
+ *
+ * Credentials never reach the log: {@link #CREDENTIAL_HEADERS} are dropped from a job's headers
+ * and the job is marked {@link Job#needsCredentials}, so whoever resumes it supplies them again.
+ */
+final class TransferJournal {
+    static final String KIND_UPLOAD = "upload";
+    static final String KIND_DOWNLOAD = "download";
+    private static final long FLUSH_MS = 1000;
+    private static final int COMPACT_MIN_RECORDS = 1000;
+    /** Lowercase names of the request headers that are not written to the log. */
+    static final java.util.Set<String> CREDENTIAL_HEADERS = new java.util.HashSet<>(
+            java.util.Arrays.asList("authorization", "proxy-authorization", "cookie"));
+
+    /** One unfinished transfer, as it will be restarted. */
+    static final class Job {
+        final String id;
+        final String kind;
+        final String url;
+        final String path;
+        /** The request headers without {@link #CREDENTIAL_HEADERS}. */
+        final Map<String, String> headers;
+        /** Whether credential headers were dropped and must be added back to resume the job. */
+        final boolean needsCredentials;
+        /** Kind-specific options such as method, driveId, batchId, resumable, segmented. */
+        final JSONObject options;
+        volatile long bytes;
+
+        Job(String id, String kind, String url, String path, Map<String, String> headers, JSONObject options) {
+            this(id, kind, url, path, headers, options, false);
+        }
+
+        private Job(String id, String kind, String url, String path, Map<String, String> headers, JSONObject options,
+                    boolean needsCredentials) {
+            this.id = id;
+            this.kind = kind;
+            this.url = url;
+            this.path = path;
+            this.headers = new HashMap<>();
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                if (CREDENTIAL_HEADERS.contains(e.getKey().toLowerCase(java.util.Locale.ROOT))) needsCredentials = true;
+                else this.headers.put(e.getKey(), e.getValue());
+            }
+            this.needsCredentials = needsCredentials;
+            this.options = options != null ? options : new JSONObject();
+        }
+
+        JSONObject toRecord() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("t", "add");
+            o.put("id", id);
+            o.put("kind", kind);
+            o.put("url", url);
+            o.put("path", path);
+            o.put("headers", new JSONObject(headers));
+            o.put("options", options);
+            if (needsCredentials) o.put("credentials", true);
+            if (bytes > 0) o.put("bytes", bytes);
+            return o;
+        }
+
+        static Job fromRecord(JSONObject o) throws JSONException {
+            Map<String, String> headers = new HashMap<>();
+            JSONObject h = o.getJSONObject("headers");
+            for (Iterator<String> it = h.keys(); it.hasNext(); ) {
+                String key = it.next();
+                headers.put(key, h.getString(key));
+            }
+            Job job = new Job(o.getString("id"), o.getString("kind"), o.getString("url"), o.getString("path"),
+                    headers, o.optJSONObject("options"), o.optBoolean("credentials", false));
+            job.bytes = o.optLong("bytes", 0);
+            return job;
+        }
+    }
+
+    private final File file;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "TransferJournal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this
+    private final LinkedHashMap<String, Job> live = new LinkedHashMap<>();
+    private final List<String> pending = new ArrayList<>();
+    private final LinkedHashMap<String, Long> pendingProgress = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    private int records;
+
+    /** Loads the jobs left by a previous process and compacts the log. */
+    TransferJournal(File file) {
+        this.file = file;
+        load();
+        try {
+            compact();
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Transfer journal compaction failed: " + e.getMessage());
+        }
+    }
+
+    /** @return the unfinished jobs, in the order they were added. */
+    synchronized List<Job> jobs() {
+        return new ArrayList<>(live.values());
+    }
+
+    synchronized Job get(String id) {
+        return live.get(id);
+    }
+
+    /** Records a new job; written promptly, since losing it means the job is never resumed. */
+    void add(Job job) {
+        String line;
+        try {
+            line = job.toRecord().toString();
+        } catch (JSONException e) {
+            android.util.Log.w("WebDavNative", "Not journaling " + job.id + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            live.put(job.id, job);
+            pendingProgress.remove(job.id);
+            pending.add(line);
+        }
+        writer.execute(this::flush);
+    }
+
+    /** Records how far a job got; cheap enough to call on every progress callback. */
+    void progress(String id, long bytes) {
+        synchronized (this) {
+            Job job = live.get(id);
+            if (job == null) return;
+            job.bytes = bytes;
+            pendingProgress.put(id, bytes);
+            scheduleFlush();
+        }
+    }
+
+    /** The job no longer needs resuming: it finished, failed or was cancelled. */
+    void end(String id) {
+        synchronized (this) {
+            if (live.remove(id) == null) return;
+            pendingProgress.remove(id);
+            pending.add("{\"t\":\"end\",\"id\":" + JSONObject.quote(id) + "}");
+            scheduleFlush();
+        }
+    }
+
+    /** Writes whatever is buffered and stops the writer. */
+    void close() {
+        writer.execute(this::flush);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        writer.schedule(this::flush, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        StringBuilder batch = new StringBuilder();
+        boolean compact;
+        synchronized (this) {
+            flushScheduled = false;
+            for (String line : pending) batch.append(line).append('\n');
+            for (Map.Entry<String, Long> e : pendingProgress.entrySet()) {
+                batch.append("{\"t\":\"progress\",\"id\":").append(JSONObject.quote(e.getKey()))
+                        .append(",\"bytes\":").append(e.getValue()).append("}\n");
+            }
+            records += pending.size() + pendingProgress.size();
+            pending.clear();
+            pendingProgress.clear();
+            compact = records > COMPACT_MIN_RECORDS && records > 4 * live.size();
+        }
+        try {
+            if (compact) {
+                compact();
+            } else if (batch.length() > 0) {
+                try (FileOutputStream out = new FileOutputStream(file, true)) {
+                    out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                    out.getFD().sync();
+                }
+            }
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Transfer journal write failed: " + e.getMessage());
+        }
+    }
+
+    /** Replaces the log with one {@code add} per live job, via a temp file and rename. */
+    private void compact() throws IOException {
+        StringBuilder snapshot = new StringBuilder();
+        int count;
+        synchronized (this) {
+            try {
+                for (Job job : live.values()) snapshot.append(job.toRecord().toString()).append('\n');
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            // Buffered records are covered by the snapshot
+            pending.clear();
+            pendingProgress.clear();
+            count = live.size();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Failed to replace " + file.getName());
+        synchronized (this) {
+            records = count;
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                try {
+                    JSONObject o = new JSONObject(line);
+                    String id = o.getString("id");
+                    switch (o.getString("t")) {
+                        case "add":
+                            live.put(id, Job.fromRecord(o));
+                            break;
+                        case "progress":
+                            Job job = live.get(id);
+                            if (job != null) job.bytes = o.getLong("bytes");
+                            break;
+                        case "end":
+                            live.remove(id);
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (JSONException e) {
+                    // A line cut short by process death; everything before it is intact
+                    android.util.Log.w("WebDavNative", "Skipping bad transfer journal line: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Transfer journal unreadable: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.android.drive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Decides whether a remote file, as described by a PROPFIND, already holds the content of a local
+ * file, so that uploading it again can be skipped. In order of preference:
+ * <ol>
+ *   <li>a server checksum ({@code oc:checksums}) of an algorithm we can compute settles it either way;</li>
+ *   <li>the same size with a remote mtime no older than the local one, as left by an earlier upload;</li>
+ *   <li>the same size with an etag that is the plain MD5 of the local content.</li>
+ * </ol>
+ * Local digests come from the {@link HashCache}, so a re-sync hashes nothing that was hashed before.
+ */
+final class UploadDedup {
+    private final HashCache hashes;
+
+    UploadDedup(HashCache hashes) {
+        this.hashes = hashes;
+    }
+
+    boolean matches(File local, PropfindParser.Entry remote) throws IOException {
+        if (remote.isCollection || remote.size < 0 || remote.size != local.length()) return false;
+
+        if (remote.checksums != null) {
+            // Space-separated "TYPE:hex" pairs, e.g. "SHA1:... MD5:... ADLER32:..."
+            for (String checksum : remote.checksums.split("\\s+")) {
+                int colon = checksum.indexOf(':');
+                if (colon <= 0) continue;
+                String algorithm = StreamingDigest.algorithm(checksum.substring(0, colon));
+                if (algorithm == null) continue;
+                return hashes.digest(local, algorithm).equalsIgnoreCase(checksum.substring(colon + 1));
+            }
+        }
+
+        // HTTP dates have whole seconds
+        if (remote.mtime >= 0 && remote.mtime >= local.lastModified() / 1000 * 1000) return true;
+
+        String md5 = md5Etag(remote.etag);
+        return md5 != null && md5.equalsIgnoreCase(hashes.digest(local, "MD5"));
+    }
+
+    /** Persists digests computed since the last call. */
+    void save() {
+        hashes.save();
+    }
+
+    /** Decoded path of {@code url} without a trailing slash, comparable to {@link #pathKey(HttpUrl, String)}. */
+    static String pathKey(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        StringBuilder sb = new StringBuilder();
+        for (String segment : segments) {
+            if (!segment.isEmpty()) sb.append('/').append(segment);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    /** @param href a PROPFIND href, absolute or relative to {@code base} */
+    static String pathKey(HttpUrl base, String href) {
+        HttpUrl resolved = base.resolve(href);
+        return resolved != null ? pathKey(resolved) : href;
+    }
+
+    /** Some servers use the content MD5 as strong etag; null if {@code etag} cannot be one. */
+    private static String md5Etag(String etag) {
+        if (etag == null || etag.startsWith("W/")) return null;
+        String s = etag.startsWith("\"") && etag.endsWith("\"") && etag.length() >= 2 ? etag.substring(1, etag.length() - 1) : etag;
+        return s.matches("[0-9a-fA-F]{32}") ? s : null;
+    }
+}
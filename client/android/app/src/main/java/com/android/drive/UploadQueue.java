@@ -0,0 +1,221 @@
+package com.android.drive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Native scheduler for batches of uploads. Pending files from all batches share one list ordered by
+ * size, so small files finish first, and a file only starts when both the global limit and its
+ * host's limit have room. A host that is saturated therefore never blocks a worker that could be
+ * serving another host.
+ */
+final class UploadQueue {
+    /** Performs one upload; {@code item.sent} is advanced through {@link Item#progress}. */
+    interface Transfer {
+        void upload(Item item) throws IOException;
+    }
+
+    interface Listener {
+        /** Throttled to about twice a second per batch, plus once when the batch finishes. */
+        void onProgress(Batch batch);
+
+        void onItemFinished(Batch batch, Item item, String error);
+
+        void onBatchFinished(Batch batch);
+    }
+
+    static final class Item {
+        final Batch batch;
+        final String id;
+        final File source;
+        final String url;
+        final String host;
+        final long size;
+        final Map<String, String> headers;
+        private final AtomicLong sent = new AtomicLong();
+
+        Item(Batch batch, String id, File source, String url, Map<String, String> headers) {
+            this.batch = batch;
+            this.id = id;
+            this.source = source;
+            this.url = url;
+            HttpUrl parsed = HttpUrl.parse(url);
+            this.host = parsed != null ? parsed.host() + ":" + parsed.port() : url;
+            this.size = source.length();
+            this.headers = headers;
+        }
+
+        /** Reports bytes sent so far for this file; may go backwards when a retry starts over. */
+        void progress(long bytes) {
+            long delta = bytes - sent.getAndSet(bytes);
+            batch.uploaded.addAndGet(delta);
+            batch.maybeReport();
+        }
+    }
+
+    final class Batch {
+        final String id;
+        final List<Item> items = new ArrayList<>();
+        final AtomicLong uploaded = new AtomicLong();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger finished = new AtomicInteger();
+        long totalBytes;
+        /** Per-batch upload options, see {@code WebDavPlugin.upload}. */
+        String driveId;
+        boolean resumable;
+        long chunkSize;
+        long maxBytesPerSec;
+        String checksum;
+        volatile boolean cancelled;
+        private final AtomicLong lastReport = new AtomicLong();
+
+        Batch(String id) {
+            this.id = id;
+        }
+
+        private void maybeReport() {
+            long now = System.currentTimeMillis();
+            long last = lastReport.get();
+            if (now - last >= 500 && lastReport.compareAndSet(last, now)) listener.onProgress(this);
+        }
+    }
+
+    private final Transfer transfer;
+    private final Listener listener;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "UploadQueue");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final List<Item> pending = new ArrayList<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    private int maxConcurrency = 4;
+    private int perHostConcurrency = 2;
+
+    UploadQueue(Transfer transfer, Listener listener) {
+        this.transfer = transfer;
+        this.listener = listener;
+    }
+
+    /** Changes the limits for everything started from now on. */
+    void setLimits(int maxConcurrency, int perHostConcurrency) {
+        synchronized (this) {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            this.perHostConcurrency = Math.max(1, perHostConcurrency);
+        }
+        dispatch();
+    }
+
+    Batch newBatch(String id) {
+        return new Batch(id);
+    }
+
+    /** Queues every item of {@code batch}; items must have been added to {@code batch.items}. */
+    void submit(Batch batch) {
+        for (Item item : batch.items) batch.totalBytes += item.size;
+        batches.put(batch.id, batch);
+        if (batch.items.isEmpty()) {
+            finishBatch(batch);
+            return;
+        }
+        synchronized (this) {
+            pending.addAll(batch.items);
+            pending.sort((a, b) -> Long.compare(a.size, b.size));
+        }
+        dispatch();
+    }
+
+    Batch getBatch(String id) {
+        return batches.get(id);
+    }
+
+    /** Drops the batch's queued items; running ones are stopped by the caller through their ids. */
+    void cancel(String batchId) {
+        Batch batch = batches.get(batchId);
+        if (batch == null) return;
+        batch.cancelled = true;
+        List<Item> dropped = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Item> it = pending.iterator(); it.hasNext(); ) {
+                Item item = it.next();
+                if (item.batch == batch) {
+                    it.remove();
+                    dropped.add(item);
+                }
+            }
+        }
+        for (Item item : dropped) finishItem(item, "Cancelled");
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private void dispatch() {
+        List<Item> starting = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Item> it = pending.iterator(); it.hasNext() && running < maxConcurrency; ) {
+                Item item = it.next();
+                Integer hostRunning = runningPerHost.get(item.host);
+                if (hostRunning != null && hostRunning >= perHostConcurrency) continue;
+                it.remove();
+                runningPerHost.put(item.host, hostRunning == null ? 1 : hostRunning + 1);
+                running++;
+                starting.add(item);
+            }
+        }
+        for (Item item : starting) workers.execute(() -> run(item));
+    }
+
+    private void run(Item item) {
+        String error = null;
+        try {
+            if (item.batch.cancelled) throw new IOException("Cancelled");
+            transfer.upload(item);
+            item.progress(item.size);
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+            item.progress(0);
+        } finally {
+            synchronized (this) {
+                running--;
+                int hostRunning = runningPerHost.get(item.host) - 1;
+                if (hostRunning == 0) runningPerHost.remove(item.host);
+                else runningPerHost.put(item.host, hostRunning);
+            }
+        }
+        finishItem(item, error);
+        dispatch();
+    }
+
+    private void finishItem(Item item, String error) {
+        Batch batch = item.batch;
+        if (error == null) batch.completed.incrementAndGet();
+        else batch.failed.incrementAndGet();
+        listener.onItemFinished(batch, item, error);
+        if (batch.finished.incrementAndGet() == batch.items.size()) finishBatch(batch);
+    }
+
+    private void finishBatch(Batch batch) {
+        batches.remove(batch.id);
+        listener.onProgress(batch);
+        listener.onBatchFinished(batch);
+    }
+}
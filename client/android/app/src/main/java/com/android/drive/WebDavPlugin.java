@@ -11,24 +11,17 @@ import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.BufferedInputStream;
 import java.io.RandomAccessFile;
-import java.io.ByteArrayOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
 
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
-import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -49,6 +42,10 @@ import android.content.Context;
 import androidx.core.app.NotificationCompat;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONException;
+import org.json.JSONObject;
 import okhttp3.Call;
 
 @CapacitorPlugin(
@@ -64,6 +61,8 @@ public class WebDavPlugin extends Plugin {
 
     private final AtomicInteger activeTransfers = new AtomicInteger(0);
     private final ConcurrentHashMap<String, Call> activeCalls = new ConcurrentHashMap<>();
+    /** Cancel flags of running local tree walks, by id; {@link #cancel} sets them. */
+    private final ConcurrentHashMap<String, java.util.concurrent.atomic.AtomicBoolean> activeWalks = new ConcurrentHashMap<>();
 
     private void startTransfer() {
         int count = activeTransfers.getAndIncrement();
@@ -90,30 +89,58 @@ public class WebDavPlugin extends Plugin {
             intent.setAction(FileTransferService.ACTION_STOP);
             context.startService(intent);
             
-            // Force cancel notification ID 9999
-            NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-            manager.cancel(9999);
+            notifications.clear();
         }
     }
 
+    // HTTP/2 is negotiated through ALPN on TLS; servers without it, and plain http, stay on HTTP/1.1
     private final OkHttpClient client = new OkHttpClient.Builder()
-            .protocols(Arrays.asList(Protocol.HTTP_1_1))
             .connectTimeout(60, TimeUnit.SECONDS)
             .readTimeout(60, TimeUnit.SECONDS)
             .writeTimeout(0, TimeUnit.SECONDS) // No write timeout for large uploads
             .build();
+    private final DriveClients driveClients = new DriveClients(client);
+    private final BandwidthThrottler throttler = new BandwidthThrottler();
 
     private LocalFileServer localServer;
+    private RemoteFileCache remoteFiles;
+    private UploadQueue uploadQueue;
+    private ListingCache listings;
+    private TransferJournal journal;
+    /** Shares its id with the foreground service notification, which it then keeps updated. */
+    private static final int TRANSFER_NOTIFICATION_ID = 9999;
+    private NotificationAggregator notifications;
+    private final ExecutorService resumedDownloads = Executors.newSingleThreadExecutor();
+    /** Journaled jobs by driveId, waiting for configureDrive to supply their credentials. */
+    private final Map<String, List<TransferJournal.Job>> awaitingCredentials = new HashMap<>();
+    private HashCache hashes;
+    private FileIndex fileIndex;
+    private UploadDedup dedup;
+    private final ExecutorService uploadPreflight = Executors.newSingleThreadExecutor();
+    private final ParallelFileWalker walker = new ParallelFileWalker(Runtime.getRuntime().availableProcessors());
+    private final ExecutorService directorySizes = Executors.newSingleThreadExecutor();
+    private final ExecutorService searches = Executors.newSingleThreadExecutor();
+    private final DirectorySnapshots dirSnapshots = new DirectorySnapshots(8);
 
     @Override
     public void load() {
         super.load();
+        notifications = new NotificationAggregator(getContext(), TRANSFER_NOTIFICATION_ID);
+        journal = new TransferJournal(new File(getContext().getFilesDir(), "transfers.journal"));
+        listings = new ListingCache(new File(getContext().getCacheDir(), "listings"), 32L * 1024 * 1024, 100_000);
+        hashes = new HashCache(new File(getContext().getCacheDir(), "file-hashes"), 50_000);
+        dedup = new UploadDedup(hashes);
+        fileIndex = new FileIndex(getContext(), Environment.getExternalStorageDirectory(), new File(getContext().getCacheDir(), "file-index"), walker);
+        fileIndex.start();
+        remoteFiles = new RemoteFileCache(new File(getContext().getCacheDir(), "remote-blocks"), 256L * 1024 * 1024);
         try {
-            localServer = new LocalFileServer();
+            localServer = new LocalFileServer(getContext(), remoteFiles, getBridge().getLocalUrl());
             localServer.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // Last: resumed transfers run on other threads and use everything above
+        resumeTransfers();
     }
 
     @Override
@@ -121,6 +148,24 @@ public class WebDavPlugin extends Plugin {
         if (localServer != null) {
             localServer.stopServer();
         }
+        if (remoteFiles != null) {
+            remoteFiles.shutdown();
+        }
+        if (uploadQueue != null) {
+            uploadQueue.shutdown();
+        }
+        resumedDownloads.shutdownNow();
+        uploadPreflight.shutdownNow();
+        directorySizes.shutdownNow();
+        searches.shutdownNow();
+        if (fileIndex != null) {
+            fileIndex.shutdown();
+        }
+        walker.shutdown();
+        notifications.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
         super.handleOnDestroy();
     }
 
@@ -138,9 +183,8 @@ public class WebDavPlugin extends Plugin {
         Intent intent = new Intent(context, FileTransferService.class);
         intent.setAction(FileTransferService.ACTION_STOP);
         context.startService(intent);
-        
-        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-        manager.cancel(9999);
+
+        notifications.clear();
         
         call.resolve();
     }
@@ -148,11 +192,15 @@ public class WebDavPlugin extends Plugin {
     @PluginMethod
     public void cancel(PluginCall call) {
         String id = call.getString("id");
-        if (id != null) {
+        java.util.concurrent.atomic.AtomicBoolean walk = id != null ? activeWalks.remove(id) : null;
+        if (walk != null) {
+            // A local walk, not a transfer: nothing to show in the notification
+            walk.set(true);
+        } else if (id != null) {
             // Immediate UI feedback
             boolean isZh = java.util.Locale.getDefault().getLanguage().equals("zh");
             String title = isZh ? "正在取消..." : "Cancelling...";
-            doUpdateNotification(9999, title, "", 0, 0);
+            notifications.showNow(title);
 
             Call c = activeCalls.get(id);
             if (c != null) {
@@ -171,185 +219,165 @@ public class WebDavPlugin extends Plugin {
         if (localServer != null && localServer.getPort() > 0) {
             JSObject ret = new JSObject();
             ret.put("url", "http://127.0.0.1:" + localServer.getPort());
+            // For /remote/ and /thumb/, as ?token= or an X-Access-Token header
+            ret.put("token", localServer.getToken());
             call.resolve(ret);
         } else {
             call.reject("Server not running");
         }
     }
 
-    // --- Helper: Read line from BufferedInputStream without consuming extra bytes ---
-    private String readLine(BufferedInputStream in) throws IOException {
-        ByteArrayOutputStream lineBuf = new ByteArrayOutputStream();
-        int b;
-        while ((b = in.read()) != -1) {
-            if (b == '\n') break;
-            if (b != '\r') lineBuf.write(b);
+    /**
+     * Gives a drive its own HTTP client: {@code maxIdleConnections} and {@code keepAliveSeconds}
+     * size its connection pool, and {@code http2: false} pins it to HTTP/1.1 for servers whose h2
+     * support misbehaves. Transfer methods use it when passed the same {@code driveId}.
+     *
+     * {@code headers} are the drive's credential headers (Authorization, Cookie). They are kept in
+     * memory only and added back to the drive's journaled transfers, which are resumed once they
+     * arrive.
+     */
+    @PluginMethod
+    public void configureDrive(PluginCall call) {
+        String driveId = call.getString("driveId");
+        if (driveId == null || driveId.isEmpty()) {
+            call.reject("driveId is required");
+            return;
         }
-        if (lineBuf.size() == 0 && b == -1) return null;
-        return lineBuf.toString("UTF-8");
-    }
-
-    private String formatSpeed(long bytesPerSec) {
-        if (bytesPerSec < 1024 * 1024) {
-            return String.format(java.util.Locale.US, "%.1f KB/s", bytesPerSec / 1024.0);
+        driveClients.configure(driveId,
+                Math.max(1, call.getInt("maxIdleConnections", 5)),
+                Math.max(1, call.getInt("keepAliveSeconds", 300)),
+                call.getBoolean("http2", true));
+        JSObject headers = call.getObject("headers");
+        if (headers != null) {
+            driveClients.setCredentials(driveId, toHeaderMap(headers));
+            List<TransferJournal.Job> waiting;
+            synchronized (awaitingCredentials) {
+                waiting = awaitingCredentials.remove(driveId);
+            }
+            if (waiting != null) resumeJobs(waiting);
         }
-        return String.format(java.util.Locale.US, "%.1f MB/s", bytesPerSec / (1024.0 * 1024.0));
+        call.resolve();
     }
 
-    private class LocalFileServer extends Thread {
-        private ServerSocket serverSocket;
-        private int port;
-        private boolean isRunning = true;
-        private final ExecutorService executor = Executors.newFixedThreadPool(16);
+    /**
+     * Caps transfer throughput, in bytes per second with 0 for unlimited: {@code globalBytesPerSec}
+     * for all transfers together, {@code backgroundBytesPerSec} for queued, resumed and
+     * {@code priority: 'background'} transfers together, and {@code perTransferBytesPerSec} for
+     * each transfer without its own {@code maxBytesPerSec}. Applies to running transfers too.
+     */
+    @PluginMethod
+    public void setBandwidthLimits(PluginCall call) {
+        throttler.setLimits(
+                Math.max(0, call.getInt("globalBytesPerSec", 0)),
+                Math.max(0, call.getInt("backgroundBytesPerSec", 0)),
+                Math.max(0, call.getInt("perTransferBytesPerSec", 0)));
+        JSObject ret = new JSObject();
+        ret.put("globalBytesPerSec", throttler.getGlobalLimit());
+        ret.put("backgroundBytesPerSec", throttler.getBackgroundLimit());
+        ret.put("perTransferBytesPerSec", throttler.getPerTransferLimit());
+        call.resolve(ret);
+    }
 
-        public LocalFileServer() throws IOException {
-            serverSocket = new ServerSocket(0);
-            port = serverSocket.getLocalPort();
-        }
+    /** Opens the bandwidth ticket of one transfer; its waits end early once {@code callbackId} is cancelled. */
+    private BandwidthThrottler.Ticket openThrottle(String callbackId, boolean background, long maxBytesPerSec) {
+        return throttler.open(background, maxBytesPerSec, () -> callbackId != null && !activeCalls.containsKey(callbackId));
+    }
 
-        public int getPort() {
-            return port;
-        }
+    @PluginMethod
+    public void removeDriveConfig(PluginCall call) {
+        String driveId = call.getString("driveId");
+        if (driveId != null) driveClients.remove(driveId);
+        call.resolve();
+    }
 
-        public void stopServer() {
-            isRunning = false;
-            try { serverSocket.close(); } catch (Exception e) {}
-            executor.shutdownNow();
+    /**
+     * Makes a drive streamable through the local server at {@code /remote/<driveId>/<path>}, so
+     * media elements can seek within remote files without a full download. Requests need the
+     * {@code token} from {@link #getServerUrl}.
+     */
+    @PluginMethod
+    public void registerRemoteDrive(PluginCall call) {
+        String driveId = call.getString("driveId");
+        String baseUrl = call.getString("baseUrl");
+        if (driveId == null || driveId.isEmpty() || driveId.contains("/") || baseUrl == null) {
+            call.reject("driveId and baseUrl are required");
+            return;
         }
-
-        @Override
-        public void run() {
-            while (isRunning) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    executor.submit(() -> handleClient(socket));
-                } catch (IOException e) {
-                    if (isRunning) e.printStackTrace();
-                }
-            }
+        try {
+            remoteFiles.registerDrive(driveId, driveClients.get(driveId), baseUrl, toHeaderMap(call.getObject("headers")));
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
         }
+        call.resolve();
+    }
 
-        private void handleClient(Socket socket) {
-            try (InputStream rawIn = socket.getInputStream();
-                 OutputStream out = socket.getOutputStream()) {
-                
-                BufferedInputStream in = new BufferedInputStream(rawIn);
-                
-                String requestLine = readLine(in);
-                if (requestLine == null) return;
-
-                String[] parts = requestLine.split(" ");
-                if (parts.length < 2) return;
-                
-                String method = parts[0].toUpperCase();
-                String path = java.net.URLDecoder.decode(parts[1], "UTF-8");
-                
-                long contentLength = -1;
-                long rangeStart = 0;
-                long rangeEnd = -1;
-
-                String line;
-                while ((line = readLine(in)) != null && !line.isEmpty()) {
-                    String lower = line.toLowerCase();
-                    if (lower.startsWith("content-length:")) {
-                        contentLength = Long.parseLong(line.substring(15).trim());
-                    } else if (lower.startsWith("range:")) {
-                        Pattern p = Pattern.compile("bytes=(\\d+)-(\\d*)");
-                        Matcher m = p.matcher(lower);
-                        if (m.find()) {
-                            rangeStart = Long.parseLong(m.group(1));
-                            if (!m.group(2).isEmpty()) {
-                                rangeEnd = Long.parseLong(m.group(2));
-                            }
-                        }
-                    }
-                }
+    @PluginMethod
+    public void unregisterRemoteDrive(PluginCall call) {
+        String driveId = call.getString("driveId");
+        if (driveId != null) remoteFiles.unregisterDrive(driveId);
+        call.resolve();
+    }
 
-                File root;
-                if (path.startsWith("/cache/")) {
-                    root = getContext().getExternalCacheDir();
-                    path = path.substring(7);
-                } else {
-                    root = Environment.getExternalStorageDirectory();
-                }
-                
-                File file = new File(root, path);
-                
-                if (!file.getCanonicalPath().startsWith(root.getCanonicalPath())) {
-                    out.write("HTTP/1.1 403 Forbidden\r\n\r\n".getBytes());
-                    return;
-                }
+    @PluginMethod
+    public void getServerStats(PluginCall call) {
+        if (localServer == null) {
+            call.reject("Server not running");
+            return;
+        }
+        com.getcapacitor.JSArray loops = new com.getcapacitor.JSArray();
+        for (int i = 0; i < localServer.getLoopCount(); i++) {
+            LocalFileServer.EventLoop loop = localServer.getLoop(i);
+            JSObject item = new JSObject();
+            item.put("connections", loop.getConnectionCount());
+            item.put("iterations", loop.getIterations());
+            item.put("lastLatencyUs", loop.getLastLatencyNanos() / 1000);
+            item.put("avgLatencyUs", loop.getAvgLatencyNanos() / 1000);
+            item.put("maxLatencyUs", loop.getMaxLatencyNanos() / 1000);
+            loops.put(item);
+        }
+        JSObject ret = new JSObject();
+        ret.put("loops", loops);
+        call.resolve(ret);
+    }
 
-                if ("PUT".equals(method)) {
-                    File parent = file.getParentFile();
-                    if (!parent.exists()) parent.mkdirs();
-                    
-                    boolean success = false;
-                    try (FileOutputStream fos = new FileOutputStream(file)) {
-                         byte[] buffer = new byte[65536];
-                         long bytesLeft = contentLength;
-                         int read;
-                         while (bytesLeft > 0 || contentLength == -1) {
-                             int maxRead = (contentLength == -1) ? buffer.length : (int) Math.min(buffer.length, bytesLeft);
-                             read = in.read(buffer, 0, maxRead);
-                             if (read == -1) break;
-                             fos.write(buffer, 0, read);
-                             if (contentLength != -1) bytesLeft -= read;
-                         }
-                         success = true;
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    } finally {
-                        if (!success && file.exists()) {
-                            android.util.Log.d("WebDavNative", "Deleting partial PUT file: " + file.getAbsolutePath());
-                            file.delete();
-                        }
-                    }
-                    if (success) {
-                        out.write("HTTP/1.1 201 Created\r\nAccess-Control-Allow-Origin: *\r\n\r\n".getBytes());
-                    } else {
-                        out.write("HTTP/1.1 500 Internal Server Error\r\n\r\n".getBytes());
+    @PluginMethod
+    public void runBenchmark(PluginCall call) {
+        String name = call.getString("name", "localServerGet");
+        try {
+            switch (name) {
+                case "localServerGet":
+                    if (localServer == null) {
+                        call.reject("Server not running");
+                        return;
                     }
-                } else if ("OPTIONS".equals(method)) {
-                    out.write("HTTP/1.1 200 OK\r\nAccess-Control-Allow-Origin: *\r\nAccess-Control-Allow-Methods: GET, PUT, OPTIONS\r\nAccess-Control-Allow-Headers: Content-Type\r\n\r\n".getBytes());
-                } else {
-                    if (!file.exists() || !file.isFile()) {
-                        out.write("HTTP/1.1 404 Not Found\r\n\r\n".getBytes());
+                    call.resolve(Benchmarks.localServerGet(localServer, getContext().getExternalCacheDir(), call.getInt("sizeMb", 256)));
+                    break;
+                case "httpParser":
+                    call.resolve(Benchmarks.httpParser(call.getInt("iterations", 200000)));
+                    break;
+                case "http2":
+                    String url = call.getString("url");
+                    if (url == null) {
+                        call.reject("url is required");
                         return;
                     }
-
-                    long fileLength = file.length();
-                    if (rangeEnd == -1) rangeEnd = fileLength - 1;
-                    long finalLength = rangeEnd - rangeStart + 1;
-
-                    StringBuilder headers = new StringBuilder();
-                    headers.append("HTTP/1.1 206 Partial Content\r\n");
-                    headers.append("Content-Type: application/octet-stream\r\n"); 
-                    headers.append("Accept-Ranges: bytes\r\n");
-                    headers.append("Content-Length: ").append(finalLength).append("\r\n");
-                    headers.append("Content-Range: bytes ").append(rangeStart).append("-").append(rangeEnd).append("/").append(fileLength).append("\r\n");
-                    headers.append("Access-Control-Allow-Origin: *\r\n");
-                    headers.append("\r\n");
-                    out.write(headers.toString().getBytes());
-
-                    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-                        raf.seek(rangeStart);
-                        byte[] buffer = new byte[65536];
-                        long bytesToRead = finalLength;
-                        while (bytesToRead > 0) {
-                            int read = raf.read(buffer, 0, (int) Math.min(buffer.length, bytesToRead));
-                            if (read == -1) break;
-                            out.write(buffer, 0, read);
-                            bytesToRead -= read;
-                        }
+                    call.resolve(Benchmarks.http2(client, url, toHeaderMap(call.getObject("headers")),
+                            Math.max(1, call.getInt("requests", 200)), Math.max(1, call.getInt("parallelism", 16))));
+                    break;
+                case "checksum":
+                    if (localServer == null) {
+                        call.reject("Server not running");
+                        return;
                     }
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try { socket.close(); } catch (IOException e) {}
+                    call.resolve(Benchmarks.checksum(localServer, getContext().getExternalCacheDir(),
+                            call.getInt("sizeMb", 1024), Math.max(0, call.getInt("linkMbPerSec", 100))));
+                    break;
+                default:
+                    call.reject("Unknown benchmark: " + name);
             }
+        } catch (Exception e) {
+            call.reject("Benchmark failed: " + e.getMessage());
         }
     }
 
@@ -419,64 +447,208 @@ public class WebDavPlugin extends Plugin {
         }
     }
 
+    /**
+     * Finds local files by name. By default resolves with up to {@code limit} items; with
+     * {@code stream: true} it resolves with a {@code searchId} right away and delivers the matches
+     * through {@code searchResults} events instead (see {@link #streamSearch}). {@code format:
+     * "columns"} returns {@code columns} in place of {@code items} (see {@link EntryList}).
+     */
     @PluginMethod
     public void search(PluginCall call) {
         String query = call.getString("query");
+        String format = call.getString("format", EntryList.FORMAT_ITEMS);
+        if (!EntryList.isFormat(format)) {
+            call.reject("Unsupported format: " + format);
+            return;
+        }
+        if (call.getBoolean("stream", false)) {
+            streamSearch(call, query, format);
+            return;
+        }
         if (query == null || query.isEmpty()) {
             JSObject ret = new JSObject();
-            ret.put("items", new com.getcapacitor.JSArray());
+            new EntryList(true).putInto(ret, format);
             call.resolve(ret);
             return;
         }
 
-        final int LIMIT = 100;
+        final int LIMIT = Math.max(1, call.getInt("limit", 100));
+        // No-op once running; retries a build that found no storage permission
+        fileIndex.start();
+        if (fileIndex.isReady()) {
+            FileIndex.Result found = fileIndex.search(query, LIMIT);
+            EntryList items = new EntryList(true);
+            for (FileIndex.Hit hit : found.hits) items.add(hit.name, hit.path, hit.isDirectory, hit.size, hit.mtime);
+            JSObject ret = new JSObject();
+            items.putInto(ret, format);
+            ret.put("total", found.total);
+            ret.put("indexed", true);
+            call.resolve(ret);
+            return;
+        }
+
+        // The index is still being built; walk the tree as before, bounded in hits and time
         final long TIME_LIMIT = 5000;
         final long startTime = System.currentTimeMillis();
 
         File root = Environment.getExternalStorageDirectory();
-        String rootPath = root.getAbsolutePath();
-        com.getcapacitor.JSArray results = new com.getcapacitor.JSArray();
+        String rootPath = root.getPath();
+        String needle = query.toLowerCase();
+        EntryList results = new EntryList(true);
+        AtomicInteger count = new AtomicInteger();
+
+        walker.walk(root, false, (dir, entries) -> {
+            for (ParallelFileWalker.Entry e : entries) {
+                if (!e.name.toLowerCase().contains(needle)) continue;
+                if (count.getAndIncrement() >= LIMIT) return;
+                synchronized (results) {
+                    results.add(e.name, searchPath(e, rootPath), e.isDirectory, e.size, e.mtime);
+                }
+            }
+        }, () -> count.get() >= LIMIT || System.currentTimeMillis() - startTime > TIME_LIMIT);
 
-        java.util.Stack<File> stack = new java.util.Stack<>();
-        stack.push(root);
+        JSObject ret = new JSObject();
+        results.putInto(ret, format);
+        call.resolve(ret);
+    }
 
-        int count = 0;
+    /**
+     * Streaming search: resolves with {@code searchId} at once, then emits {@code searchResults}
+     * events of {@code {searchId, items or columns, done}} as matches come in, the first one immediately and
+     * then every {@code batchSize} matches (default 50) or {@code batchIntervalMs} (default 50).
+     * The last event has {@code done: true} with {@code total}, {@code cancelled},
+     * {@code truncated} and {@code indexed}. There is no result cap unless {@code limit} is given,
+     * and no time limit; {@code cancel({id: searchId})} stops it.
+     */
+    private void streamSearch(PluginCall call, String query, String format) {
+        String searchId = call.getString("searchId", "search-" + Long.toHexString(System.nanoTime()));
+        int batchSize = Math.max(1, call.getInt("batchSize", 50));
+        SearchStream stream = new SearchStream(searchId, Math.max(0, call.getInt("limit", 0)), batchSize,
+                Math.max(0, call.getInt("batchIntervalMs", 50)), format, event -> notifyListeners("searchResults", event));
+        java.util.concurrent.atomic.AtomicBoolean cancelled = new java.util.concurrent.atomic.AtomicBoolean();
+        activeWalks.put(searchId, cancelled);
 
-        while (!stack.isEmpty()) {
-            if (count >= LIMIT || System.currentTimeMillis() - startTime > TIME_LIMIT) break;
-            
-            File dir = stack.pop();
-            File[] files = dir.listFiles();
-            if (files == null) continue;
-
-            for (File f : files) {
-                if (f.getName().startsWith(".")) continue;
-                if (count >= LIMIT || System.currentTimeMillis() - startTime > TIME_LIMIT) break;
-
-                if (f.getName().toLowerCase().contains(query.toLowerCase())) {
-                    JSObject item = new JSObject();
-                    item.put("name", f.getName());
-                    String fullPath = f.getAbsolutePath();
-                    String relPath = fullPath.startsWith(rootPath) ? fullPath.substring(rootPath.length()) : fullPath;
-                    if (!relPath.startsWith("/")) relPath = "/" + relPath;
-                    
-                    item.put("path", relPath);
-                    item.put("isDirectory", f.isDirectory());
-                    item.put("size", f.length());
-                    item.put("mtime", f.lastModified());
-                    results.put(item);
-                    count++;
+        JSObject ret = new JSObject();
+        ret.put("searchId", searchId);
+        call.resolve(ret);
+
+        searches.execute(() -> {
+            boolean indexed = false;
+            try {
+                if (query == null || query.isEmpty()) return;
+                fileIndex.start();
+                indexed = fileIndex.isReady();
+                if (indexed) {
+                    streamFromIndex(query, batchSize, stream, cancelled);
+                } else {
+                    File root = Environment.getExternalStorageDirectory();
+                    String needle = query.toLowerCase();
+                    walker.walk(root, false, (dir, entries) -> {
+                        for (ParallelFileWalker.Entry e : entries) {
+                            if (e.name.toLowerCase().contains(needle)
+                                    && !stream.add(e.name, searchPath(e, root.getPath()), e.isDirectory, e.size, e.mtime)) return;
+                        }
+                        stream.poll();
+                    }, () -> cancelled.get() || stream.isFull() || searches.isShutdown());
                 }
+            } finally {
+                activeWalks.remove(searchId, cancelled);
+                stream.finish(cancelled.get(), indexed);
+            }
+        });
+    }
 
-                if (f.isDirectory()) stack.push(f);
+    private void streamFromIndex(String query, int batchSize, SearchStream stream, java.util.concurrent.atomic.AtomicBoolean cancelled) {
+        FileIndex.Match match = fileIndex.match(query);
+        int position = 0;
+        while (position < match.ids.length && !cancelled.get() && !stream.isFull()) {
+            int to = Math.min(match.ids.length, position + batchSize);
+            List<FileIndex.Hit> hits = fileIndex.hits(match, position, to);
+            if (hits == null) {
+                // Compacted meanwhile; the order of what is left is unchanged
+                match = fileIndex.match(query);
+                continue;
             }
+            for (FileIndex.Hit hit : hits) stream.add(hit.name, hit.path, hit.isDirectory, hit.size, hit.mtime);
+            position = to;
         }
+    }
 
-        JSObject ret = new JSObject();
-        ret.put("items", results);
-        call.resolve(ret);
+    /** Path relative to storage root with a leading slash, as search reports it. */
+    private static String searchPath(ParallelFileWalker.Entry e, String rootPath) {
+        String relPath = e.path.startsWith(rootPath) ? e.path.substring(rootPath.length()) : e.path;
+        return relPath.startsWith("/") ? relPath : "/" + relPath;
     }
 
+    /**
+     * Total size of the files below {@code path}, hidden ones included, as {@code {size, files,
+     * directories, links}}. Symbolic links are never entered, so they only count in {@code links}:
+     * what they point to is either counted where it lives or lies outside {@code path}. Runs off
+     * the plugin thread; an {@code id} makes it cancellable via {@link #cancel}.
+     */
+    @PluginMethod
+    public void getDirectorySize(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null) {
+            call.reject("Path is required");
+            return;
+        }
+        File dir = new File(Environment.getExternalStorageDirectory(), path);
+        if (!dir.isDirectory()) {
+            call.reject("Directory does not exist");
+            return;
+        }
+
+        String id = call.getString("id");
+        java.util.concurrent.atomic.AtomicBoolean cancelled = new java.util.concurrent.atomic.AtomicBoolean();
+        if (id != null) activeWalks.put(id, cancelled);
+        directorySizes.execute(() -> {
+            java.util.concurrent.atomic.LongAdder size = new java.util.concurrent.atomic.LongAdder();
+            java.util.concurrent.atomic.LongAdder files = new java.util.concurrent.atomic.LongAdder();
+            java.util.concurrent.atomic.LongAdder directories = new java.util.concurrent.atomic.LongAdder();
+            java.util.concurrent.atomic.LongAdder links = new java.util.concurrent.atomic.LongAdder();
+            boolean complete = walker.walk(dir, true, (parent, entries) -> {
+                for (ParallelFileWalker.Entry e : entries) {
+                    if (e.isLink) {
+                        links.increment();
+                    } else if (e.isDirectory) {
+                        directories.increment();
+                    } else {
+                        files.increment();
+                        size.add(e.size);
+                    }
+                }
+            }, () -> cancelled.get() || directorySizes.isShutdown());
+            if (id != null) activeWalks.remove(id, cancelled);
+            if (!complete) {
+                call.reject("Cancelled");
+                return;
+            }
+            JSObject ret = new JSObject();
+            ret.put("size", size.sum());
+            ret.put("files", files.sum());
+            ret.put("directories", directories.sum());
+            ret.put("links", links.sum());
+            call.resolve(ret);
+        });
+    }
+
+    /**
+     * Lists a local directory. Without options it returns every entry, as before. For large
+     * folders the UI can page instead, and the listing is then taken once and kept (see
+     * {@link DirectorySnapshots}):
+     * <ul>
+     *   <li>{@code offset}, {@code limit}: the slice to return; {@code total} counts all matches</li>
+     *   <li>{@code sort}: name (natural order), size or mtime; {@code order}: asc or desc;
+     *       {@code directoriesFirst} (default true) keeps folders on top when sorted</li>
+     *   <li>{@code type}: all, files or directories; {@code extensions}: e.g. ["jpg", "png"],
+     *       applied to files; {@code prefix}: case-insensitive name prefix</li>
+     *   <li>{@code refresh}: list again even if nothing seems to have changed</li>
+     * </ul>
+     * {@code version} identifies the listing the page came from; when it changes between pages,
+     * the folder changed and earlier pages may be out of date. {@code format: "columns"} returns
+     * {@code columns} in place of {@code items} (see {@link EntryList}).
+     */
     @PluginMethod
     public void listDirectory(PluginCall call) {
         String path = call.getString("path");
@@ -493,22 +665,53 @@ public class WebDavPlugin extends Plugin {
             return;
         }
 
-        File[] files = dir.listFiles();
-        com.getcapacitor.JSArray results = new com.getcapacitor.JSArray();
-
-        if (files != null) {
-            for (File f : files) {
-                JSObject item = new JSObject();
-                item.put("name", f.getName());
-                item.put("isDirectory", f.isDirectory());
-                item.put("size", f.length());
-                item.put("mtime", f.lastModified());
-                results.put(item);
+        String format = call.getString("format", EntryList.FORMAT_ITEMS);
+        if (!EntryList.isFormat(format)) {
+            call.reject("Unsupported format: " + format);
+            return;
+        }
+        String sort = call.getString("sort");
+        if (sort != null && !sort.equals(DirectorySnapshots.SORT_NAME) && !sort.equals(DirectorySnapshots.SORT_SIZE)
+                && !sort.equals(DirectorySnapshots.SORT_MTIME)) {
+            call.reject("Unsupported sort: " + sort);
+            return;
+        }
+        String type = call.getString("type", DirectorySnapshots.TYPE_ALL);
+        if (!type.equals(DirectorySnapshots.TYPE_ALL) && !type.equals(DirectorySnapshots.TYPE_FILES)
+                && !type.equals(DirectorySnapshots.TYPE_DIRECTORIES)) {
+            call.reject("Unsupported type: " + type);
+            return;
+        }
+        java.util.Set<String> extensions = null;
+        com.getcapacitor.JSArray extensionList = call.getArray("extensions");
+        if (extensionList != null && extensionList.length() > 0) {
+            extensions = new java.util.HashSet<>();
+            for (int i = 0; i < extensionList.length(); i++) {
+                String ext = extensionList.optString(i, "");
+                if (ext.startsWith(".")) ext = ext.substring(1);
+                if (!ext.isEmpty()) extensions.add(ext.toLowerCase(java.util.Locale.ROOT));
             }
         }
+        DirectorySnapshots.Query query = new DirectorySnapshots.Query(sort, "desc".equalsIgnoreCase(call.getString("order")),
+                call.getBoolean("directoriesFirst", true), type, extensions, call.getString("prefix"));
+
+        DirectorySnapshots.Snapshot snapshot = dirSnapshots.get(dir, call.getBoolean("refresh", false));
+        ParallelFileWalker.Entry[] view = snapshot != null ? snapshot.view(query) : new ParallelFileWalker.Entry[0];
+        int offset = Math.min(Math.max(0, call.getInt("offset", 0)), view.length);
+        int limit = call.getInt("limit", 0);
+        int end = limit > 0 ? (int) Math.min((long) offset + limit, view.length) : view.length;
+
+        EntryList results = new EntryList(false);
+        for (int i = offset; i < end; i++) {
+            ParallelFileWalker.Entry e = view[i];
+            results.add(e.name, null, e.isDirectory, e.size, e.mtime);
+        }
 
         JSObject ret = new JSObject();
-        ret.put("items", results);
+        results.putInto(ret, format);
+        ret.put("total", view.length);
+        ret.put("offset", offset);
+        if (snapshot != null) ret.put("version", snapshot.version);
         call.resolve(ret);
     }
 
@@ -529,8 +732,13 @@ public class WebDavPlugin extends Plugin {
         }
 
         boolean success = dir.mkdirs();
-        if (success) call.resolve();
-        else call.reject("Failed to create directory: " + dir.getAbsolutePath());
+        if (success) {
+            fileIndex.refresh(dir.getParentFile());
+            dirSnapshots.invalidate(dir.getParentFile());
+            call.resolve();
+        } else {
+            call.reject("Failed to create directory: " + dir.getAbsolutePath());
+        }
     }
 
     @PluginMethod
@@ -540,61 +748,30 @@ public class WebDavPlugin extends Plugin {
         String description = call.getString("description", "Processing...");
         int progress = call.getInt("progress", 0);
         int max = call.getInt("max", 100);
-        
-        doUpdateNotification(id, title, description, progress, max);
+
+        if (id == TRANSFER_NOTIFICATION_ID) {
+            // Shown together with native transfer progress instead of overwriting it
+            notifications.setLabel(title, description, progress, max);
+        } else {
+            doUpdateNotification(id, title, description, progress, max);
+        }
         call.resolve();
     }
     
     private void doUpdateNotification(int id, String title, String description, int progress, int max) {
         Context context = getContext();
-        
-        // Log for debugging
-        android.util.Log.d("WebDavNotification", "Updating notification ID: " + id + " Title: " + title + " Progress: " + progress + "/" + max);
-
         NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notifications.ensureChannel();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            // Use DEFAULT importance to ensure visibility in status bar. 
-            // Changed ID to 'file_ops_v2' to force update on existing installs.
-            NotificationChannel channel = new NotificationChannel("file_ops_v2", "File Operations", NotificationManager.IMPORTANCE_DEFAULT);
-            channel.setSound(null, null); 
-            channel.enableVibration(false);
-            channel.setShowBadge(false);
-            manager.createNotificationChannel(channel);
-        }
-
-        // Determine icon based on progress
-        int iconResId = com.android.drive.R.drawable.ic_stat_transfer_0;
-        if (max > 0) {
-            int percent = (int) ((progress * 100.0f) / max);
-            if (percent >= 100) iconResId = com.android.drive.R.drawable.ic_stat_transfer_100;
-            else if (percent >= 80) iconResId = com.android.drive.R.drawable.ic_stat_transfer_80;
-            else if (percent >= 60) iconResId = com.android.drive.R.drawable.ic_stat_transfer_60;
-            else if (percent >= 40) iconResId = com.android.drive.R.drawable.ic_stat_transfer_40;
-            else if (percent >= 20) iconResId = com.android.drive.R.drawable.ic_stat_transfer_20;
-        }
-
-        // Create PendingIntent to open app on click
-        Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(context.getPackageName());
-        PendingIntent pendingIntent = null;
-        if (launchIntent != null) {
-            launchIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-            launchIntent.setData(Uri.parse("webdav://transfers")); // Deep link
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                flags |= PendingIntent.FLAG_IMMUTABLE;
-            }
-            pendingIntent = PendingIntent.getActivity(context, 0, launchIntent, flags);
-        }
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, "file_ops_v2")
-                .setSmallIcon(iconResId) 
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, NotificationAggregator.CHANNEL_ID)
+                .setSmallIcon(NotificationAggregator.iconFor(progress, max))
                 .setContentTitle(title)
                 .setContentText(description)
                 .setPriority(NotificationCompat.PRIORITY_LOW)
                 .setOngoing(true)
                 .setOnlyAlertOnce(true);
-        
+
+        PendingIntent pendingIntent = notifications.contentIntent();
         if (pendingIntent != null) {
             builder.setContentIntent(pendingIntent);
         }
@@ -611,9 +788,13 @@ public class WebDavPlugin extends Plugin {
     @PluginMethod
     public void cancelNotification(PluginCall call) {
         int id = call.getInt("id", 1);
-        Context context = getContext();
-        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-        manager.cancel(id);
+        if (id == TRANSFER_NOTIFICATION_ID) {
+            notifications.clearLabel();
+        } else {
+            Context context = getContext();
+            NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.cancel(id);
+        }
         call.resolve();
     }
 
@@ -621,6 +802,7 @@ public class WebDavPlugin extends Plugin {
     public void upload(PluginCall call) {
         startTransfer();
         String tempIdForFinally = null;
+        String notificationKey = null;
         try {
             String url = call.getString("url");
             String method = call.getString("method", "PUT");
@@ -656,19 +838,7 @@ public class WebDavPlugin extends Plugin {
             android.util.Log.d("WebDavNative", "Upload sourcePath: " + sourcePath);
             android.util.Log.d("WebDavNative", "Upload Input Keys: " + call.getData().keys());
 
-            File file = new File(sourcePath);
-            if (!file.exists()) {
-                // Not a valid absolute path, try relative to External Storage
-                File root = Environment.getExternalStorageDirectory();
-                String relative = sourcePath.startsWith("/") ? sourcePath.substring(1) : sourcePath;
-                file = new File(root, relative);
-                
-                if (!file.exists()) {
-                    // Try Cache Dir
-                    File cache = getContext().getExternalCacheDir();
-                    file = new File(cache, relative);
-                }
-            }
+            File file = resolveUploadSource(sourcePath);
 
             android.util.Log.d("WebDavNative", "Resolved upload file: " + file.getAbsolutePath() + " (Exists: " + file.exists() + ")");
 
@@ -678,95 +848,603 @@ public class WebDavPlugin extends Plugin {
             }
 
             final File fileFinal = file;
+            notificationKey = callbackId != null ? callbackId : file.getName();
+            long[] last = {System.currentTimeMillis()};
+            Map<String, String> headerMap = toHeaderMap(headers);
+            if (call.getBoolean("skipExisting", false) && "PUT".equals(method)
+                    && alreadyUploaded(clientFor(call), url, headerMap, file)) {
+                android.util.Log.d("WebDavNative", "Skipping upload, server already has " + file.getName());
+                JSObject ret = new JSObject();
+                ret.put("skipped", true);
+                call.resolve(ret);
+                return;
+            }
+            boolean resumable = call.getBoolean("resumable", false);
+            long chunkSize = Math.max(ChunkedUploader.MIN_CHUNK_SIZE, call.getInt("chunkSize", 10 * 1024 * 1024));
+            long maxBytesPerSec = Math.max(0, call.getInt("maxBytesPerSec", 0));
+            String checksumType = call.getString("checksum");
+            if (checksumType != null && (checksumType = StreamingDigest.normalizeType(checksumType)) == null) {
+                call.reject("Unsupported checksum: " + call.getString("checksum"));
+                return;
+            }
+            // Resumed uploads go through the queue, which only PUTs
+            if (callbackId != null && "PUT".equals(method)) {
+                journal.add(new TransferJournal.Job(callbackId, TransferJournal.KIND_UPLOAD, url, file.getAbsolutePath(), headerMap,
+                        jobOptions("driveId", call.getString("driveId"), "resumable", resumable, "chunkSize", chunkSize,
+                                "maxBytesPerSec", maxBytesPerSec, "checksum", checksumType)));
+            }
 
-            Request.Builder requestBuilder = new Request.Builder().url(url);
+            try (BandwidthThrottler.Ticket throttle = openThrottle(callbackId, "background".equals(call.getString("priority")), maxBytesPerSec)) {
+                String checksum = transferFile(clientFor(call), call.getString("driveId"), callbackId, url, method, headerMap, file, resumable,
+                        chunkSize, call.getString("chunkProtocol"), throttle, checksumType,
+                        (uploaded, total) -> {
+                            long now = System.currentTimeMillis();
+                            if (now - last[0] <= 500) return;
+                            reportUploadProgress(callbackId, fileFinal.getName(), uploaded, total);
+                            last[0] = now;
+                        });
+                JSObject ret = new JSObject();
+                if (checksum != null) {
+                    hashes.save();
+                    ret.put("checksum", checksum);
+                }
+                call.resolve(ret);
+            } catch (TransferFailedException e) {
+                call.reject(e.getMessage());
+            } catch (IOException e) {
+                call.reject("Network error: " + e.getMessage());
+            }
+        } finally {
+            if (tempIdForFinally != null) {
+                activeCalls.remove(tempIdForFinally);
+                journal.end(tempIdForFinally);
+            }
+            if (notificationKey != null) notifications.finish(notificationKey);
+            endTransfer();
+        }
+    }
 
-            if (headers != null) {
-                for (Iterator<String> it = headers.keys(); it.hasNext(); ) {
-                    String key = it.next();
-                    String value = headers.getString(key);
-                    if (value != null) requestBuilder.addHeader(key, value);
+    private File resolveUploadSource(String sourcePath) {
+        File file = new File(sourcePath);
+        if (!file.exists()) {
+            // Not a valid absolute path, try relative to External Storage
+            File root = Environment.getExternalStorageDirectory();
+            String relative = sourcePath.startsWith("/") ? sourcePath.substring(1) : sourcePath;
+            file = new File(root, relative);
+
+            if (!file.exists()) {
+                // Try Cache Dir
+                File cache = getContext().getExternalCacheDir();
+                file = new File(cache, relative);
+            }
+        }
+        return file;
+    }
+
+    /** The server answered, but not with success; the message is passed to JS as is. */
+    private static class TransferFailedException extends IOException {
+        TransferFailedException(String message) {
+            super(message);
+        }
+    }
+
+    /** The transferred bytes do not hash to the checksum the server or JS gave. */
+    private static final class ChecksumMismatchException extends TransferFailedException {
+        ChecksumMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /** How often a transfer whose checksum does not match is repeated before it fails. */
+    private static final int CHECKSUM_RETRIES = 1;
+
+    /**
+     * Uploads one file, shared by {@link #upload} and the upload queue. With {@code resumable},
+     * PUTs larger than {@code chunkSize} go through {@link ChunkedUploader} when the server allows.
+     * Cancellation works through {@link #activeCalls} under {@code callbackId}, like everywhere else.
+     * The body is paced by {@code throttle}.
+     *
+     * With {@code checksumType}, the file is hashed as it is sent and compared with the checksum
+     * the server reports for what it stored, from the PUT response or else a PROPFIND; on a
+     * mismatch the upload is repeated.
+     *
+     * @return the checksum as {@code TYPE:hex}, or null without {@code checksumType}
+     */
+    private String transferFile(OkHttpClient http, String driveId, String callbackId, String url, String method, Map<String, String> headers, File file,
+                                boolean resumable, long chunkSize, String chunkProtocol, BandwidthThrottler.Ticket throttle,
+                                String checksumType, ChunkedUploader.Listener progress) throws IOException {
+        // Registered once, before any network I/O; sendFile swaps its call in with replace(), so an id
+        // cancel() removed in between (say during a checksum retry) stays removed
+        if (callbackId != null) activeCalls.putIfAbsent(callbackId, http.newCall(new Request.Builder().url(url).build()));
+        for (int attempt = 0; ; attempt++) {
+            long size = file.length();
+            long mtime = file.lastModified();
+            StreamingDigest digest = checksumType != null ? new StreamingDigest(checksumType) : null;
+            okhttp3.Headers response = sendFile(http, driveId, callbackId, url, method, headers, file, resumable, chunkSize, chunkProtocol,
+                    throttle, digest, progress);
+            if (digest == null) return null;
+            digest.catchUp(file, size);
+            String actual = digest.hex();
+            if (file.length() == size && file.lastModified() == mtime) {
+                hashes.put(file, StreamingDigest.algorithm(digest.type), size, mtime, actual);
+            }
+
+            String[] expected = StreamingDigest.pick(response != null ? StreamingDigest.fromHeaders(response, false) : null, digest.type);
+            if (expected == null) expected = StreamingDigest.pick(storedChecksums(http, url, headers), digest.type);
+            if (expected == null || expected[1].equalsIgnoreCase(actual)) return digest.type + ":" + actual;
+
+            String message = "Checksum mismatch after upload: server has " + expected[1] + ", sent " + actual;
+            if (attempt >= CHECKSUM_RETRIES || (callbackId != null && !activeCalls.containsKey(callbackId))) {
+                throw new ChecksumMismatchException(message);
+            }
+            android.util.Log.w("WebDavNative", message + "; uploading again");
+        }
+    }
+
+    /** Checksums the server keeps for {@code url} ({@code oc:checksums}), or null if it has none. */
+    private String storedChecksums(OkHttpClient http, String url, Map<String, String> headers) {
+        PropfindParser.Entry[] remote = new PropfindParser.Entry[1];
+        try {
+            int status = propfind(http, url, headers, "0", PropfindParser.DEDUP_BODY, null, entry -> remote[0] = entry);
+            return status == 207 && remote[0] != null ? remote[0].checksums : null;
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Could not read checksums of " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * One upload attempt of {@link #transferFile}; feeds {@code digest}, if any, from the copy loop.
+     *
+     * @return the headers of the final response, or null after a chunked upload
+     */
+    private okhttp3.Headers sendFile(OkHttpClient http, String driveId, String callbackId, String url, String method, Map<String, String> headers, File file,
+                                     boolean resumable, long chunkSize, String chunkProtocol, BandwidthThrottler.Ticket throttle,
+                                     StreamingDigest digest, ChunkedUploader.Listener progress) throws IOException {
+        // cancel() signals by removing the id that transferFile registered
+        BooleanSupplier cancelled = () -> callbackId != null && !activeCalls.containsKey(callbackId);
+
+        if (resumable && "PUT".equalsIgnoreCase(method) && file.length() > chunkSize) {
+            ChunkedUploader uploader = new ChunkedUploader(http, new File(getContext().getFilesDir(), "upload-journal"),
+                    url, headers, file, chunkSize, chunkProtocol);
+            uploader.setThrottle(throttle);
+            uploader.setDigest(digest);
+            try {
+                uploader.upload(cancelled, progress);
+                listings.invalidate(ListingCache.parentKey(ListingCache.scope(driveId, headers), url));
+                return null;
+            } catch (ChunkedUploader.UnsupportedException e) {
+                android.util.Log.d("WebDavNative", "Resumable upload unavailable, using a single PUT: " + e.getMessage());
+                uploader.abandon();
+            } catch (IOException e) {
+                // Keep the journal so a retry resumes, unless the user cancelled
+                if (cancelled.getAsBoolean()) uploader.abandon();
+                throw e;
+            }
+        }
+
+        String contentType = headers.get("Content-Type");
+        final MediaType mediaTypeFinal = MediaType.parse(contentType != null ? contentType : "application/octet-stream");
+
+        RequestBody requestBody = new RequestBody() {
+            @Override
+            public MediaType contentType() { return mediaTypeFinal; }
+            @Override
+            public long contentLength() { return file.length(); }
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                long fileLength = file.length();
+                byte[] buffer = new byte[65536];
+                long uploaded = 0;
+
+                try (InputStream in = new java.io.FileInputStream(file)) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        // Check for cancellation
+                        if (cancelled.getAsBoolean()) {
+                            throw new IOException("Cancelled");
+                        }
+
+                        throttle.acquire(read);
+                        sink.write(buffer, 0, read);
+                        if (digest != null) digest.update(uploaded, buffer, 0, read);
+                        uploaded += read;
+                        progress.onProgress(uploaded, fileLength);
+                    }
                 }
             }
+        };
 
-            final MediaType mediaTypeFinal;
-            if (headers != null && headers.has("Content-Type")) {
-                mediaTypeFinal = MediaType.parse(headers.getString("Content-Type"));
-            } else {
-                mediaTypeFinal = MediaType.parse("application/octet-stream");
+        Request.Builder requestBuilder = new Request.Builder().url(url).method(method, requestBody);
+        for (Map.Entry<String, String> h : headers.entrySet()) requestBuilder.addHeader(h.getKey(), h.getValue());
+
+        Call callObj = http.newCall(requestBuilder.build());
+        // replace() rather than put(), so a cancel that came in meanwhile is not undone
+        if (callbackId != null && activeCalls.replace(callbackId, callObj) == null) throw new IOException("Cancelled");
+
+        okhttp3.Headers responseHeaders;
+        try (Response response = callObj.execute()) {
+            if (!response.isSuccessful()) {
+                throw new TransferFailedException("Upload failed: " + response.code() + " " + response.message());
             }
+            responseHeaders = response.headers();
+        }
+        listings.invalidate(ListingCache.parentKey(ListingCache.scope(driveId, headers), url));
+        return responseHeaders;
+    }
 
-            RequestBody requestBody = new RequestBody() {
+    private synchronized UploadQueue getUploadQueue() {
+        if (uploadQueue == null) {
+            uploadQueue = new UploadQueue(item -> {
+                OkHttpClient http = driveClients.get(item.batch.driveId);
+                // Registered before checking the batch again: cancelUploadQueue marks the batch and then
+                // removes the ids, so it either finds this one or is seen here
+                activeCalls.putIfAbsent(item.id, http.newCall(new Request.Builder().url(item.url).build()));
+                try (BandwidthThrottler.Ticket throttle = openThrottle(item.id, true, item.batch.maxBytesPerSec)) {
+                    if (item.batch.cancelled) throw new IOException("Cancelled");
+                    if (!item.source.exists()) throw new IOException("File not found: " + item.source.getAbsolutePath());
+                    transferFile(http, item.batch.driveId, item.id, item.url, "PUT", item.headers, item.source, item.batch.resumable,
+                            item.batch.chunkSize, null, throttle, item.batch.checksum, (uploaded, total) -> {
+                                item.progress(uploaded);
+                                journal.progress(item.id, uploaded);
+                            });
+                } finally {
+                    activeCalls.remove(item.id);
+                }
+            }, new UploadQueue.Listener() {
                 @Override
-                public MediaType contentType() { return mediaTypeFinal; }
+                public void onProgress(UploadQueue.Batch batch) {
+                    JSObject ret = new JSObject();
+                    ret.put("batchId", batch.id);
+                    ret.put("uploaded", batch.uploaded.get());
+                    ret.put("total", batch.totalBytes);
+                    ret.put("completedFiles", batch.completed.get());
+                    ret.put("failedFiles", batch.failed.get());
+                    ret.put("totalFiles", batch.items.size());
+                    notifyListeners("uploadQueueProgress", ret);
+
+                    String desc = (batch.completed.get() + batch.failed.get()) + " / " + batch.items.size();
+                    notifications.update("batch:" + batch.id, true, desc, batch.uploaded.get(), batch.totalBytes);
+                }
+
                 @Override
-                public long contentLength() { return fileFinal.length(); }
+                public void onItemFinished(UploadQueue.Batch batch, UploadQueue.Item item, String error) {
+                    journal.end(item.id);
+                    JSObject ret = new JSObject();
+                    ret.put("batchId", batch.id);
+                    ret.put("id", item.id);
+                    ret.put("url", item.url);
+                    ret.put("success", error == null);
+                    if (error != null) ret.put("error", error);
+                    notifyListeners("uploadQueueItem", ret);
+                }
+
                 @Override
-                public void writeTo(BufferedSink sink) throws IOException {
-                    long fileLength = fileFinal.length();
-                    byte[] buffer = new byte[65536];
-                    long uploaded = 0;
-
-                    try (InputStream in = new java.io.FileInputStream(fileFinal)) {
-                        int read;
-                        long lastUpdate = 0;
-                        long lastBytes = 0;
-                        while ((read = in.read(buffer)) != -1) {
-                            // Check for cancellation
-                            if (callbackId != null && !activeCalls.containsKey(callbackId)) {
-                                throw new IOException("Cancelled");
-                            }
-
-                            sink.write(buffer, 0, read);
-                            uploaded += read;
-                            
-                            long now = System.currentTimeMillis();
-                            if (now - lastUpdate > 500) {
-                                 JSObject ret = new JSObject();
-                                 ret.put("uploaded", uploaded);
-                                 ret.put("total", fileLength);
-                                 if (callbackId != null) ret.put("id", callbackId);
-                                 
-                                 notifyListeners("uploadProgress", ret);
-                                 
-                                 // Calculate Speed
-                                 long diffBytes = uploaded - lastBytes;
-                                 long diffTime = now - lastUpdate;
-                                 long speed = diffTime > 0 ? (diffBytes * 1000 / diffTime) : 0;
-                                 String speedStr = formatSpeed(speed);
-                                 
-                                 boolean isZh = java.util.Locale.getDefault().getLanguage().equals("zh");
-                                 String title = isZh ? "正在上传" : "Uploading";
-                                 String desc = fileFinal.getName() + " (" + speedStr + ")";
-                                 
-                                 doUpdateNotification(9999, title, desc, (int)(uploaded/1024), (int)(fileLength/1024));
-                                 
-                                 lastUpdate = now;
-                                 lastBytes = uploaded;
-                            }
-                        }
+                public void onBatchFinished(UploadQueue.Batch batch) {
+                    JSObject ret = new JSObject();
+                    ret.put("batchId", batch.id);
+                    ret.put("completedFiles", batch.completed.get());
+                    ret.put("failedFiles", batch.failed.get());
+                    ret.put("cancelled", batch.cancelled);
+                    notifyListeners("uploadQueueComplete", ret);
+                    notifications.finish("batch:" + batch.id);
+                    if (batch.checksum != null) hashes.save();
+                    endTransfer();
+                }
+            });
+        }
+        return uploadQueue;
+    }
+
+    /**
+     * Queues many uploads at once and resolves immediately with the batch id. Files run on a native
+     * scheduler, smallest first, limited by {@code concurrency} overall and {@code perHostConcurrency}
+     * per server. Progress arrives as {@code uploadQueueProgress} for the whole batch,
+     * {@code uploadQueueItem} per file and {@code uploadQueueComplete} at the end.
+     */
+    @PluginMethod
+    public void enqueueUploads(PluginCall call) {
+        com.getcapacitor.JSArray items = call.getArray("items");
+        if (items == null || items.length() == 0) {
+            call.reject("items are required");
+            return;
+        }
+        String batchId = call.getString("batchId", "batch-" + Long.toHexString(System.currentTimeMillis()));
+        Map<String, String> sharedHeaders = toHeaderMap(call.getObject("headers"));
+
+        UploadQueue queue = getUploadQueue();
+        queue.setLimits(call.getInt("concurrency", 4), call.getInt("perHostConcurrency", 2));
+        UploadQueue.Batch batch = queue.newBatch(batchId);
+        batch.driveId = call.getString("driveId");
+        batch.resumable = call.getBoolean("resumable", false);
+        batch.chunkSize = Math.max(ChunkedUploader.MIN_CHUNK_SIZE, call.getInt("chunkSize", 10 * 1024 * 1024));
+        batch.maxBytesPerSec = Math.max(0, call.getInt("maxBytesPerSec", 0));
+        String checksum = call.getString("checksum");
+        batch.checksum = checksum != null ? StreamingDigest.normalizeType(checksum) : null;
+        if (checksum != null && batch.checksum == null) {
+            call.reject("Unsupported checksum: " + checksum);
+            return;
+        }
+        try {
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject entry = items.getJSONObject(i);
+                String sourcePath = entry.optString("sourcePath", null);
+                String url = entry.optString("url", null);
+                if (sourcePath == null || url == null) {
+                    call.reject("Each item needs sourcePath and url");
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>(sharedHeaders);
+                JSONObject own = entry.optJSONObject("headers");
+                if (own != null) {
+                    for (Iterator<String> it = own.keys(); it.hasNext(); ) {
+                        String key = it.next();
+                        headers.put(key, own.getString(key));
                     }
                 }
-            };
+                String id = entry.optString("id", batchId + ":" + i);
+                batch.items.add(new UploadQueue.Item(batch, id, resolveUploadSource(sourcePath), url, headers));
+            }
+        } catch (JSONException e) {
+            call.reject("Invalid items: " + e.getMessage());
+            return;
+        }
 
-            requestBuilder.method(method, requestBody);
+        if (call.getBoolean("skipExisting", false)) {
+            // Listing collections and hashing files can take a while; keep it off the plugin thread
+            OkHttpClient http = clientFor(call);
+            uploadPreflight.execute(() -> submitBatch(call, queue, batch, skipExisting(http, batch, sharedHeaders)));
+        } else {
+            submitBatch(call, queue, batch, new ArrayList<>());
+        }
+    }
 
-            Call callObj = client.newCall(requestBuilder.build());
-            if (callbackId != null) activeCalls.put(callbackId, callObj);
+    private void submitBatch(PluginCall call, UploadQueue queue, UploadQueue.Batch batch, List<String> skipped) {
+        for (UploadQueue.Item item : batch.items) {
+            journal.add(new TransferJournal.Job(item.id, TransferJournal.KIND_UPLOAD, item.url, item.source.getAbsolutePath(), item.headers,
+                    jobOptions("batchId", batch.id, "driveId", batch.driveId, "resumable", batch.resumable, "chunkSize", batch.chunkSize,
+                            "maxBytesPerSec", batch.maxBytesPerSec, "checksum", batch.checksum)));
+        }
 
-            try (Response response = callObj.execute()) {
-                 if (response.isSuccessful()) {
-                     call.resolve();
-                 } else {
-                     call.reject("Upload failed: " + response.code() + " " + response.message());
-                 }
-            } catch (IOException e) {
-                call.reject("Network error: " + e.getMessage());
+        startTransfer();
+        queue.submit(batch);
+
+        JSObject ret = new JSObject();
+        ret.put("batchId", batch.id);
+        ret.put("totalFiles", batch.items.size());
+        ret.put("total", batch.totalBytes);
+        com.getcapacitor.JSArray skippedIds = new com.getcapacitor.JSArray();
+        for (String id : skipped) skippedIds.put(id);
+        ret.put("skippedFiles", skipped.size());
+        ret.put("skipped", skippedIds);
+        call.resolve(ret);
+    }
+
+    /**
+     * Upload pre-flight: one Depth-1 PROPFIND per target collection, then drops the items whose
+     * remote file already matches (see {@link UploadDedup}). Best effort; a collection that cannot
+     * be listed keeps all its items.
+     *
+     * @return ids of the dropped items
+     */
+    private List<String> skipExisting(OkHttpClient http, UploadQueue.Batch batch, Map<String, String> headers) {
+        Map<String, List<UploadQueue.Item>> byCollection = new java.util.LinkedHashMap<>();
+        for (UploadQueue.Item item : batch.items) {
+            String parent = ListingCache.parentUrl(item.url);
+            if (parent == null) continue;
+            List<UploadQueue.Item> siblings = byCollection.get(parent);
+            if (siblings == null) byCollection.put(parent, siblings = new ArrayList<>());
+            siblings.add(item);
+        }
+
+        List<String> skipped = new ArrayList<>();
+        java.util.Set<UploadQueue.Item> drop = new java.util.HashSet<>();
+        for (Map.Entry<String, List<UploadQueue.Item>> e : byCollection.entrySet()) {
+            String collection = e.getKey().endsWith("/") ? e.getKey() : e.getKey() + "/";
+            okhttp3.HttpUrl base = okhttp3.HttpUrl.parse(collection);
+            if (base == null) continue;
+            Map<String, PropfindParser.Entry> remote = new HashMap<>();
+            try {
+                int status = propfind(http, collection, headers, "1", PropfindParser.DEDUP_BODY, null,
+                        entry -> remote.put(UploadDedup.pathKey(base, entry.href), entry));
+                // 404: the collection is new, so nothing in it can exist yet
+                if (status != 207 && status != 404) throw new IOException("PROPFIND failed: " + status);
+                for (UploadQueue.Item item : e.getValue()) {
+                    okhttp3.HttpUrl target = okhttp3.HttpUrl.parse(item.url);
+                    PropfindParser.Entry existing = target != null ? remote.get(UploadDedup.pathKey(target)) : null;
+                    if (existing != null && item.source.exists() && dedup.matches(item.source, existing)) {
+                        drop.add(item);
+                        skipped.add(item.id);
+                    }
+                }
+            } catch (IOException ex) {
+                android.util.Log.w("WebDavNative", "Upload pre-flight failed for " + collection + ": " + ex.getMessage());
             }
+        }
+        dedup.save();
+        batch.items.removeAll(drop);
+        android.util.Log.d("WebDavNative", "Upload pre-flight: " + skipped.size() + " of " + (batch.items.size() + skipped.size())
+                + " files already on the server");
+        return skipped;
+    }
+
+    /** Single-file variant of {@link #skipExisting}, with a Depth-0 PROPFIND of the target itself. */
+    private boolean alreadyUploaded(OkHttpClient http, String url, Map<String, String> headers, File file) {
+        PropfindParser.Entry[] remote = new PropfindParser.Entry[1];
+        try {
+            int status = propfind(http, url, headers, "0", PropfindParser.DEDUP_BODY, null, entry -> remote[0] = entry);
+            boolean same = status == 207 && remote[0] != null && dedup.matches(file, remote[0]);
+            dedup.save();
+            return same;
+        } catch (IOException e) {
+            android.util.Log.w("WebDavNative", "Upload pre-flight failed for " + url + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Restarts the transfers the journal still lists, i.e. those cut off by process death. Uploads
+     * rejoin the upload queue under their original batch id ({@code resumed-<id>} for single
+     * uploads), so they report through the {@code uploadQueue*} events. Downloads run one at a
+     * time from their .part files and end with a {@code transferComplete} event.
+     *
+     * Jobs that were sent with credentials wait for {@link #configureDrive} to supply their
+     * drive's; jobs without a driveId have nothing to take them from and fail.
+     */
+    private void resumeTransfers() {
+        List<TransferJournal.Job> ready = new ArrayList<>();
+        for (TransferJournal.Job job : journal.jobs()) {
+            String driveId = job.options.optString("driveId", null);
+            if (!job.needsCredentials || driveClients.getCredentials(driveId) != null) {
+                ready.add(job);
+            } else if (driveId != null) {
+                synchronized (awaitingCredentials) {
+                    List<TransferJournal.Job> waiting = awaitingCredentials.get(driveId);
+                    if (waiting == null) awaitingCredentials.put(driveId, waiting = new ArrayList<>());
+                    waiting.add(job);
+                }
+            } else {
+                journal.end(job.id);
+                notifyTransferComplete(job, "Credentials for the resumed transfer are unavailable");
+            }
+        }
+        resumeJobs(ready);
+    }
+
+    private void resumeJobs(List<TransferJournal.Job> jobs) {
+        if (jobs.isEmpty()) return;
+        android.util.Log.d("WebDavNative", "Resuming " + jobs.size() + " interrupted transfers");
+
+        Map<String, UploadQueue.Batch> batches = new java.util.LinkedHashMap<>();
+        List<TransferJournal.Job> downloads = new ArrayList<>();
+        for (TransferJournal.Job job : jobs) {
+            if (TransferJournal.KIND_DOWNLOAD.equals(job.kind)) {
+                downloads.add(job);
+                continue;
+            }
+            File source = new File(job.path);
+            if (!source.exists()) {
+                journal.end(job.id);
+                continue;
+            }
+            String batchId = job.options.optString("batchId", "resumed-" + job.id);
+            UploadQueue.Batch batch = batches.get(batchId);
+            if (batch == null) {
+                batch = getUploadQueue().newBatch(batchId);
+                batch.driveId = job.options.optString("driveId", null);
+                batch.resumable = job.options.optBoolean("resumable", false);
+                batch.chunkSize = Math.max(ChunkedUploader.MIN_CHUNK_SIZE, job.options.optLong("chunkSize", 10 * 1024 * 1024));
+                batch.maxBytesPerSec = job.options.optLong("maxBytesPerSec", 0);
+                batch.checksum = job.options.optString("checksum", null);
+                batches.put(batchId, batch);
+            }
+            batch.items.add(new UploadQueue.Item(batch, job.id, source, job.url, resumeHeaders(job)));
+        }
+        for (UploadQueue.Batch batch : batches.values()) {
+            startTransfer();
+            getUploadQueue().submit(batch);
+        }
+
+        if (downloads.isEmpty()) return;
+        startTransfer();
+        resumedDownloads.execute(() -> {
+            try {
+                for (TransferJournal.Job job : downloads) resumeDownload(job);
+            } finally {
+                endTransfer();
+            }
+        });
+    }
+
+    private void resumeDownload(TransferJournal.Job job) {
+        String error = null;
+        try (BandwidthThrottler.Ticket throttle = openThrottle(job.id, true, job.options.optLong("maxBytesPerSec", 0))) {
+            downloadFile(driveClients.get(job.options.optString("driveId", null)), job.id, job.url, resumeHeaders(job), new File(job.path),
+                    job.options.optBoolean("segmented", false), job.options.optLong("segmentSize", 8 * 1024 * 1024),
+                    job.options.optInt("concurrency", 4), throttle, job.options.optString("checksum", null));
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
         } finally {
-            if (tempIdForFinally != null) activeCalls.remove(tempIdForFinally);
-            endTransfer();
+            activeCalls.remove(job.id);
+            journal.end(job.id);
+            notifications.finish(job.id);
         }
+        notifyTransferComplete(job, error);
+    }
+
+    /** The journaled headers plus the credentials of the job's drive, if it needs them. */
+    private Map<String, String> resumeHeaders(TransferJournal.Job job) {
+        Map<String, String> credentials = job.needsCredentials ? driveClients.getCredentials(job.options.optString("driveId", null)) : null;
+        if (credentials == null) return job.headers;
+        Map<String, String> headers = new HashMap<>(job.headers);
+        headers.putAll(credentials);
+        return headers;
+    }
+
+    private void notifyTransferComplete(TransferJournal.Job job, String error) {
+        JSObject ret = new JSObject();
+        ret.put("id", job.id);
+        ret.put("kind", job.kind);
+        ret.put("success", error == null);
+        if (error != null) ret.put("error", error);
+        notifyListeners("transferComplete", ret);
+    }
+
+    /** Transfers that are journaled as unfinished, including ones resumed after a restart. */
+    @PluginMethod
+    public void getTransfers(PluginCall call) {
+        com.getcapacitor.JSArray list = new com.getcapacitor.JSArray();
+        for (TransferJournal.Job job : journal.jobs()) {
+            JSObject item = new JSObject();
+            item.put("id", job.id);
+            item.put("kind", job.kind);
+            item.put("url", job.url);
+            item.put("path", job.path);
+            item.put("bytes", job.bytes);
+            list.put(item);
+        }
+        JSObject ret = new JSObject();
+        ret.put("transfers", list);
+        call.resolve(ret);
+    }
+
+    /** Builds the options of a {@link TransferJournal.Job} from key/value pairs; null values are left out. */
+    private static JSONObject jobOptions(Object... keyValues) {
+        JSONObject options = new JSONObject();
+        try {
+            for (int i = 0; i < keyValues.length; i += 2) {
+                if (keyValues[i + 1] != null) options.put((String) keyValues[i], keyValues[i + 1]);
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return options;
+    }
+
+    @PluginMethod
+    public void cancelUploadQueue(PluginCall call) {
+        String batchId = call.getString("batchId");
+        UploadQueue.Batch batch = uploadQueue != null && batchId != null ? uploadQueue.getBatch(batchId) : null;
+        if (batch != null) {
+            uploadQueue.cancel(batchId);
+            // Running items notice through their ids, exactly like cancel()
+            for (UploadQueue.Item item : batch.items) {
+                Call c = activeCalls.remove(item.id);
+                if (c != null) c.cancel();
+            }
+        }
+        call.resolve();
+    }
+
+    private void reportUploadProgress(String callbackId, String name, long uploaded, long total) {
+        if (callbackId != null) journal.progress(callbackId, uploaded);
+        JSObject ret = new JSObject();
+        ret.put("uploaded", uploaded);
+        ret.put("total", total);
+        if (callbackId != null) ret.put("id", callbackId);
+
+        notifyListeners("uploadProgress", ret);
+        notifications.update(callbackId != null ? callbackId : name, true, name, uploaded, total);
     }
 
     @PluginMethod
@@ -806,40 +1484,145 @@ public class WebDavPlugin extends Plugin {
                 android.util.Log.d("WebDavNative", "Created parent dir: " + parent.getAbsolutePath() + " = " + created);
             }
 
-            Request.Builder requestBuilder = new Request.Builder().url(url).get();
+            Map<String, String> headerMap = toHeaderMap(headers);
+            boolean segmented = call.getBoolean("segmented", false);
+            long segmentSize = Math.max(1024 * 1024, call.getInt("segmentSize", 8 * 1024 * 1024));
+            int concurrency = Math.max(1, Math.min(16, call.getInt("concurrency", 4)));
+            long maxBytesPerSec = Math.max(0, call.getInt("maxBytesPerSec", 0));
+            String checksumOption = call.getString("checksum");
+            if (callbackId != null) {
+                journal.add(new TransferJournal.Job(callbackId, TransferJournal.KIND_DOWNLOAD, url, file.getAbsolutePath(), headerMap,
+                        jobOptions("driveId", call.getString("driveId"), "segmented", segmented,
+                                "segmentSize", segmentSize, "concurrency", concurrency, "maxBytesPerSec", maxBytesPerSec,
+                                "checksum", checksumOption)));
+            }
 
-            if (headers != null) {
-                for (Iterator<String> it = headers.keys(); it.hasNext(); ) {
-                    String key = it.next();
-                    String value = headers.getString(key);
-                    if (value != null) requestBuilder.addHeader(key, value);
-                }
+            try (BandwidthThrottler.Ticket throttle = openThrottle(callbackId, "background".equals(call.getString("priority")), maxBytesPerSec)) {
+                String checksum = downloadFile(clientFor(call), callbackId, url, headerMap, file, segmented, segmentSize, concurrency,
+                        throttle, checksumOption);
+                JSObject ret = new JSObject();
+                if (checksum != null) ret.put("checksum", checksum);
+                call.resolve(ret);
+            } catch (TransferFailedException e) {
+                call.reject(e.getMessage());
+            } catch (Exception e) {
+                call.reject("Download error: " + e.getMessage());
             }
+        } finally {
+            if (idForFinally != null) {
+                activeCalls.remove(idForFinally);
+                journal.end(idForFinally);
+            }
+            if (file != null) notifications.finish(idForFinally != null ? idForFinally : file.getName());
+            endTransfer();
+        }
+    }
+
+    /**
+     * Downloads {@code url} into {@code file}, continuing from its .part file if there is one.
+     * Shared by {@link #download} and downloads resumed from the {@link TransferJournal}.
+     * With {@code segmented}, ranges are fetched concurrently when the server supports them.
+     * All of it is paced by {@code throttle}.
+     *
+     * {@code checksum} asks for verification: a type such as {@code SHA256}, {@code auto} for the
+     * strongest one the server offers, or {@code TYPE:hex} with the expected value. The file is
+     * checked before it replaces {@code file}, and downloaded again on a mismatch.
+     *
+     * @return the checksum as {@code TYPE:hex}, or null if none was computed
+     */
+    private String downloadFile(OkHttpClient http, String callbackId, String url, Map<String, String> headers, File file,
+                                boolean segmented, long segmentSize, int concurrency, BandwidthThrottler.Ticket throttle,
+                                String checksum) throws IOException {
+        // Registered before any network I/O: an id that is missing later was removed by cancel(),
+        // so a failed probe or connect is never mistaken for one (and the .part file is kept)
+        if (callbackId != null) activeCalls.putIfAbsent(callbackId, http.newCall(new Request.Builder().url(url).build()));
+        for (int attempt = 0; ; attempt++) {
+            try {
+                String result = downloadOnce(http, callbackId, url, headers, file, segmented, segmentSize, concurrency, throttle, checksum);
+                fileIndex.refresh(file.getParentFile());
+                dirSnapshots.invalidate(file.getParentFile());
+                return result;
+            } catch (ChecksumMismatchException e) {
+                if (attempt >= CHECKSUM_RETRIES || (callbackId != null && !activeCalls.containsKey(callbackId))) throw e;
+                android.util.Log.w("WebDavNative", e.getMessage() + "; downloading again");
+            }
+        }
+    }
+
+    private String downloadOnce(OkHttpClient http, String callbackId, String url, Map<String, String> headers, File file,
+                                boolean segmented, long segmentSize, int concurrency, BandwidthThrottler.Ticket throttle,
+                                String checksum) throws IOException {
+        PartialDownload partial = PartialDownload.open(file, url);
+        try {
+            SegmentedDownloader downloader = segmented
+                    ? downloadSegmented(http, url, headers, partial, callbackId, segmentSize, concurrency, throttle) : null;
+            if (downloader != null) {
+                // Segments land out of order, so the file is hashed once it is complete
+                String result = verifyDownload(partial, checksumTarget(checksum, downloader.getChecksums()), null);
+                partial.commit();
+                return result;
+            }
+            // Otherwise the server does not honour ranges; fall through to a single stream
 
-            Call callObj = client.newCall(requestBuilder.build());
-            if (callbackId != null) activeCalls.put(callbackId, callObj);
+            // Resume after the bytes already on disk; If-Range makes the server send the whole
+            // file instead if it changed since
+            long offset = partial.validator() != null ? partial.contiguousPrefix() : 0;
+
+            Request.Builder requestBuilder = new Request.Builder().url(url).get();
+            for (Map.Entry<String, String> h : headers.entrySet()) requestBuilder.addHeader(h.getKey(), h.getValue());
+            if (offset > 0) {
+                android.util.Log.d("WebDavNative", "Resuming download at " + offset + ": " + file.getName());
+                requestBuilder.header("Range", "bytes=" + offset + "-");
+                requestBuilder.header("If-Range", partial.validator());
+            }
 
+            Call callObj = http.newCall(requestBuilder.build());
+            // replace() rather than put(), so a cancel that came in meanwhile is not undone
+            if (callbackId != null && activeCalls.replace(callbackId, callObj) == null) throw new IOException("Cancelled");
+
+            String[] target;
+            StreamingDigest digest;
             try (Response response = callObj.execute()) {
+                if (offset > 0 && response.code() == 416 && offset == partial.getLength()) {
+                    // Everything arrived before the last attempt failed
+                    String result = verifyDownload(partial, checksumTarget(checksum, null), null);
+                    partial.commit();
+                    return result;
+                }
+
                 if (!response.isSuccessful()) {
-                    call.reject("Download failed: " + response.code() + " " + response.message());
-                    return;
+                    throw new TransferFailedException("Download failed: " + response.code() + " " + response.message());
                 }
 
                 if (response.body() == null) {
-                    call.reject("Empty response body");
-                    return;
+                    throw new TransferFailedException("Empty response body");
                 }
 
                 long contentLength = response.body().contentLength();
-                long downloaded = 0;
-                
+                long[] contentRange = PartialDownload.parseContentRange(response.header("Content-Range"));
+                if (offset > 0 && response.code() == 206 && contentRange != null && contentRange[0] == offset) {
+                    // If-Range already proved this is the same file
+                    contentLength = contentRange[2];
+                } else {
+                    offset = 0;
+                    partial.reset();
+                    partial.setRemote(response.header("ETag"), response.header("Last-Modified"), contentLength);
+                }
+                long downloaded = offset;
+                target = checksumTarget(checksum, StreamingDigest.fromHeaders(response.headers(), response.code() == 206));
+                digest = target != null ? new StreamingDigest(target[0]) : null;
+
                 try (InputStream in = response.body().byteStream();
-                     FileOutputStream out = new FileOutputStream(file)) {
-                    
+                     RandomAccessFile out = new RandomAccessFile(partial.part, "rw")) {
+                    // A segmented attempt may have left data past the gap-free prefix; drop it
+                    out.setLength(offset);
+                    partial.truncate(offset);
+                    out.seek(offset);
+                    if (digest != null) digest.catchUp(partial.part, offset);
+
                     byte[] buffer = new byte[65536];
                     int read;
                     long lastUpdate = 0;
-                    long lastBytes = 0;
 
                     while ((read = in.read(buffer)) != -1) {
                         // Check for cancellation
@@ -847,54 +1630,296 @@ public class WebDavPlugin extends Plugin {
                             throw new IOException("Cancelled");
                         }
 
+                        throttle.acquire(read);
                         out.write(buffer, 0, read);
+                        if (digest != null) digest.update(downloaded, buffer, 0, read);
+                        partial.addRange(downloaded, downloaded + read - 1);
                         downloaded += read;
-                        
+
                         long now = System.currentTimeMillis();
                         if (now - lastUpdate > 500) {
-                            JSObject ret = new JSObject();
-                            ret.put("downloaded", downloaded);
-                            ret.put("total", contentLength);
-                            if (callbackId != null) ret.put("id", callbackId);
-                            
-                            notifyListeners("downloadProgress", ret);
-                            
-                            // Calculate Speed
-                            long diffBytes = downloaded - lastBytes;
-                            long diffTime = now - lastUpdate;
-                            long speed = diffTime > 0 ? (diffBytes * 1000 / diffTime) : 0;
-                            String speedStr = formatSpeed(speed);
-                            
-                            boolean isZh = java.util.Locale.getDefault().getLanguage().equals("zh");
-                            String title = isZh ? "正在下载" : "Downloading";
-                            
-                            if (contentLength > 0) {
-                                 doUpdateNotification(9999, title, file.getName() + " (" + speedStr + ")", (int)(downloaded/1024), (int)(contentLength/1024));
-                            } else {
-                                 doUpdateNotification(9999, title, file.getName() + " (" + speedStr + ")", 0, 0);
-                            }
-                            
+                            partial.save();
+                            reportDownloadProgress(callbackId, file.getName(), downloaded, contentLength);
                             lastUpdate = now;
-                            lastBytes = downloaded;
                         }
                     }
-                    out.flush();
                 }
-                
-                call.resolve();
+            }
+            String result = verifyDownload(partial, target, digest);
+            partial.commit();
+            return result;
+        } catch (TransferFailedException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            keepPartialDownload(partial, callbackId);
+            throw e;
+        }
+    }
 
-            } catch (Exception e) {
-                // IMPORTANT: Delete partial file on failure/cancellation
-                if (file != null && file.exists()) {
-                    android.util.Log.d("WebDavNative", "Deleting partial download file: " + file.getAbsolutePath());
-                    file.delete();
+    /**
+     * After a failed download, keeps the .part file and its resume state so the next attempt
+     * continues where this one stopped. An explicit cancel deletes them instead.
+     */
+    private void keepPartialDownload(PartialDownload partial, String callbackId) {
+        boolean cancelled = callbackId != null && !activeCalls.containsKey(callbackId);
+        if (cancelled || !partial.hasData()) {
+            android.util.Log.d("WebDavNative", "Deleting partial download file: " + partial.part.getAbsolutePath());
+            partial.discard();
+            return;
+        }
+        try {
+            partial.save();
+            android.util.Log.d("WebDavNative", "Keeping partial download for resume: " + partial.part.getAbsolutePath());
+        } catch (IOException e) {
+            partial.discard();
+        }
+    }
+
+    /**
+     * Fetches {@code url} as several concurrent ranges of {@code segmentSize} bytes, at most
+     * {@code concurrency} at a time, skipping ranges {@code partial} already holds.
+     *
+     * @return the finished downloader, or null without touching {@code partial} if the server does
+     * not support ranges or the file fits in one segment.
+     */
+    private SegmentedDownloader downloadSegmented(OkHttpClient http, String url, Map<String, String> headers, PartialDownload partial, String callbackId,
+                                      long segmentSize, int concurrency, BandwidthThrottler.Ticket throttle) throws IOException {
+        SegmentedDownloader downloader = SegmentedDownloader.probe(http, url, headers);
+        if (downloader == null || downloader.getLength() <= segmentSize) return null;
+        android.util.Log.d("WebDavNative", "Segmented download: " + downloader.getLength() + " bytes, "
+                + concurrency + " x " + segmentSize);
+
+        // downloadFile registered the id; cancel() signals by removing it
+        downloader.setThrottle(throttle);
+        downloader.download(partial, segmentSize, concurrency,
+                () -> callbackId != null && !activeCalls.containsKey(callbackId),
+                (downloaded, total) -> reportDownloadProgress(callbackId, partial.target.getName(), downloaded, total));
+        return downloader;
+    }
+
+    /**
+     * What to hash for a download's {@code checksum} option, given the checksums the server sent.
+     *
+     * @return {@code {type, expected hex}}, with a null hex if there is nothing to compare with,
+     * or null if no checksum is wanted or {@code auto} found none
+     */
+    private static String[] checksumTarget(String option, String serverChecksums) {
+        if (option == null) return null;
+        int colon = option.indexOf(':');
+        if (colon > 0) {
+            String type = StreamingDigest.normalizeType(option.substring(0, colon));
+            return type != null ? new String[]{type, option.substring(colon + 1).toLowerCase(java.util.Locale.US)} : null;
+        }
+        String type = "auto".equalsIgnoreCase(option) ? null : StreamingDigest.normalizeType(option);
+        String[] offered = StreamingDigest.pick(serverChecksums, type);
+        if (offered != null) return offered;
+        return type != null ? new String[]{type, null} : null;
+    }
+
+    /**
+     * Checks a complete .part file before it is committed. {@code digest} holds what the copy loop
+     * hashed, or is null to hash the file now. A mismatch discards the download.
+     *
+     * @return the checksum as {@code TYPE:hex}, or null for no {@code target}
+     */
+    private static String verifyDownload(PartialDownload partial, String[] target, StreamingDigest digest) throws IOException {
+        if (target == null) return null;
+        if (digest == null) digest = new StreamingDigest(target[0]);
+        digest.catchUp(partial.part, partial.part.length());
+        String actual = digest.hex();
+        if (target[1] != null && !target[1].equals(actual)) {
+            partial.discard();
+            throw new ChecksumMismatchException("Checksum mismatch after download: expected " + target[1] + ", got " + actual);
+        }
+        return target[0] + ":" + actual;
+    }
+
+    private void reportDownloadProgress(String callbackId, String name, long downloaded, long total) {
+        if (callbackId != null) journal.progress(callbackId, downloaded);
+        JSObject ret = new JSObject();
+        ret.put("downloaded", downloaded);
+        ret.put("total", total);
+        if (callbackId != null) ret.put("id", callbackId);
+
+        notifyListeners("downloadProgress", ret);
+        notifications.update(callbackId != null ? callbackId : name, false, name, downloaded, total);
+    }
+
+    /** The client for the call's optional {@code driveId}, see {@link #configureDrive}. */
+    private OkHttpClient clientFor(PluginCall call) {
+        return driveClients.get(call.getString("driveId"));
+    }
+
+    private static Map<String, String> toHeaderMap(JSObject headers) {
+        Map<String, String> map = new HashMap<>();
+        if (headers != null) {
+            for (Iterator<String> it = headers.keys(); it.hasNext(); ) {
+                String key = it.next();
+                String value = headers.getString(key);
+                if (value != null) map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * PROPFIND parsed natively into compact entries ({@link PropfindParser.Entry}) instead of
+     * returning the multistatus XML. With {@code pageSize > 0}, entries are delivered in
+     * {@code listRemotePage} events as they are parsed, and the call resolves with only the count.
+     *
+     * With {@code cache: true} (Depth 1 only) the listing is kept in {@link ListingCache}. It is
+     * reused without any request while younger than {@code maxAge} ms, and after that as long as a
+     * Depth-0 PROPFIND returns the same collection etag/ctag. {@code cached} in the result tells
+     * which happened. Listings are kept apart per {@code driveId}, or per Authorization header
+     * without one, so accounts on the same server never see each other's.
+     */
+    @PluginMethod
+    public void listRemote(PluginCall call) {
+        String url = call.getString("url");
+        if (url == null) {
+            call.reject("URL is required");
+            return;
+        }
+        String id = call.getString("id");
+        String depth = call.getString("depth", "1");
+        int pageSize = call.getInt("pageSize", 0);
+        boolean useCache = call.getBoolean("cache", false) && "1".equals(depth);
+        long maxAge = call.getInt("maxAge", 0);
+        OkHttpClient http = clientFor(call);
+        Map<String, String> headers = toHeaderMap(call.getObject("headers"));
+
+        // Placeholder so cancel() works before the first request is issued
+        if (id != null) activeCalls.put(id, http.newCall(new Request.Builder().url(url).build()));
+        try {
+            String key = ListingCache.key(ListingCache.scope(call.getString("driveId"), headers), url);
+            PropfindParser.Entry validator = null;
+            if (useCache) {
+                ListingCache.Listing cached = listings.get(key);
+                long now = System.currentTimeMillis();
+                if (cached != null && now - cached.validatedAt <= maxAge) {
+                    resolveListing(call, id, pageSize, cached.entries, true);
+                    return;
                 }
-                call.reject("Download error: " + e.getMessage());
+                // Read before the listing, so a change in between is caught on the next visit
+                List<PropfindParser.Entry> self = new ArrayList<>();
+                if (propfind(http, url, headers, "0", PropfindParser.VALIDATOR_BODY, id, self::add) == 207 && !self.isEmpty()) {
+                    validator = self.get(0);
+                }
+                if (cached != null && cached.matches(validator)) {
+                    cached.validatedAt = now;
+                    resolveListing(call, id, pageSize, cached.entries, true);
+                    return;
+                }
+            }
+
+            List<PropfindParser.Entry> collected = useCache ? new ArrayList<>() : null;
+            com.getcapacitor.JSArray[] page = {new com.getcapacitor.JSArray()};
+            int status = propfind(http, url, headers, depth, PropfindParser.REQUEST_BODY, id, entry -> {
+                if (collected != null) collected.add(entry);
+                page[0].put(entry.toJson());
+                if (pageSize > 0 && page[0].length() >= pageSize) {
+                    sendListingPage(id, page[0]);
+                    page[0] = new com.getcapacitor.JSArray();
+                }
+            });
+            if (status != 207) {
+                if (useCache) listings.invalidate(key);
+                call.reject("PROPFIND failed: HTTP " + status, String.valueOf(status));
+                return;
+            }
+            if (collected != null) {
+                listings.put(key, new ListingCache.Listing(validator != null ? validator.etag : null,
+                        validator != null ? validator.ctag : null, collected, System.currentTimeMillis()));
+            }
+
+            JSObject ret = new JSObject();
+            ret.put("count", collected != null ? collected.size() : page[0].length());
+            ret.put("cached", false);
+            if (pageSize > 0) {
+                if (page[0].length() > 0) sendListingPage(id, page[0]);
+            } else {
+                ret.put("entries", page[0]);
             }
+            call.resolve(ret);
+        } catch (IOException e) {
+            call.reject(e.getMessage());
         } finally {
-            if (idForFinally != null) activeCalls.remove(idForFinally);
-            endTransfer();
+            if (id != null) activeCalls.remove(id);
+        }
+    }
+
+    /**
+     * Issues a PROPFIND and streams a 207 body into {@code sink}.
+     * @return the HTTP status; the sink is only called for 207
+     */
+    private int propfind(OkHttpClient http, String url, Map<String, String> headers, String depth, String body,
+                         String id, PropfindParser.Sink sink) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder().url(url);
+        for (Map.Entry<String, String> e : headers.entrySet()) requestBuilder.header(e.getKey(), e.getValue());
+        requestBuilder.header("Depth", depth);
+        requestBuilder.method("PROPFIND", RequestBody.create(body, MediaType.parse("application/xml; charset=utf-8")));
+
+        Call callObj = http.newCall(requestBuilder.build());
+        if (id != null) {
+            if (!activeCalls.containsKey(id)) throw new IOException("Canceled");
+            activeCalls.put(id, callObj);
+        }
+        try (Response response = callObj.execute()) {
+            if (response.code() == 207) PropfindParser.parse(response.body().byteStream(), sink);
+            return response.code();
+        }
+    }
+
+    private void resolveListing(PluginCall call, String id, int pageSize, List<PropfindParser.Entry> entries, boolean cached) {
+        com.getcapacitor.JSArray page = new com.getcapacitor.JSArray();
+        for (PropfindParser.Entry entry : entries) {
+            page.put(entry.toJson());
+            if (pageSize > 0 && page.length() >= pageSize) {
+                sendListingPage(id, page);
+                page = new com.getcapacitor.JSArray();
+            }
         }
+        JSObject ret = new JSObject();
+        ret.put("count", entries.size());
+        ret.put("cached", cached);
+        if (pageSize > 0) {
+            if (page.length() > 0) sendListingPage(id, page);
+        } else {
+            ret.put("entries", page);
+        }
+        call.resolve(ret);
+    }
+
+    /** Drops cached listings a successful {@link #request} may have changed, as seen by {@code scope}. */
+    private void invalidateListings(String scope, String method, String url, JSObject headers) {
+        switch (method) {
+            case "MOVE":
+            case "COPY":
+                String destination = headers != null ? headers.getString("Destination") : null;
+                if (destination != null) listings.invalidate(ListingCache.parentKey(scope, destination));
+                // Moved collections keep their contents, but under a new key
+                if ("MOVE".equals(method)) listings.invalidate(ListingCache.key(scope, url));
+                listings.invalidate(ListingCache.parentKey(scope, url));
+                break;
+            case "DELETE":
+                listings.invalidate(ListingCache.key(scope, url));
+                listings.invalidate(ListingCache.parentKey(scope, url));
+                break;
+            case "PUT":
+            case "MKCOL":
+            case "PROPPATCH":
+                listings.invalidate(ListingCache.parentKey(scope, url));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void sendListingPage(String id, com.getcapacitor.JSArray entries) {
+        JSObject event = new JSObject();
+        event.put("id", id);
+        event.put("entries", entries);
+        notifyListeners("listRemotePage", event);
     }
 
     @PluginMethod
@@ -953,10 +1978,13 @@ public class WebDavPlugin extends Plugin {
              requestBuilder.method(method, null);
         }
 
-        Call callObj = client.newCall(requestBuilder.build());
+        Call callObj = clientFor(call).newCall(requestBuilder.build());
         if (callbackId != null) activeCalls.put(callbackId, callObj);
 
         try (Response response = callObj.execute()) {
+            if (response.isSuccessful()) {
+                invalidateListings(ListingCache.scope(call.getString("driveId"), toHeaderMap(headers)), method, url, headers);
+            }
             JSObject ret = new JSObject();
             ret.put("status", response.code());
             if (response.body() != null) {
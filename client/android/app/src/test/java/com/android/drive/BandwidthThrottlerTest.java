@@ -0,0 +1,126 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/** Timing bounds are loose on purpose: the upper ones only have to catch a limit being ignored. */
+public class BandwidthThrottlerTest {
+    private static final long MB = 1024 * 1024;
+    private static final int CHUNK = 16 * 1024;
+
+    /** @return milliseconds taken to push {@code bytes} through {@code ticket} in {@link #CHUNK}s */
+    private static long send(BandwidthThrottler.Ticket ticket, long bytes) throws IOException {
+        long start = System.nanoTime();
+        for (long sent = 0; sent < bytes; sent += CHUNK) ticket.acquire(Math.min(CHUNK, bytes - sent));
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    @Test
+    public void unlimitedNeverWaits() throws IOException {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        try (BandwidthThrottler.Ticket ticket = throttler.open(false, 0, null)) {
+            assertTrue(send(ticket, 256 * MB) < 1000);
+        }
+    }
+
+    @Test
+    public void ownLimitPacesAfterTheInitialBurst() throws IOException {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        try (BandwidthThrottler.Ticket ticket = throttler.open(false, MB, null)) {
+            // The bucket starts full with a quarter second of traffic
+            assertTrue(send(ticket, MB / 4) < 100);
+            long ms = send(ticket, MB / 2);
+            assertTrue("took " + ms + "ms", ms >= 450 && ms < 1500);
+        }
+    }
+
+    @Test
+    public void globalLimitIsSharedByAllTransfers() throws Exception {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        throttler.setLimits(MB, 0, 0);
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[2];
+        IOException[] failures = new IOException[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            int n = i;
+            threads[i] = new Thread(() -> {
+                try (BandwidthThrottler.Ticket ticket = throttler.open(false, 0, null)) {
+                    send(ticket, MB / 2);
+                } catch (IOException e) {
+                    failures[n] = e;
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        for (IOException e : failures) assertNull(e);
+        // 1 MB in total, less the 256 KB burst, at 1 MB/s
+        assertTrue("took " + ms + "ms", ms >= 700 && ms < 2000);
+    }
+
+    @Test
+    public void backgroundLimitLeavesForegroundAlone() throws IOException {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        throttler.setLimits(0, 256 * 1024, 0);
+        try (BandwidthThrottler.Ticket foreground = throttler.open(false, 0, null);
+             BandwidthThrottler.Ticket background = throttler.open(true, 0, null)) {
+            assertTrue(send(foreground, 8 * MB) < 500);
+            send(background, 64 * 1024);
+            long ms = send(background, 64 * 1024);
+            assertTrue("took " + ms + "ms", ms >= 200);
+        }
+    }
+
+    @Test
+    public void oversizedBufferIsPaidOffAsDebt() throws IOException {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        try (BandwidthThrottler.Ticket ticket = throttler.open(false, MB, null)) {
+            long start = System.nanoTime();
+            ticket.acquire(MB);
+            assertTrue((System.nanoTime() - start) / 1_000_000 < 100);
+            // 768 KB over the burst must be paid back before the next byte
+            start = System.nanoTime();
+            ticket.acquire(1);
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            assertTrue("took " + ms + "ms", ms >= 650 && ms < 1500);
+        }
+    }
+
+    @Test
+    public void defaultLimitChangesReachOpenTickets() throws IOException {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        try (BandwidthThrottler.Ticket following = throttler.open(false, 0, null);
+             BandwidthThrottler.Ticket own = throttler.open(false, 64 * MB, null)) {
+            throttler.setLimits(0, 0, MB);
+            assertEquals(MB, throttler.getPerTransferLimit());
+            send(following, MB / 4);
+            long ms = send(following, MB / 4);
+            assertTrue("took " + ms + "ms", ms >= 200);
+            assertTrue(send(own, 4 * MB) < 500);
+        }
+    }
+
+    @Test
+    public void cancelEndsAWait() {
+        BandwidthThrottler throttler = new BandwidthThrottler();
+        boolean[] cancelled = {false};
+        try (BandwidthThrottler.Ticket ticket = throttler.open(false, 64 * 1024, () -> cancelled[0])) {
+            ticket.acquire(64 * 1024);
+            cancelled[0] = true;
+            long start = System.nanoTime();
+            try {
+                ticket.acquire(64 * 1024);
+                fail("Cancelled acquire must throw");
+            } catch (IOException e) {
+                assertEquals("Cancelled", e.getMessage());
+            }
+            assertTrue((System.nanoTime() - start) / 1_000_000 < 500);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Robolectric supplies the Context, {@code Os.lstat} and the observers the index registers. */
+@RunWith(RobolectricTestRunner.class)
+public class FileIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ParallelFileWalker walker = new ParallelFileWalker(2);
+    private File root;
+    private File store;
+    private FileIndex index;
+
+    private File file(String path, int length) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        return file;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private FileIndex open() throws InterruptedException {
+        FileIndex index = new FileIndex(RuntimeEnvironment.getApplication(), root, store, walker);
+        index.start();
+        await(index::isReady);
+        return index;
+    }
+
+    private List<String> paths(String query) {
+        List<String> paths = new ArrayList<>();
+        for (FileIndex.Hit hit : index.search(query, 100).hits) paths.add(hit.path);
+        Collections.sort(paths);
+        return paths;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder("storage");
+        store = new File(tmp.getRoot(), "file-index");
+        file("Documents/Report-2024.PDF", 1234);
+        file("Documents/notes.txt", 10);
+        file("Music/song.mp3", 20);
+        file("photo.jpg", 30);
+        file(".secret-report", 1);
+        file(".hidden/report.txt", 1);
+        index = open();
+    }
+
+    @After
+    public void tearDown() {
+        index.shutdown();
+        walker.shutdown();
+    }
+
+    @Test
+    public void matchesSubstringsCaseInsensitively() {
+        FileIndex.Result result = index.search("rePORT-20", 10);
+        assertEquals(1, result.total);
+        FileIndex.Hit hit = result.hits.get(0);
+        assertEquals("/Documents/Report-2024.PDF", hit.path);
+        assertEquals("Report-2024.PDF", hit.name);
+        assertFalse(hit.isDirectory);
+        assertEquals(1234, hit.size);
+        assertEquals(new File(root, "Documents/Report-2024.PDF").lastModified() / 1000, hit.mtime / 1000);
+    }
+
+    @Test
+    public void shortQueriesAreMatchedToo() {
+        assertEquals(Arrays.asList("/Documents/notes.txt", "/photo.jpg"), paths("Ot"));
+        assertEquals(Collections.singletonList("/Music/song.mp3"), paths("3"));
+    }
+
+    @Test
+    public void trigramsMustAppearInOrder() throws Exception {
+        // Holds both trigrams of "abcd" but not the query itself
+        file("abc_bcd.txt", 1);
+        file("xabcdx.txt", 1);
+        index.refresh(root);
+        await(() -> index.search("abc", 10).total == 2);
+        assertEquals(Collections.singletonList("/xabcdx.txt"), paths("ABCD"));
+        assertTrue(paths("abcde").isEmpty());
+    }
+
+    @Test
+    public void directoriesAreHits() {
+        FileIndex.Result result = index.search("music", 10);
+        assertEquals(1, result.total);
+        assertEquals("/Music", result.hits.get(0).path);
+        assertTrue(result.hits.get(0).isDirectory);
+    }
+
+    @Test
+    public void hiddenEntriesAreSkipped() {
+        assertEquals(Collections.singletonList("/Documents/Report-2024.PDF"), paths("report"));
+        assertTrue(paths("hidden").isEmpty());
+    }
+
+    @Test
+    public void totalCountsBeyondTheLimit() throws Exception {
+        for (int i = 0; i < 5; i++) file("logs/run-" + i + ".log", 1);
+        index.refresh(root);
+        await(() -> index.search(".log", 10).total == 5);
+        FileIndex.Result result = index.search("RUN-", 2);
+        assertEquals(5, result.total);
+        assertEquals(2, result.hits.size());
+    }
+
+    @Test
+    public void refreshPicksUpChanges() throws Exception {
+        File docs = new File(root, "Documents");
+        file("Documents/draft.md", 5);
+        assertTrue(new File(docs, "notes.txt").delete());
+        index.refresh(docs);
+        // A FileObserver refresh may have listed the folder between the two changes
+        await(() -> index.search("draft", 10).total == 1 && index.search("notes", 10).total == 0);
+        assertEquals(Collections.singletonList("/Documents/draft.md"), paths("draft"));
+        assertTrue(paths("notes").isEmpty());
+    }
+
+    @Test
+    public void matchSlicesLeaveOutRemovedEntries() throws Exception {
+        for (int i = 0; i < 4; i++) file("clip-" + i + ".mov", 1);
+        index.refresh(root);
+        await(() -> index.search("clip-", 10).total == 4);
+        FileIndex.Match match = index.match("clip-");
+        assertEquals(4, match.ids.length);
+        assertEquals(2, index.hits(match, 1, 3).size());
+
+        assertTrue(new File(root, "clip-0.mov").delete());
+        index.refresh(root);
+        await(() -> index.search("clip-", 10).total == 3);
+        List<FileIndex.Hit> hits = index.hits(match, 0, match.ids.length);
+        assertNotNull(hits);
+        assertEquals(3, hits.size());
+        for (FileIndex.Hit hit : hits) assertNotEquals("/clip-0.mov", hit.path);
+    }
+
+    @Test
+    public void savedIndexIsLoadedOnRestart() throws Exception {
+        await(store::exists);
+        index.shutdown();
+        // Moved while the app was not running; caught up by the revalidation after the load
+        assertTrue(new File(root, "photo.jpg").renameTo(new File(root, "Music/cover.jpg")));
+        // The shadowed lstat has whole-second mtimes, so the move could land in the indexed second
+        long moved = System.currentTimeMillis() + 60_000;
+        assertTrue(root.setLastModified(moved));
+        assertTrue(new File(root, "Music").setLastModified(moved));
+        index = open();
+        assertEquals(Collections.singletonList("/Documents/Report-2024.PDF"), paths("report"));
+        await(() -> index.search("cover", 10).total == 1);
+        assertTrue(paths("photo").isEmpty());
+    }
+}
@@ -0,0 +1,151 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class HttpRequestParserTest {
+
+    /** Appends {@code text} to {@code buf}, as a socket read would. */
+    private static void receive(ByteBuffer buf, String text) {
+        buf.put(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpRequestParser.Request parseAll(String head) {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        receive(buf, head);
+        HttpRequestParser.Request req = new HttpRequestParser.Request();
+        req.reset();
+        assertEquals(HttpRequestParser.DONE, HttpRequestParser.parse(buf, req));
+        return req;
+    }
+
+    private static int parseResult(String head) {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        receive(buf, head);
+        HttpRequestParser.Request req = new HttpRequestParser.Request();
+        req.reset();
+        return HttpRequestParser.parse(buf, req);
+    }
+
+    @Test
+    public void parsesRequestLineAndHeaders() {
+        HttpRequestParser.Request req = parseAll("GET /dir/a%20b+c.txt?w=256&token=x HTTP/1.1\r\n"
+                + "Host: 127.0.0.1\r\n"
+                + "RANGE: bytes=0-99, 200-\r\n"
+                + "If-None-Match: \"abc\"\r\n"
+                + "X-Access-Token: secret\r\n"
+                + "\r\n");
+        assertEquals("GET", req.method);
+        assertEquals("/dir/a b+c.txt?w=256&token=x", req.path);
+        assertEquals("/dir/a b+c.txt", req.pathOnly);
+        assertEquals("w=256&token=x", req.query);
+        assertTrue(req.keepAlive);
+        assertEquals(-1, req.contentLength);
+        assertEquals(2, req.rangeCount);
+        assertEquals(0, req.rangeFirst[0]);
+        assertEquals(99, req.rangeLast[0]);
+        assertEquals(200, req.rangeFirst[1]);
+        assertEquals(-1, req.rangeLast[1]);
+        assertEquals("\"abc\"", req.ifNoneMatch);
+        assertEquals("secret", req.accessToken);
+    }
+
+    @Test
+    public void headSplitAcrossReadsIsResumed() {
+        String head = "PUT /cache/up.bin HTTP/1.1\r\nContent-Length: 12\r\nConnection: close\r\n\r\n";
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        HttpRequestParser.Request req = new HttpRequestParser.Request();
+        req.reset();
+        // One byte at a time, including between \r and \n
+        for (int i = 0; i < head.length() - 1; i++) {
+            receive(buf, head.substring(i, i + 1));
+            assertEquals("after " + i + " bytes", HttpRequestParser.NEED_MORE, HttpRequestParser.parse(buf, req));
+        }
+        receive(buf, head.substring(head.length() - 1));
+        assertEquals(HttpRequestParser.DONE, HttpRequestParser.parse(buf, req));
+        assertEquals("PUT", req.method);
+        assertEquals(12, req.contentLength);
+        assertFalse(req.keepAlive);
+        assertEquals(head.length(), req.headerEnd);
+    }
+
+    @Test
+    public void pipelinedRequestsAreParsedInOrder() {
+        String first = "GET /a HTTP/1.1\r\n\r\n";
+        String second = "HEAD /b HTTP/1.1\r\nRange: bytes=-5\r\n\r\n";
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        receive(buf, first + second + "GET /c HT");
+        HttpRequestParser.Request req = new HttpRequestParser.Request();
+        req.reset();
+
+        assertEquals(HttpRequestParser.DONE, HttpRequestParser.parse(buf, req));
+        assertEquals("/a", req.path);
+        assertEquals(first.length(), req.headerEnd);
+
+        // What the connection does between requests: drop the handled head, keep the rest
+        buf.flip();
+        buf.position(req.headerEnd);
+        buf.compact();
+        req.reset();
+        assertEquals(HttpRequestParser.DONE, HttpRequestParser.parse(buf, req));
+        assertEquals("HEAD", req.method);
+        assertEquals("/b", req.path);
+        assertEquals(1, req.rangeCount);
+        assertEquals(-1, req.rangeFirst[0]);
+        assertEquals(5, req.rangeLast[0]);
+
+        buf.flip();
+        buf.position(req.headerEnd);
+        buf.compact();
+        req.reset();
+        assertEquals(HttpRequestParser.NEED_MORE, HttpRequestParser.parse(buf, req));
+        receive(buf, "TP/1.0\r\n\r\n");
+        assertEquals(HttpRequestParser.DONE, HttpRequestParser.parse(buf, req));
+        assertEquals("/c", req.path);
+        assertFalse(req.keepAlive);
+    }
+
+    @Test
+    public void bareLineFeedsAreAccepted() {
+        HttpRequestParser.Request req = parseAll("GET /x HTTP/1.1\nConnection: close\n\n");
+        assertEquals("/x", req.path);
+        assertFalse(req.keepAlive);
+    }
+
+    @Test
+    public void malformedHeadsAreErrors() {
+        assertEquals(HttpRequestParser.ERROR, parseResult("GET\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("GET  HTTP/1.1\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("GET /bad%zz HTTP/1.1\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("GET /cut% HTTP/1.1\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("GET / HTTP/1.1\r\nno colon here\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("GET / HTTP/1.1\r\n: empty name\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("PUT / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+        assertEquals(HttpRequestParser.ERROR, parseResult("PUT / HTTP/1.1\r\nContent-Length: 12a\r\n\r\n"));
+    }
+
+    @Test
+    public void tooManyHeaderLinesIsAnError() {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 100; i++) head.append("X-H").append(i).append(": v\r\n");
+        head.append("\r\n");
+        assertEquals(HttpRequestParser.ERROR, parseResult(head.toString()));
+    }
+
+    @Test
+    public void unusableRangeHeadersAreIgnored() {
+        assertEquals(0, parseAll("GET / HTTP/1.1\r\nRange: items=0-1\r\n\r\n").rangeCount);
+        assertEquals(0, parseAll("GET / HTTP/1.1\r\nRange: bytes=5-2\r\n\r\n").rangeCount);
+        assertEquals(0, parseAll("GET / HTTP/1.1\r\nRange: bytes=a-b\r\n\r\n").rangeCount);
+        StringBuilder many = new StringBuilder("GET / HTTP/1.1\r\nRange: bytes=");
+        for (int i = 0; i <= HttpRequestParser.MAX_RANGES; i++) many.append(i * 10).append('-').append(i * 10 + 1).append(',');
+        many.append("\r\n\r\n");
+        assertEquals(0, parseAll(many.toString()).rangeCount);
+        // Empty list elements are allowed
+        assertEquals(2, parseAll("GET / HTTP/1.1\r\nRange: bytes=0-1,, 4-5\r\n\r\n").rangeCount);
+    }
+}
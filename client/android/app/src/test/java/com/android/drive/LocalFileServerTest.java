@@ -0,0 +1,64 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class LocalFileServerTest {
+
+    private static long[][] resolve(String range, long fileLength) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.put(("GET /f HTTP/1.1\r\nRange: " + range + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpRequestParser.Request req = new HttpRequestParser.Request();
+        req.reset();
+        assertEquals(HttpRequestParser.DONE, HttpRequestParser.parse(buf, req));
+        return LocalFileServer.resolveRanges(req, fileLength);
+    }
+
+    @Test
+    public void withoutRangeTheWholeFileIsSent() {
+        assertNull(resolve("items=0-1", 100));
+    }
+
+    @Test
+    public void plainAndOpenEndedRanges() {
+        assertArrayEquals(new long[][]{{0, 9}}, resolve("bytes=0-9", 100));
+        assertArrayEquals(new long[][]{{90, 99}}, resolve("bytes=90-", 100));
+        // A last byte past the end is clamped
+        assertArrayEquals(new long[][]{{50, 99}}, resolve("bytes=50-1000", 100));
+    }
+
+    @Test
+    public void suffixRanges() {
+        assertArrayEquals(new long[][]{{95, 99}}, resolve("bytes=-5", 100));
+        // Longer than the file: the whole file
+        assertArrayEquals(new long[][]{{0, 99}}, resolve("bytes=-500", 100));
+    }
+
+    @Test
+    public void overlappingAndAdjacentRangesAreCoalesced() {
+        assertArrayEquals(new long[][]{{0, 29}}, resolve("bytes=10-29, 0-15", 100));
+        assertArrayEquals(new long[][]{{0, 19}}, resolve("bytes=0-9,10-19", 100));
+        assertArrayEquals(new long[][]{{0, 9}, {20, 29}, {90, 99}}, resolve("bytes=-10,20-29,0-9", 100));
+        assertArrayEquals(new long[][]{{0, 99}}, resolve("bytes=0-50,-60", 100));
+    }
+
+    @Test
+    public void unsatisfiableSpecsAreDropped() {
+        assertArrayEquals(new long[][]{{0, 9}}, resolve("bytes=0-9,100-200", 100));
+        assertArrayEquals(new long[][]{{95, 99}}, resolve("bytes=-0,-5", 100));
+    }
+
+    /** An empty result is what the server answers with 416 and {@code Content-Range: bytes *}. */
+    @Test
+    public void outOfBoundsRangesAreNotSatisfiable() {
+        assertEquals(0, resolve("bytes=100-", 100).length);
+        assertEquals(0, resolve("bytes=100-199, 500-600", 100).length);
+        assertEquals(0, resolve("bytes=-0", 100).length);
+        assertEquals(0, resolve("bytes=0-0", 0).length);
+        assertEquals(0, resolve("bytes=-5", 0).length);
+    }
+}
@@ -0,0 +1,127 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Robolectric supplies the platform's XmlPullParser behind {@code android.util.Xml}. */
+@RunWith(RobolectricTestRunner.class)
+public class PropfindParserTest {
+
+    private static List<PropfindParser.Entry> parse(String xml) throws IOException {
+        List<PropfindParser.Entry> entries = new ArrayList<>();
+        int count = PropfindParser.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), entries::add);
+        assertEquals(entries.size(), count);
+        return entries;
+    }
+
+    private static String multistatus(String responses) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\" xmlns:cs=\"http://calendarserver.org/ns/\">"
+                + responses + "</d:multistatus>";
+    }
+
+    @Test
+    public void parsesCollectionsAndFiles() throws IOException {
+        List<PropfindParser.Entry> entries = parse(multistatus(
+                "<d:response><d:href>/dav/dir/</d:href><d:propstat><d:prop>"
+                        + "<d:resourcetype><d:collection/></d:resourcetype>"
+                        + "<d:getlastmodified>Tue, 15 Nov 1994 08:12:31 GMT</d:getlastmodified>"
+                        + "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>"
+                        + "<d:response><d:href> /dav/dir/a%20b.txt </d:href><d:propstat><d:prop>"
+                        + "<d:resourcetype/><d:getcontentlength>1234</d:getcontentlength>"
+                        + "<d:getetag>\"e1\"</d:getetag><d:getcontenttype>text/plain</d:getcontenttype>"
+                        + "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>"));
+        assertEquals(2, entries.size());
+
+        PropfindParser.Entry dir = entries.get(0);
+        assertEquals("/dav/dir/", dir.href);
+        assertTrue(dir.isCollection);
+        assertEquals(-1, dir.size);
+        assertEquals(784887151000L, dir.mtime);
+
+        PropfindParser.Entry file = entries.get(1);
+        assertEquals("/dav/dir/a%20b.txt", file.href);
+        assertFalse(file.isCollection);
+        assertEquals(1234, file.size);
+        assertEquals(-1, file.mtime);
+        assertEquals("\"e1\"", file.etag);
+        assertEquals("text/plain", file.contentType);
+    }
+
+    @Test
+    public void onlySuccessfulPropstatsAreUsed() throws IOException {
+        List<PropfindParser.Entry> entries = parse(multistatus(
+                "<d:response><d:href>/f</d:href>"
+                        + "<d:propstat><d:prop><d:getcontentlength>10</d:getcontentlength></d:prop>"
+                        + "<d:status>HTTP/1.1 200 OK</d:status></d:propstat>"
+                        + "<d:propstat><d:prop><d:getetag>\"bogus\"</d:getetag><d:getcontentlength>99</d:getcontentlength></d:prop>"
+                        + "<d:status>HTTP/1.1 404 Not Found</d:status></d:propstat>"
+                        + "</d:response>"));
+        assertEquals(1, entries.size());
+        assertEquals(10, entries.get(0).size);
+        assertNull(entries.get(0).etag);
+    }
+
+    @Test
+    public void failedResponsesAreSkipped() throws IOException {
+        List<PropfindParser.Entry> entries = parse(multistatus(
+                "<d:response><d:href>/gone</d:href><d:status>HTTP/1.1 404 Not Found</d:status></d:response>"
+                        + "<d:response><d:href>/ok</d:href><d:propstat><d:prop/><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>"
+                        + "<d:response><d:propstat><d:prop/><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>"));
+        assertEquals(1, entries.size());
+        assertEquals("/ok", entries.get(0).href);
+    }
+
+    @Test
+    public void vendorPropertiesAreRead() throws IOException {
+        List<PropfindParser.Entry> entries = parse(multistatus(
+                "<d:response><d:href>/dir/</d:href><d:propstat><d:prop>"
+                        + "<d:getetag>\"e\"</d:getetag><cs:getctag>c42</cs:getctag>"
+                        + "<oc:checksums><oc:checksum>SHA1:abc</oc:checksum><oc:checksum>MD5:def</oc:checksum></oc:checksums>"
+                        + "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>"));
+        assertEquals("c42", entries.get(0).ctag);
+        assertEquals("SHA1:abc MD5:def", entries.get(0).checksums);
+    }
+
+    @Test
+    public void otherPrefixesAndBadValuesAreTolerated() throws IOException {
+        List<PropfindParser.Entry> entries = parse("<multistatus xmlns=\"DAV:\"><response><href>/x</href><propstat><prop>"
+                + "<getcontentlength>n/a</getcontentlength><getlastmodified>yesterday</getlastmodified><getetag></getetag>"
+                + "</prop><status>HTTP/1.1 200 OK</status></propstat></response></multistatus>");
+        assertEquals(1, entries.size());
+        assertEquals("/x", entries.get(0).href);
+        assertEquals(-1, entries.get(0).size);
+        assertEquals(-1, entries.get(0).mtime);
+        assertNull(entries.get(0).etag);
+    }
+
+    @Test
+    public void entriesAreStreamedBeforeTheDocumentEnds() {
+        String truncated = multistatus("<d:response><d:href>/a</d:href></d:response>"
+                + "<d:response><d:href>/b</d:href></d:response>").replace("</d:multistatus>", "<d:response><d:hr");
+        List<String> seen = new ArrayList<>();
+        try {
+            PropfindParser.parse(new ByteArrayInputStream(truncated.getBytes(StandardCharsets.UTF_8)), e -> seen.add(e.href));
+            fail("Truncated document must fail");
+        } catch (IOException expected) {
+            // Thrown after the complete responses were delivered
+        }
+        assertEquals(2, seen.size());
+        assertEquals("/a", seen.get(0));
+        assertEquals("/b", seen.get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedXmlIsAnIOException() throws IOException {
+        parse("<d:multistatus xmlns:d=\"DAV:\"><d:response></d:multistatus>");
+    }
+}
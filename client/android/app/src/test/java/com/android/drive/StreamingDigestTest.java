@@ -0,0 +1,134 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingDigestTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(7).nextBytes(data);
+        return data;
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return HashCache.hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    @Test
+    public void sequentialBuffersGiveThePlainDigest() throws Exception {
+        byte[] data = data(100_000);
+        StreamingDigest digest = new StreamingDigest("SHA256");
+        for (int off = 0; off < data.length; off += 4096) digest.update(off, data, off, Math.min(4096, data.length - off));
+        assertEquals(data.length, digest.position());
+        assertEquals(sha256(data), digest.hex());
+    }
+
+    @Test
+    public void resentBuffersAreHashedOnce() throws Exception {
+        byte[] data = data(50_000);
+        StreamingDigest digest = new StreamingDigest("SHA256");
+        digest.update(0, data, 0, 20_000);
+        // An OkHttp retry writes the whole body again from the start
+        digest.update(0, data, 0, 20_000);
+        digest.update(0, data, 0, 10_000);
+        digest.update(20_000, data, 20_000, 30_000);
+        digest.update(20_000, data, 20_000, 30_000);
+        assertEquals(sha256(data), digest.hex());
+    }
+
+    @Test
+    public void overlappingBuffersOnlyContributeTheirNewBytes() throws Exception {
+        byte[] data = data(30_000);
+        StreamingDigest digest = new StreamingDigest("SHA256");
+        digest.update(0, data, 0, 10_000);
+        digest.update(5_000, data, 5_000, 10_000);
+        digest.update(14_999, data, 14_999, 2);
+        digest.update(0, data, 0, 30_000);
+        assertEquals(30_000, digest.position());
+        assertEquals(sha256(data), digest.hex());
+    }
+
+    @Test
+    public void buffersOffsetInTheirArrayAreHonoured() throws Exception {
+        byte[] data = data(1_000);
+        byte[] padded = new byte[data.length + 100];
+        System.arraycopy(data, 0, padded, 100, data.length);
+        StreamingDigest digest = new StreamingDigest("SHA256");
+        digest.update(0, padded, 100, 600);
+        digest.update(300, padded, 400, 700);
+        assertEquals(sha256(data), digest.hex());
+    }
+
+    @Test
+    public void gapsAreIgnoredUntilCaughtUpFromDisk() throws Exception {
+        byte[] data = data(200_000);
+        File file = tmp.newFile("f.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        StreamingDigest digest = new StreamingDigest("SHA256");
+        // A resumed transfer streams only the tail; it cannot extend the digest yet
+        digest.update(150_000, data, 150_000, 50_000);
+        assertEquals(0, digest.position());
+        digest.catchUp(file, 150_000);
+        assertEquals(150_000, digest.position());
+        digest.update(150_000, data, 150_000, 50_000);
+        assertEquals(sha256(data), digest.hex());
+    }
+
+    @Test
+    public void catchUpIsANoOpWhenAlreadyPast() throws Exception {
+        byte[] data = data(1_000);
+        StreamingDigest digest = new StreamingDigest("SHA256");
+        digest.update(0, data, 0, data.length);
+        digest.catchUp(new File(tmp.getRoot(), "missing"), 500);
+        assertEquals(sha256(data), digest.hex());
+    }
+
+    @Test
+    public void adler32MatchesTheJdk() {
+        byte[] data = data(70_000);
+        StreamingDigest digest = new StreamingDigest("adler-32");
+        assertEquals("ADLER32", digest.type);
+        digest.update(0, data, 0, 40_000);
+        digest.update(30_000, data, 30_000, 40_000);
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        assertEquals(HashCache.hex(adler), digest.hex());
+    }
+
+    @Test
+    public void typesAreNormalised() {
+        assertEquals("SHA1", StreamingDigest.normalizeType("sha-1"));
+        assertEquals("MD5", StreamingDigest.normalizeType("md5"));
+        assertNull(StreamingDigest.normalizeType("crc32"));
+        assertEquals("SHA-256", StreamingDigest.algorithm("Sha256"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedTypeIsRejected() {
+        new StreamingDigest("CRC32");
+    }
+
+    @Test
+    public void pickPrefersTheRequestedOrStrongestType() {
+        String checksums = "MD5:AA SHA1:BB ADLER32:CC bogus SHA256:DD";
+        assertTrue(Arrays.equals(new String[]{"SHA256", "dd"}, StreamingDigest.pick(checksums, null)));
+        assertTrue(Arrays.equals(new String[]{"MD5", "aa"}, StreamingDigest.pick(checksums, "MD5")));
+        assertNull(StreamingDigest.pick("MD5:AA", "SHA1"));
+        assertNull(StreamingDigest.pick(null, null));
+    }
+}
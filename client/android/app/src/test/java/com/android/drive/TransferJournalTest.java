@@ -0,0 +1,135 @@
+package com.android.drive;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Robolectric supplies org.json and android.util.Log. */
+@RunWith(RobolectricTestRunner.class)
+public class TransferJournalTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static TransferJournal.Job job(String id, Map<String, String> headers) throws Exception {
+        return new TransferJournal.Job(id, TransferJournal.KIND_DOWNLOAD, "https://h/dav/" + id, "/sdcard/" + id, headers,
+                new JSONObject().put("driveId", "d1").put("segmented", true));
+    }
+
+    private static void write(File file, String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(java.nio.file.Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void unfinishedJobsSurviveARestart() throws Exception {
+        File file = new File(tmp.getRoot(), "transfers.journal");
+        TransferJournal journal = new TransferJournal(file);
+        journal.add(job("a", new HashMap<>()));
+        journal.add(job("b", new HashMap<>()));
+        journal.add(job("c", new HashMap<>()));
+        journal.progress("a", 100);
+        journal.progress("a", 250);
+        journal.end("b");
+        journal.close();
+
+        List<TransferJournal.Job> jobs = new TransferJournal(file).jobs();
+        assertEquals(2, jobs.size());
+        assertEquals("a", jobs.get(0).id);
+        assertEquals(250, jobs.get(0).bytes);
+        assertEquals("https://h/dav/a", jobs.get(0).url);
+        assertEquals("/sdcard/a", jobs.get(0).path);
+        assertEquals("d1", jobs.get(0).options.getString("driveId"));
+        assertTrue(jobs.get(0).options.getBoolean("segmented"));
+        assertEquals("c", jobs.get(1).id);
+        assertEquals(0, jobs.get(1).bytes);
+    }
+
+    @Test
+    public void replayStopsCleanlyAtATruncatedLastLine() throws Exception {
+        File file = new File(tmp.getRoot(), "transfers.journal");
+        String a = job("a", new HashMap<>()).toRecord().toString();
+        String b = job("b", new HashMap<>()).toRecord().toString();
+        // Process death in the middle of the last append: progress for a, then half an end for b
+        write(file, a + "\n" + b + "\n{\"t\":\"progress\",\"id\":\"a\",\"bytes\":42}\n{\"t\":\"end\",\"id\":\"b");
+
+        TransferJournal journal = new TransferJournal(file);
+        List<TransferJournal.Job> jobs = journal.jobs();
+        assertEquals(2, jobs.size());
+        assertEquals(42, journal.get("a").bytes);
+        assertNotNull(journal.get("b"));
+
+        // Loading compacted the log, so the torn line is gone and later appends parse
+        journal.end("a");
+        journal.close();
+        jobs = new TransferJournal(file).jobs();
+        assertEquals(1, jobs.size());
+        assertEquals("b", jobs.get(0).id);
+    }
+
+    @Test
+    public void truncatedAddIsDropped() throws Exception {
+        File file = new File(tmp.getRoot(), "transfers.journal");
+        String a = job("a", new HashMap<>()).toRecord().toString();
+        String b = job("b", new HashMap<>()).toRecord().toString();
+        write(file, a + "\n" + b.substring(0, b.length() / 2));
+
+        List<TransferJournal.Job> jobs = new TransferJournal(file).jobs();
+        assertEquals(1, jobs.size());
+        assertEquals("a", jobs.get(0).id);
+    }
+
+    @Test
+    public void credentialHeadersAreNeverWritten() throws Exception {
+        File file = new File(tmp.getRoot(), "transfers.journal");
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Basic c2VjcmV0");
+        headers.put("cookie", "session=s3cr3t");
+        headers.put("X-Client", "app");
+        TransferJournal journal = new TransferJournal(file);
+        journal.add(job("a", headers));
+        journal.add(job("b", new HashMap<>()));
+        journal.close();
+
+        String text = read(file);
+        assertFalse(text.contains("c2VjcmV0"));
+        assertFalse(text.contains("s3cr3t"));
+
+        TransferJournal reopened = new TransferJournal(file);
+        TransferJournal.Job a = reopened.get("a");
+        assertTrue(a.needsCredentials);
+        assertEquals(1, a.headers.size());
+        assertEquals("app", a.headers.get("X-Client"));
+        assertFalse(reopened.get("b").needsCredentials);
+    }
+
+    @Test
+    public void legacyRecordsWithCredentialsAreScrubbedOnLoad() throws Exception {
+        File file = new File(tmp.getRoot(), "transfers.journal");
+        JSONObject record = job("a", new HashMap<>()).toRecord();
+        record.put("headers", new JSONObject().put("Authorization", "Bearer t0ken"));
+        write(file, record + "\n");
+
+        TransferJournal journal = new TransferJournal(file);
+        assertTrue(journal.get("a").needsCredentials);
+        assertTrue(journal.get("a").headers.isEmpty());
+        assertFalse(read(file).contains("t0ken"));
+    }
+}